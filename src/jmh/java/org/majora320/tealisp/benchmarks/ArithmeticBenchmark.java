@@ -0,0 +1,76 @@
+package org.majora320.tealisp.benchmarks;
+
+import org.majora320.tealisp.evaluator.Builtins;
+import org.majora320.tealisp.evaluator.Interpreter;
+import org.majora320.tealisp.evaluator.JavaRegistry;
+import org.majora320.tealisp.evaluator.LispException;
+import org.majora320.tealisp.evaluator.LispObject;
+import org.majora320.tealisp.evaluator.NativeFunction;
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the arithmetic builtins on their own and in a numeric loop. Run with the gc profiler (the default in
+ * build.gradle) to check that a two-argument call allocates nothing but its result, i.e. gc.alloc.rate.norm is the
+ * size of one LispObject.Integer.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ArithmeticBenchmark {
+    private NativeFunction plus;
+    private NativeFunction lessThan;
+    private LispObject a;
+    private LispObject b;
+    private LispObject c;
+    private Interpreter interpreter;
+
+    @Setup
+    public void setup() throws LispException, IOException, LexException, ParseException {
+        Builtins builtins = new Builtins();
+        plus = builtins.getNativeFunction("+");
+        lessThan = builtins.getNativeFunction("<");
+        a = new LispObject.Integer(3);
+        b = new LispObject.Integer(4);
+        c = new LispObject.Double(0.5);
+
+        interpreter = new Interpreter(new JavaRegistry());
+        interpreter.run(new StringReader("(define (sum n acc) (if (< n 1) acc (sum (- n 1) (+ acc n))))"));
+    }
+
+    @Benchmark
+    public LispObject addIntegers() throws LispException {
+        return plus.call2(a, b);
+    }
+
+    @Benchmark
+    public LispObject addMixed() throws LispException {
+        return plus.call2(a, c);
+    }
+
+    @Benchmark
+    public LispObject addVariadic() throws LispException {
+        return plus.call(new LispObject[]{a, b, a, b});
+    }
+
+    @Benchmark
+    public LispObject compareIntegers() throws LispException {
+        return lessThan.call2(a, b);
+    }
+
+    @Benchmark
+    public LispObject sumLoop() throws LispException {
+        return interpreter.getRuntime().callFunction("sum", new LispObject.Integer(1000), new LispObject.Integer(0));
+    }
+}
@@ -0,0 +1,75 @@
+package org.majora320.tealisp.benchmarks;
+
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.lexer.Token;
+import org.majora320.tealisp.lexer.TokenStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lexes the same generated program with TokenStream and with the old PushbackReader-based lexer. Divide the input
+ * size by the time per operation for throughput.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LexerBenchmark {
+    private String program;
+
+    @Setup
+    public void setup() {
+        StringBuilder res = new StringBuilder();
+
+        for (int i = 0; i < 2000; ++i) {
+            res.append("; function number ").append(i).append('\n');
+            res.append("(define (f").append(i).append(" x y)\n");
+            res.append("  (if (< x ").append(i).append(") (+ x y 1.5) (cons 'sym").append(i % 50)
+                    .append(" (list \"a string\" -").append(i).append(" .25))))\n");
+        }
+
+        program = res.toString();
+    }
+
+    @Benchmark
+    public int tokenStream() throws IOException, LexException {
+        TokenStream tokens = new TokenStream(new StringReader(program));
+        int count = 0;
+
+        for (Token token = tokens.nextToken(); token != null; token = tokens.nextToken())
+            ++count;
+
+        return count;
+    }
+
+    @Benchmark
+    public int tokenStreamFromArray() throws IOException, LexException {
+        char[] chars = program.toCharArray();
+        TokenStream tokens = new TokenStream(chars, chars.length);
+        int count = 0;
+
+        for (Token token = tokens.nextToken(); token != null; token = tokens.nextToken())
+            ++count;
+
+        return count;
+    }
+
+    @Benchmark
+    public int pushbackTokenStream() throws IOException, LexException {
+        PushbackTokenStream tokens = new PushbackTokenStream(new StringReader(program));
+        int count = 0;
+
+        for (Token token = tokens.nextToken(); token != null; token = tokens.nextToken())
+            ++count;
+
+        return count;
+    }
+}
@@ -0,0 +1,59 @@
+package org.majora320.tealisp.benchmarks;
+
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.parser.AstNode;
+import org.majora320.tealisp.parser.AstSerializer;
+import org.majora320.tealisp.parser.ParseException;
+import org.majora320.tealisp.parser.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing a generated program from text with rebuilding it from its ProgramCache form. The serialized
+ * program is in a direct buffer, like a mapped cache entry.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ProgramCacheBenchmark {
+    private String program;
+    private ByteBuffer serialized;
+
+    @Setup
+    public void setup() throws IOException, LexException, ParseException {
+        StringBuilder res = new StringBuilder();
+
+        for (int i = 0; i < 2000; ++i) {
+            res.append("; function number ").append(i).append('\n');
+            res.append("(define (f").append(i).append(" x y)\n");
+            res.append("  (if (< x ").append(i).append(") (+ x y 1.5) (cons 'sym").append(i % 50)
+                    .append(" (list \"a string\" -").append(i).append(" .25))))\n");
+        }
+
+        program = res.toString();
+
+        byte[] bytes = AstSerializer.serialize(Parser.parse(new StringReader(program)));
+        serialized = ByteBuffer.allocateDirect(bytes.length);
+        serialized.put(bytes).flip();
+    }
+
+    @Benchmark
+    public AstNode.RootNode parse() throws IOException, LexException, ParseException {
+        return Parser.parse(new StringReader(program));
+    }
+
+    @Benchmark
+    public AstNode.RootNode deserialize() throws IOException {
+        return AstSerializer.deserialize(serialized);
+    }
+}
@@ -0,0 +1,58 @@
+package org.majora320.tealisp.benchmarks;
+
+import org.majora320.tealisp.evaluator.Interpreter;
+import org.majora320.tealisp.evaluator.JavaRegistry;
+import org.majora320.tealisp.evaluator.LispException;
+import org.majora320.tealisp.evaluator.LispObject;
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.parser.ParseException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Node tree (COMPILED) with JVM bytecode (TIERED) and the VirtualMachine (BYTECODE) on recursive numeric
+ * code. The functions are hot after the first few iterations of warmup, so TIERED measures the compiled bytecode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TieredBenchmark {
+    @Param({"COMPILED", "TIERED", "BYTECODE"})
+    public Interpreter.ExecutionMode mode;
+
+    private Interpreter interpreter;
+    private LispObject fibArgument;
+    private LispObject sumArgument;
+    private LispObject zero;
+
+    @Setup
+    public void setup() throws LispException, IOException, LexException, ParseException {
+        interpreter = new Interpreter(new JavaRegistry(), mode);
+        interpreter.run(new StringReader("(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))"
+                + " (define (sum n acc) (if (= n 0) acc (sum (- n 1) (+ acc n))))"));
+
+        fibArgument = LispObject.Integer.valueOf(20);
+        sumArgument = LispObject.Integer.valueOf(10000);
+        zero = LispObject.Integer.valueOf(0);
+    }
+
+    @Benchmark
+    public LispObject fib() throws LispException {
+        return interpreter.getRuntime().callFunction("fib", fibArgument);
+    }
+
+    @Benchmark
+    public LispObject sumLoop() throws LispException {
+        return interpreter.getRuntime().callFunction("sum", sumArgument, zero);
+    }
+}
@@ -0,0 +1,952 @@
+package org.majora320.tealisp.evaluator;
+
+import org.majora320.tealisp.parser.AstNode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Turns AstNodes into executable Nodes. This does the same checks as Interpreter.eval and SpecialForms, but once
+ * per expression instead of once per evaluation.
+ * <p>
+ * Variables bound by the enclosing function or by a let are resolved to a (depth, slot) address: how many frames
+ * up the parent chain to go, and which slot of that frame to read. Anything else is looked up by name at runtime.
+ * <p>
+ * Calls in tail position inside a function become TailCalls, which leave the actual call to the Interpreter.call loop.
+ * <p>
+ * Calls to pure Java functions with constant arguments are made during analysis and replaced by their results, and an
+ * if or cond whose test comes out constant keeps only the branch it takes. Both assume the function names aren't
+ * redefined later, so the result is wrapped in a Node.Folded that checks that before relying on it. Calls to small
+ * global Lisp functions are replaced by the function's body the same way.
+ */
+class Analyzer {
+    /**
+     * The compile-time mirror of a StackFrame with slots. Each Scope is exactly one frame at runtime.
+     * <p>
+     * A function scope also describes the function's closure: the variables it uses from the scopes around it.
+     * These are copied into a frame of their own when the function is created, which becomes the parent of every
+     * frame the function is called with. A variable that can be assigned after it has been copied like that is kept
+     * in a Box instead, so that every copy sees the new value.
+     */
+    private static class Scope {
+        final Scope parent;
+        final boolean isFunction;
+        /**
+         * Whether this is the let that an inlined function body runs in. The body can't see the variables around the
+         * call, so names are only resolved this far up.
+         */
+        final boolean isInlined;
+        final List<String> names = new ArrayList<>();
+        final List<Boolean> boxed = new ArrayList<>();
+        final List<String> captureNames = new ArrayList<>();
+        final List<Boolean> captureBoxed = new ArrayList<>();
+        final List<Node> captureSources = new ArrayList<>();
+        /**
+         * For function scopes, the most arguments passed by any tail call in the function; the function's frames
+         * get that many unnamed slots at the end to hold them.
+         */
+        int scratchSize = 0;
+
+        Scope(Scope parent, boolean isFunction) {
+            this(parent, isFunction, false);
+        }
+
+        Scope(Scope parent, boolean isFunction, boolean isInlined) {
+            this.parent = parent;
+            this.isFunction = isFunction;
+            this.isInlined = isInlined;
+        }
+
+        int declare(String name, boolean isBoxed) {
+            names.add(name);
+            boxed.add(isBoxed);
+            return names.size() - 1;
+        }
+
+        /**
+         * Like StackFrame.storeBinding, reuses the last slot with the same name if there is one.
+         */
+        int declareIfAbsent(String name, boolean isBoxed) {
+            int slot = names.lastIndexOf(name);
+            return slot == -1 ? declare(name, isBoxed) : slot;
+        }
+
+        int capture(String name, Address source) {
+            captureNames.add(name);
+            captureBoxed.add(source.boxed);
+            captureSources.add(new Node.SlotRef(source.depth, source.slot));
+            return captureNames.size() - 1;
+        }
+
+        String[] slotNames() {
+            return names.toArray(new String[0]);
+        }
+
+        boolean[] boxedSlots() {
+            boolean[] res = new boolean[boxed.size()];
+
+            for (int i = 0; i < res.length; ++i)
+                res[i] = boxed.get(i);
+
+            return res;
+        }
+    }
+
+    private static class Address {
+        final int depth;
+        final int slot;
+        final boolean boxed;
+
+        Address(int depth, int slot, boolean boxed) {
+            this.depth = depth;
+            this.slot = slot;
+            this.boxed = boxed;
+        }
+    }
+
+    private Interpreter interpreter;
+    private Scope scope = null;
+    /**
+     * The functions whose bodies are being inlined, innermost last, and how much of the inline budget they left.
+     */
+    private final List<LispObject.Function> inlining = new ArrayList<>();
+    private int inlineBudget;
+
+    Analyzer(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    Node analyze(AstNode node) throws LispException {
+        return analyze(node, false);
+    }
+
+    private Node analyze(AstNode node, boolean tail) throws LispException {
+        if (node instanceof AstNode.RootNode) {
+            throw new LispException("Only one root node is allowed, and it must be the actual root node.");
+        } else if (node instanceof AstNode.Boolean) {
+            return new Node.Literal(LispObject.Boolean.valueOf(((AstNode.Boolean) node).value));
+        } else if (node instanceof AstNode.String) {
+            return new Node.Literal(new LispObject.String(((AstNode.String) node).value));
+        } else if (node instanceof AstNode.Integer) {
+            return new Node.Literal(LispObject.Integer.valueOf(((AstNode.Integer) node).value));
+        } else if (node instanceof AstNode.Double) {
+            return new Node.Literal(new LispObject.Double(((AstNode.Double) node).value));
+        } else if (node instanceof AstNode.Name) {
+            String name = ((AstNode.Name) node).value;
+
+            if (interpreter.isReservedKeyword(name))
+                throw new LispException("Cannot use keyword as variable name: " + name);
+
+            Address address = resolve(name, scope);
+            if (address == null)
+                return new Node.GlobalRef(name, interpreter.globalFrame);
+            else if (address.boxed)
+                return new Node.BoxRef(name, address.depth, address.slot);
+            else
+                return new Node.LocalRef(name, address.depth, address.slot);
+        } else if (node instanceof AstNode.Sexp) {
+            return analyzeSexp((AstNode.Sexp) node, tail);
+        }
+
+        throw new LispException("This should never happen. If it does, contact Majora320 immediately with error code 452");
+    }
+
+    /**
+     * Analyzes a function that was not created by analyzed code, so has no closure of its own. Names that are not
+     * parameters or internal defines refer to globals.
+     */
+    Node.FunctionBody analyzeFunction(LispObject.Function function) throws LispException {
+        Scope outer = scope;
+
+        try {
+            return analyzeFunction(null, function.paramNames, function.body);
+        } finally {
+            scope = outer;
+        }
+    }
+
+    /**
+     * Analyzes a function body in a new function scope, which is left as the current scope so that the caller can
+     * read its captures. The parameters take the first slots of the frame, in order.
+     */
+    private Node.FunctionBody analyzeFunction(Scope parent, List<String> paramNames, List<AstNode> body) throws LispException {
+        scope = new Scope(parent, true);
+
+        for (String param : paramNames)
+            scope.declare(param, isCaptured(param, body, false) && isAssigned(param, body));
+
+        Node[] nodes = analyzeBody(body, true);
+        return new Node.FunctionBody(scope.slotNames(), scope.boxedSlots(), scope.scratchSize, nodes);
+    }
+
+    /**
+     * Analyzes a sequence of expressions run in the current scope. Internal defines get their slots first, so that
+     * earlier expressions in the body can refer to them.
+     */
+    private Node[] analyzeBody(List<AstNode> body, boolean tail) throws LispException {
+        for (AstNode node : body) {
+            String defined = definedName(node);
+
+            if (defined != null)
+                scope.declareIfAbsent(defined, isCaptured(defined, body, false));
+        }
+
+        return analyzeAll(body, tail);
+    }
+
+    /**
+     * Returns the name bound by `node` if it is a well-formed define, otherwise null.
+     */
+    private static String definedName(AstNode node) {
+        if (!(node instanceof AstNode.Sexp))
+            return null;
+
+        List<AstNode> contents = ((AstNode.Sexp) node).contents;
+        if (contents.size() < 2 || !(contents.get(0) instanceof AstNode.Name)
+                || !((AstNode.Name) contents.get(0)).value.equals("define"))
+            return null;
+
+        AstNode spec = contents.get(1);
+        if (spec instanceof AstNode.Sexp && !((AstNode.Sexp) spec).contents.isEmpty())
+            spec = ((AstNode.Sexp) spec).contents.get(0);
+
+        return spec instanceof AstNode.Name ? ((AstNode.Name) spec).value : null;
+    }
+
+    /**
+     * Whether `name` appears anywhere inside a function in `nodes`. This ignores shadowing, so it can be wrong in
+     * the safe direction: the worst that happens is an unneeded Box.
+     */
+    private static boolean isCaptured(String name, List<AstNode> nodes, boolean inFunction) {
+        for (AstNode node : nodes) {
+            if (node instanceof AstNode.Name) {
+                if (inFunction && ((AstNode.Name) node).value.equals(name))
+                    return true;
+            } else if (node instanceof AstNode.Sexp) {
+                List<AstNode> contents = ((AstNode.Sexp) node).contents;
+
+                if (isCaptured(name, contents, inFunction || isFunctionForm(contents)))
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isFunctionForm(List<AstNode> contents) {
+        if (contents.size() < 2 || !(contents.get(0) instanceof AstNode.Name))
+            return false;
+
+        String head = ((AstNode.Name) contents.get(0)).value;
+        return head.equals("lambda") || (head.equals("define") && contents.get(1) instanceof AstNode.Sexp);
+    }
+
+    /**
+     * Whether `name` is the target of a set! or define anywhere in `nodes`. Like isCaptured, this ignores shadowing.
+     */
+    private static boolean isAssigned(String name, List<AstNode> nodes) {
+        for (AstNode node : nodes) {
+            if (!(node instanceof AstNode.Sexp))
+                continue;
+
+            List<AstNode> contents = ((AstNode.Sexp) node).contents;
+
+            if (name.equals(definedName(node)))
+                return true;
+            if (contents.size() > 1 && contents.get(0) instanceof AstNode.Name && contents.get(1) instanceof AstNode.Name
+                    && ((AstNode.Name) contents.get(0)).value.equals("set!")
+                    && ((AstNode.Name) contents.get(1)).value.equals(name))
+                return true;
+
+            if (isAssigned(name, contents))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Finds the frame and slot `name` is bound in, relative to the frame `from` runs in. Names used from outside
+     * the current function are added to its closure on the way. Returns null for globals.
+     */
+    private static Address resolve(String name, Scope from) {
+        int depth = 0;
+
+        for (Scope current = from; current != null; current = current.parent) {
+            int slot = current.names.lastIndexOf(name);
+
+            if (slot != -1)
+                return new Address(depth, slot, current.boxed.get(slot));
+
+            if (current.isFunction) {
+                // The closure frame is the parent of the function's own frame
+                int capture = current.captureNames.indexOf(name);
+
+                if (capture == -1) {
+                    Address source = resolve(name, current.parent);
+                    if (source == null)
+                        return null;
+
+                    capture = current.capture(name, source);
+                }
+
+                return new Address(depth + 1, capture, current.captureBoxed.get(capture));
+            }
+
+            if (current.isInlined)
+                return null;
+
+            ++depth;
+        }
+
+        return null;
+    }
+
+    private Node[] analyzeAll(List<AstNode> nodes) throws LispException {
+        return analyzeAll(nodes, false);
+    }
+
+    /**
+     * If `tail` is true, the last node is in tail position.
+     */
+    private Node[] analyzeAll(List<AstNode> nodes, boolean tail) throws LispException {
+        Node[] res = new Node[nodes.size()];
+
+        for (int i = 0; i < res.length; ++i)
+            res[i] = analyze(nodes.get(i), tail && i == res.length - 1);
+
+        return res;
+    }
+
+    /**
+     * Analyzes a form that the tree walker runs in a frame of its own, such as a branch of an if, so that a define
+     * inside it doesn't bind anything outside it. Forms that can't define anything are analyzed as they are.
+     */
+    private Node block(AstNode node, boolean tail) throws LispException {
+        if (!mayDefine(node))
+            return analyze(node, tail);
+
+        Scope outer = scope;
+        Scope inner = new Scope(outer, false);
+
+        try {
+            scope = inner;
+            Node[] body = new Node[]{analyze(node, tail)};
+
+            return new Node.Let(false, inner.slotNames(), inner.boxedSlots(), new Node[0], body);
+        } finally {
+            scope = outer;
+        }
+    }
+
+    private Node block(AstNode node) throws LispException {
+        return block(node, false);
+    }
+
+    private Node[] blocks(List<AstNode> nodes, boolean tail) throws LispException {
+        Node[] res = new Node[nodes.size()];
+
+        for (int i = 0; i < res.length; ++i)
+            res[i] = block(nodes.get(i), tail && i == res.length - 1);
+
+        return res;
+    }
+
+    /**
+     * Whether `node` contains a define outside of any lambda or let, which have frames of their own.
+     */
+    private static boolean mayDefine(AstNode node) {
+        if (!(node instanceof AstNode.Sexp))
+            return false;
+        if (definedName(node) != null)
+            return true;
+
+        List<AstNode> contents = ((AstNode.Sexp) node).contents;
+        if (!contents.isEmpty() && contents.get(0) instanceof AstNode.Name) {
+            String head = ((AstNode.Name) contents.get(0)).value;
+
+            if (head.equals("lambda") || head.equals("let") || head.equals("let*") || head.equals("quote"))
+                return false;
+        }
+
+        for (AstNode child : contents) {
+            if (mayDefine(child))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Returns how many let frames there are between the current scope and the function it is in.
+     */
+    private int functionDepth() {
+        int depth = 0;
+        for (Scope current = scope; !current.isFunction; current = current.parent)
+            ++depth;
+
+        return depth;
+    }
+
+    private Node analyzeSexp(AstNode.Sexp node, boolean tail) throws LispException {
+        List<AstNode> contents = node.contents;
+
+        if (contents.size() == 0)
+            throw new LispException("Empty parenthesis.");
+
+        AstNode first = contents.get(0);
+        List<AstNode> arguments = contents.subList(1, contents.size());
+
+        if (first instanceof AstNode.Name) {
+            String name = ((AstNode.Name) first).value;
+
+            if (interpreter.isReservedKeyword(name))
+                return analyzeSpecial(name, arguments, tail);
+
+            if (resolve(name, scope) == null)
+                return globalCall(name, analyzeAll(arguments), tail);
+            else if (tail)
+                return tailCall(analyze(first), analyzeAll(arguments));
+            else
+                return new Node.Call(analyze(first), analyzeAll(arguments), interpreter);
+        } else if (first instanceof AstNode.Sexp) {
+            if (tail)
+                return tailCall(block(first), analyzeAll(arguments));
+            else
+                return new Node.Call(block(first), analyzeAll(arguments), interpreter);
+        }
+
+        throw new LispException("Not a function: " + first);
+    }
+
+    /**
+     * Analyzes a call to the global `name`. A call to a pure Java function with constant arguments is made now, and a
+     * call to a small Lisp function is replaced by its body; anything else stays an ordinary call.
+     */
+    private Node globalCall(String name, Node[] arguments, boolean tail) {
+        Node call = globalCall(name, arguments, tail, false);
+        Node.CallSite site = new Node.CallSite(name, interpreter);
+        LispObject function;
+
+        try {
+            function = site.resolve();
+        } catch (LispException e) {
+            // Not defined yet
+            return call;
+        }
+
+        if (function instanceof LispObject.JavaFunction) {
+            Node folded = foldCall(site, (LispObject.JavaFunction) function, arguments, tail);
+
+            if (folded != null)
+                return folded;
+
+            // A Java function can't loop back into this body, so a tail call to it can be an ordinary call, which
+            // specializes itself
+            if (tail)
+                return fold(new Node.NamedCall(name, arguments, interpreter), call, new Node[0], site, function);
+
+            return call;
+        } else if (function instanceof LispObject.Function)
+            return inline(site, (LispObject.Function) function, arguments, call, tail);
+        else
+            return call;
+    }
+
+    /**
+     * Makes a call to a pure Java function whose arguments are all constants, and returns its result. Returns null if
+     * the call can't be folded, including if it fails: errors are left for the call to report when it runs.
+     */
+    private Node foldCall(Node.CallSite site, LispObject.JavaFunction function, Node[] arguments, boolean tail) {
+        NativeFunction nativeFunction = function.nativeFunction;
+        LispObject[] values = new LispObject[arguments.length];
+
+        if (nativeFunction == null || !nativeFunction.isPure())
+            return null;
+
+        for (int i = 0; i < arguments.length; ++i) {
+            values[i] = constant(arguments[i]);
+
+            if (values[i] == null)
+                return null;
+        }
+
+        LispObject result;
+
+        try {
+            result = nativeFunction.call(values);
+        } catch (LispException | RuntimeException e) {
+            return null;
+        }
+
+        return fold(new Node.Literal(result), globalCall(site.name, arguments, tail, true), arguments, site, function);
+    }
+
+    /**
+     * Replaces a call to a small global function with its body, run in a let that binds the parameters to the
+     * arguments. The body is analyzed again in a scope that, like the function itself, only sees its parameters and
+     * globals.
+     * <p>
+     * Functions that mention their own name are never inlined. Calls inside an inlined body can be inlined in turn,
+     * except to a function already being inlined, as long as the sizes add up to no more than the inline budget.
+     */
+    private Node inline(Node.CallSite site, LispObject.Function function, Node[] arguments, Node call, boolean tail) {
+        if (function.closure != null && function.closure != interpreter.globalFrame)
+            return call;
+        if (function.paramNames.size() != arguments.length || inlining.contains(function))
+            return call;
+
+        int size = size(function.body);
+        int budget = inlining.isEmpty() ? interpreter.getInlineBudget() : inlineBudget;
+
+        if (size > budget || mentions(site.name, function.body))
+            return call;
+
+        Scope outer = scope;
+        Scope inner = new Scope(outer, false, true);
+        int outerBudget = inlineBudget;
+
+        inlining.add(function);
+        inlineBudget = budget - size;
+
+        try {
+            for (String param : function.paramNames)
+                inner.declare(param, isCaptured(param, function.body, false) && isAssigned(param, function.body));
+
+            scope = inner;
+            Node[] body = analyzeBody(function.body, tail);
+            Node let = new Node.Let(false, inner.slotNames(), inner.boxedSlots(), arguments, body);
+
+            return fold(let, call, new Node[0], site, function);
+        } catch (LispException e) {
+            // The body has an error of its own, which the call reports when it runs
+            return call;
+        } finally {
+            scope = outer;
+            inlining.remove(inlining.size() - 1);
+            inlineBudget = outerBudget;
+        }
+    }
+
+    /**
+     * Counts the AstNodes in `nodes`, including the ones inside them.
+     */
+    private static int size(List<AstNode> nodes) {
+        int size = 0;
+
+        for (AstNode node : nodes) {
+            ++size;
+
+            if (node instanceof AstNode.Sexp)
+                size += size(((AstNode.Sexp) node).contents);
+        }
+
+        return size;
+    }
+
+    private static boolean mentions(String name, List<AstNode> nodes) {
+        for (AstNode node : nodes) {
+            if (node instanceof AstNode.Name && ((AstNode.Name) node).value.equals(name))
+                return true;
+            if (node instanceof AstNode.Sexp && mentions(name, ((AstNode.Sexp) node).contents))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Makes the call node for globalCall, with each argument unfolded if `unfold` is true.
+     */
+    private Node globalCall(String name, Node[] arguments, boolean tail, boolean unfold) {
+        if (unfold) {
+            Node[] originals = new Node[arguments.length];
+
+            for (int i = 0; i < arguments.length; ++i)
+                originals[i] = original(arguments[i]);
+
+            arguments = originals;
+        }
+
+        if (tail)
+            return tailCall(new Node.FunctionRef(name, interpreter), arguments);
+        else
+            return new Node.NamedCall(name, arguments, interpreter);
+    }
+
+    /**
+     * Returns the value of `node` if it is known during analysis, otherwise null.
+     */
+    private static LispObject constant(Node node) {
+        if (node instanceof Node.Folded)
+            node = ((Node.Folded) node).folded;
+
+        return node instanceof Node.Literal ? ((Node.Literal) node).value : null;
+    }
+
+    private static Node folded(Node node) {
+        return node instanceof Node.Folded ? ((Node.Folded) node).folded : node;
+    }
+
+    private static Node original(Node node) {
+        return node instanceof Node.Folded ? ((Node.Folded) node).original : node;
+    }
+
+    /**
+     * Makes a Node.Folded that runs `folded` as long as the assumptions behind it hold: those of any Folded node among
+     * `parts`, and that `site` (if not null) still refers to `function`. Parts that were folded without assuming
+     * anything, like (if #t 1 2), need no check at all.
+     */
+    private static Node fold(Node folded, Node original, Node[] parts, Node.CallSite site, LispObject function) {
+        List<Node.CallSite> sites = new ArrayList<>();
+        List<LispObject> assumed = new ArrayList<>();
+
+        if (site != null) {
+            sites.add(site);
+            assumed.add(function);
+        }
+
+        for (Node part : parts) {
+            if (!(part instanceof Node.Folded))
+                continue;
+
+            Node.Folded folds = (Node.Folded) part;
+
+            for (int i = 0; i < folds.sites.length; ++i) {
+                if (!isAssumed(folds.sites[i].name, sites)) {
+                    sites.add(folds.sites[i]);
+                    assumed.add(folds.assumed[i]);
+                }
+            }
+        }
+
+        if (sites.isEmpty())
+            return folded;
+
+        return new Node.Folded(folded, original, sites.toArray(new Node.CallSite[0]), assumed.toArray(new LispObject[0]));
+    }
+
+    private static boolean isAssumed(String name, List<Node.CallSite> sites) {
+        for (Node.CallSite site : sites) {
+            if (site.name.equals(name))
+                return true;
+        }
+
+        return false;
+    }
+
+    private Node tailCall(Node function, Node[] arguments) {
+        int depth = functionDepth();
+        Scope functionScope = scope;
+        for (int i = 0; i < depth; ++i)
+            functionScope = functionScope.parent;
+
+        functionScope.scratchSize = Math.max(functionScope.scratchSize, arguments.length);
+        return new Node.TailCall(function, arguments, depth, interpreter);
+    }
+
+    private Node analyzeSpecial(String name, List<AstNode> contents, boolean tail) throws LispException {
+        switch (name) {
+            case "define":
+                return define(contents);
+            case "lambda":
+                return lambda(contents);
+            case "let":
+            case "let*":
+                return let(name, contents, tail);
+            case "set!":
+                return set(contents);
+            case "if":
+                return if_(contents, tail);
+            case "when":
+            case "unless":
+                return whenUnless(name, contents, tail);
+            case "cond":
+                return cond(contents, tail);
+            case "and":
+                return new Node.And(blocks(contents, tail));
+            case "or":
+                return new Node.Or(blocks(contents, tail));
+            case "quote":
+                return quote(contents);
+        }
+
+        throw new LispException("Something has gone horribly wrong. Please consult a local moose to update this.");
+    }
+
+    private Node define(List<AstNode> contents) throws LispException {
+        if (contents.size() < 2)
+            throw new LispException("Define missing body");
+
+        AstNode defineSpec = contents.get(0);
+
+        if (defineSpec instanceof AstNode.Name) {
+            if (contents.size() != 2)
+                throw new LispException("Extra terms for variable definition");
+
+            return define(((AstNode.Name) defineSpec).value, block(contents.get(1)));
+        } else if (defineSpec instanceof AstNode.Sexp) {
+            List<AstNode> functionSpec = ((AstNode.Sexp) defineSpec).contents;
+
+            if (functionSpec.size() < 1)
+                throw new LispException("Expected function name, got nothing");
+
+            for (AstNode node : functionSpec) {
+                if (!(node instanceof AstNode.Name))
+                    throw new LispException("Expected function specification, got something else: " + new AstNode.Sexp(contents));
+            }
+
+            String name = ((AstNode.Name) functionSpec.get(0)).value;
+            List<String> paramNames = functionSpec
+                    .subList(1, functionSpec.size())
+                    .stream()
+                    .map(node -> ((AstNode.Name) node).value)
+                    .collect(Collectors.toList());
+
+            return define(name, lambda(name, paramNames, contents.subList(1, contents.size())));
+        }
+
+        throw new LispException("Expected variable or procedure definition, got something else: " + defineSpec);
+    }
+
+    private Node define(String name, Node value) {
+        if (scope == null)
+            return new Node.Define(name, value);
+
+        // Defines outside of a body weren't given a slot up front, so box them in case a closure already has them
+        int slot = scope.declareIfAbsent(name, true);
+
+        if (scope.boxed.get(slot))
+            return new Node.BoxDefine(slot, value);
+        else
+            return new Node.LocalDefine(slot, value);
+    }
+
+    private Node lambda(List<AstNode> contents) throws LispException {
+        if (contents.size() < 2)
+            throw new LispException("Lambda missing body");
+
+        AstNode lambdaSpec = contents.get(0);
+        if (!(lambdaSpec instanceof AstNode.Sexp))
+            throw new LispException("Expected argument list, got something else: " + lambdaSpec);
+
+        List<AstNode> functionSpec = ((AstNode.Sexp) lambdaSpec).contents;
+
+        for (AstNode node : functionSpec) {
+            if (!(node instanceof AstNode.Name))
+                throw new LispException("Expected argument list, got something else: " + new AstNode.Sexp(contents));
+        }
+
+        List<String> paramNames = functionSpec
+                .stream()
+                .map(node -> ((AstNode.Name) node).value)
+                .collect(Collectors.toList());
+
+        return lambda(null, paramNames, contents.subList(1, contents.size()));
+    }
+
+    private Node lambda(String name, List<String> paramNames, List<AstNode> body) throws LispException {
+        Scope outer = scope;
+
+        try {
+            Node.FunctionBody code = analyzeFunction(outer, paramNames, body);
+
+            return new Node.Lambda(name, paramNames, body, code,
+                    scope.captureNames.toArray(new String[0]),
+                    scope.captureSources.toArray(new Node[0]),
+                    interpreter.globalFrame);
+        } finally {
+            scope = outer;
+        }
+    }
+
+    private Node let(String name, List<AstNode> contents, boolean tail) throws LispException {
+        if (contents.size() < 2)
+            throw new LispException("Let clause missing pairs or body");
+
+        AstNode rawPairs = contents.get(0);
+
+        if (!(rawPairs instanceof AstNode.Sexp))
+            throw new LispException("Expected a list of binding pairs in let clause, got something else: " + rawPairs);
+
+        List<AstNode> pairs = ((AstNode.Sexp) rawPairs).contents;
+        boolean sequential = name.equals("let*");
+        Scope outer = scope;
+        Scope inner = new Scope(outer, false);
+        Node[] values = new Node[pairs.size()];
+
+        try {
+            for (int i = 0; i < pairs.size(); ++i) {
+                AstNode rawPair = pairs.get(i);
+
+                if (!(rawPair instanceof AstNode.Sexp))
+                    throw new LispException("Expected a binding pair, got something else: " + rawPair);
+
+                AstNode.Sexp pair = (AstNode.Sexp) rawPair;
+
+                if (pair.contents.size() != 2)
+                    throw new LispException("Expected identifier-value pair, got some other number of values");
+
+                AstNode rawName = pair.contents.get(0);
+                if (!(rawName instanceof AstNode.Name))
+                    throw new LispException("Expected name, got something else: " + rawName);
+
+                // let* values run in the new frame and can see the bindings before them; let values run outside it
+                scope = sequential ? inner : outer;
+                values[i] = block(pair.contents.get(1));
+
+                String varName = ((AstNode.Name) rawName).value;
+                inner.declare(varName, isCaptured(varName, contents, false) && isAssigned(varName, contents));
+            }
+
+            scope = inner;
+            Node[] body = analyzeBody(contents.subList(1, contents.size()), tail);
+
+            return new Node.Let(sequential, inner.slotNames(), inner.boxedSlots(), values, body);
+        } finally {
+            scope = outer;
+        }
+    }
+
+    private Node set(List<AstNode> contents) throws LispException {
+        if (contents.size() != 2)
+            throw new LispException("set! has the wrong number of arguments");
+
+        AstNode rawName = contents.get(0);
+
+        if (!(rawName instanceof AstNode.Name))
+            throw new LispException("Expected identifier passed to set!");
+
+        String name = ((AstNode.Name) rawName).value;
+        Node value = block(contents.get(1));
+
+        Address address = resolve(name, scope);
+        if (address == null)
+            return new Node.GlobalSet(name, value, interpreter.globalFrame);
+        else if (address.boxed)
+            return new Node.BoxSet(address.depth, address.slot, value);
+        else
+            return new Node.LocalSet(address.depth, address.slot, value);
+    }
+
+    private Node if_(List<AstNode> contents, boolean tail) throws LispException {
+        if (contents.size() != 3)
+            throw new LispException("If expression must have exactly 3 arguments");
+
+        Node condition = block(contents.get(0));
+        Node then = block(contents.get(1), tail);
+        Node otherwise = block(contents.get(2), tail);
+        LispObject value = constant(condition);
+
+        if (value == null)
+            return new Node.If(condition, then, otherwise);
+
+        if (Node.isFalse(value))
+            return fold(folded(otherwise), new Node.If(original(condition), then, original(otherwise)),
+                    new Node[]{condition, otherwise}, null, null);
+        else
+            return fold(folded(then), new Node.If(original(condition), original(then), otherwise),
+                    new Node[]{condition, then}, null, null);
+    }
+
+    private Node whenUnless(String name, List<AstNode> contents, boolean tail) throws LispException {
+        if (contents.size() < 2)
+            throw new LispException((name.equals("when") ? "When" : "Unless") + " expression must have two or more arguments");
+
+        return new Node.WhenUnless(name.equals("when"), block(contents.get(0)), blocks(contents.subList(1, contents.size()), tail));
+    }
+
+    private Node cond(List<AstNode> contents, boolean tail) throws LispException {
+        if (contents.size() == 0)
+            throw new LispException("Encountered a disappointing lack of arguments in cond");
+
+        Node[] tests = new Node[contents.size()];
+        Node[][] bodies = new Node[contents.size()][];
+
+        for (int i = 0; i < contents.size(); ++i) {
+            AstNode node = contents.get(i);
+
+            if (!(node instanceof AstNode.Sexp))
+                throw new LispException("Cond expects Sexps");
+
+            List<AstNode> clause = ((AstNode.Sexp) node).contents;
+
+            if (clause.size() == 0)
+                throw new LispException("Encountered blank thing in cond list thing");
+
+            if (clause.get(0) instanceof AstNode.Name
+                    && ((AstNode.Name) clause.get(0)).value.equals("else")) {
+                if (i != contents.size() - 1)
+                    throw new LispException("Else must be the last clause in a cond block");
+
+                tests[i] = null;
+            } else {
+                tests[i] = block(clause.get(0));
+            }
+
+            bodies[i] = blocks(clause.subList(1, clause.size()), tail);
+        }
+
+        return foldCond(tests, bodies);
+    }
+
+    /**
+     * Drops the clauses of a cond whose tests are constantly false, and everything after the first one whose test is
+     * constantly true.
+     */
+    private static Node foldCond(Node[] tests, Node[][] bodies) {
+        List<Node> keptTests = new ArrayList<>();
+        List<Node[]> keptBodies = new ArrayList<>();
+        List<Node> folds = new ArrayList<>();
+
+        for (int i = 0; i < tests.length; ++i) {
+            LispObject value = tests[i] == null ? null : constant(tests[i]);
+
+            if (value == null) {
+                keptTests.add(tests[i]);
+                keptBodies.add(bodies[i]);
+                continue;
+            }
+
+            folds.add(tests[i]);
+            if (Node.isFalse(value))
+                continue;
+
+            // A clause without a body results in the test's value; otherwise, it can become the else clause
+            keptTests.add(bodies[i].length == 0 ? new Node.Literal(value) : null);
+            keptBodies.add(bodies[i]);
+            break;
+        }
+
+        if (folds.isEmpty())
+            return new Node.Cond(tests, bodies);
+
+        Node[] originalTests = new Node[tests.length];
+        for (int i = 0; i < tests.length; ++i)
+            originalTests[i] = tests[i] == null ? null : original(tests[i]);
+
+        return fold(new Node.Cond(keptTests.toArray(new Node[0]), keptBodies.toArray(new Node[0][])),
+                new Node.Cond(originalTests, bodies), folds.toArray(new Node[0]), null, null);
+    }
+
+    private Node quote(List<AstNode> contents) throws LispException {
+        if (contents.size() != 1) {
+            throw new LispException("Arity mismatch: expected 1 argument, got " + contents.size() + " for function quote");
+        }
+
+        AstNode content = contents.get(0);
+
+        if (content instanceof AstNode.Name || content instanceof AstNode.Sexp) {
+            try {
+                // Quoted data is immutable, so the same LispObject can be the result every time
+                return new Node.Literal(interpreter.processQuotedObj(content));
+            } catch (LispException e) {
+                // Not quotable, which is reported when the quote runs
+                return new Node.Quote(content, interpreter);
+            }
+        } else {
+            return analyze(content);
+        }
+    }
+}
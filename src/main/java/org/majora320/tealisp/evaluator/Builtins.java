@@ -1,197 +1,257 @@
 package org.majora320.tealisp.evaluator;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.function.BiFunction;
+import java.util.HashMap;
+import java.util.Map;
 
 public class Builtins extends JavaInterface {
+    private static final Map<String, NativeFunction> functions = new HashMap<>();
+
+    static {
+        arithmetic("+", 0, (a, b) -> a + b, (a, b) -> a + b);
+        arithmetic("-", (a, b) -> a - b, (a, b) -> a - b);
+        arithmetic("*", 1, (a, b) -> a * b, (a, b) -> a * b);
+        arithmetic("/", (a, b) -> a / b, (a, b) -> a / b);
+
+        comparison(">", (a, b) -> a > b, (a, b) -> a > b);
+        comparison("<", (a, b) -> a < b, (a, b) -> a < b);
+        // Compares doubles the way Double.equals does, like it always has
+        comparison("=", (a, b) -> a == b, (a, b) -> Double.compare(a, b) == 0);
+        comparison("!=", (a, b) -> a != b, (a, b) -> Double.compare(a, b) != 0);
+        comparison(">=", (a, b) -> a >= b, (a, b) -> a >= b);
+        comparison("<=", (a, b) -> a <= b, (a, b) -> a <= b);
+
+        // Symbols from Lisp code are interned, so this is usually decided by the identity check
+        add(NativeFunction.of("symbol=?", TypeTag.SYMBOL, TypeTag.SYMBOL, (a, b) -> LispObject.Boolean.valueOf(a == b || a.equals(b))).pure());
+        add(NativeFunction.variadic("string=?", new int[]{TypeTag.STRING}, TypeTag.STRING, params -> {
+            String base = ((LispObject.String) params[0]).getValue();
+
+            for (int i = 1; i < params.length; ++i) {
+                if (!((LispObject.String) params[i]).getValue().equals(base))
+                    return LispObject.FALSE;
+            }
+
+            return LispObject.TRUE;
+        }).pure());
+
+        add(NativeFunction.of("cons", TypeTag.ANY, TypeTag.LIST, (a, b) -> ((LispObject.List) b).cons(a)).pure());
+        add(NativeFunction.of("car", TypeTag.LIST, a -> ((LispObject.List) a).car()).pure());
+        add(NativeFunction.of("cdr", TypeTag.LIST, a -> ((LispObject.List) a).cdr()).pure());
+        add(NativeFunction.variadic("list", new int[]{}, TypeTag.ANY, LispObject.List::of).pure());
+        add(NativeFunction.of("empty?", TypeTag.LIST, a -> LispObject.Boolean.valueOf(((LispObject.List) a).isEmpty())).pure());
+        add(NativeFunction.of("not", TypeTag.BOOLEAN, a -> LispObject.Boolean.valueOf(!((LispObject.Boolean) a).getValue())).pure());
+        add(NativeFunction.of("void", () -> LispObject.VOID));
+
+        add(NativeFunction.variadic("int-vector", new int[]{}, TypeTag.INTEGER, Vectors::intVector));
+        add(NativeFunction.variadic("double-vector", new int[]{}, TypeTag.NUMBER, Vectors::doubleVector));
+        add(NativeFunction.variadic("make-int-vector", new int[]{TypeTag.INTEGER}, TypeTag.INTEGER, Vectors::makeIntVector));
+        add(NativeFunction.variadic("make-double-vector", new int[]{TypeTag.INTEGER}, TypeTag.NUMBER, Vectors::makeDoubleVector));
+        add(NativeFunction.of("vector-length", TypeTag.VECTOR, a -> LispObject.Integer.valueOf(((LispObject.Vector) a).length())));
+        add(NativeFunction.of("vector-ref", TypeTag.VECTOR, TypeTag.INTEGER, Vectors::ref));
+        add(NativeFunction.of("vector-set!", TypeTag.VECTOR, TypeTag.INTEGER, TypeTag.NUMBER, Vectors::set));
+        add(NativeFunction.of("vector-slice", TypeTag.VECTOR, TypeTag.INTEGER, TypeTag.INTEGER, Vectors::slice));
+        add(NativeFunction.of("vector->list", TypeTag.VECTOR, Vectors::toList));
+        add(NativeFunction.of("vector+", TypeTag.VECTOR, TypeTag.VECTOR | TypeTag.NUMBER,
+                (a, b) -> Vectors.elementwise(Vectors.Op.ADD, a, b)));
+        add(NativeFunction.of("vector-", TypeTag.VECTOR, TypeTag.VECTOR | TypeTag.NUMBER,
+                (a, b) -> Vectors.elementwise(Vectors.Op.SUBTRACT, a, b)));
+        add(NativeFunction.of("vector*", TypeTag.VECTOR, TypeTag.VECTOR | TypeTag.NUMBER,
+                (a, b) -> Vectors.elementwise(Vectors.Op.MULTIPLY, a, b)));
+        add(NativeFunction.of("vector/", TypeTag.VECTOR, TypeTag.VECTOR | TypeTag.NUMBER,
+                (a, b) -> Vectors.elementwise(Vectors.Op.DIVIDE, a, b)));
+        add(NativeFunction.of("vector-dot", TypeTag.VECTOR, TypeTag.VECTOR, Vectors::dot));
+        add(NativeFunction.of("vector-sum", TypeTag.VECTOR, Vectors::sum));
+        add(NativeFunction.of("vector-min", TypeTag.VECTOR, Vectors::min));
+        add(NativeFunction.of("vector-max", TypeTag.VECTOR, Vectors::max));
+
+        add(NativeFunction.of("make-hash", () -> new LispObject.HashTable()));
+        add(NativeFunction.variadic("hash-ref", new int[]{TypeTag.HASH_TABLE, TypeTag.ANY}, TypeTag.ANY, params -> {
+            if (params.length > 3)
+                throw new LispException("Arity mismatch: expected 2 or 3 parameters, got " + params.length
+                        + " for function hash-ref");
+
+            LispObject value = ((LispObject.HashTable) params[0]).get(params[1]);
+
+            if (value != null)
+                return value;
+            if (params.length == 3)
+                return params[2];
+            throw new LispException("Key not found: " + params[1]);
+        }));
+        add(NativeFunction.of("hash-has-key?", TypeTag.HASH_TABLE, TypeTag.ANY,
+                (table, key) -> LispObject.Boolean.valueOf(((LispObject.HashTable) table).get(key) != null)));
+        add(NativeFunction.of("hash-set!", TypeTag.HASH_TABLE, TypeTag.ANY, TypeTag.ANY, (table, key, value) -> {
+            ((LispObject.HashTable) table).put(key, value);
+            return LispObject.VOID;
+        }));
+        add(NativeFunction.of("hash-remove!", TypeTag.HASH_TABLE, TypeTag.ANY, (table, key) -> {
+            ((LispObject.HashTable) table).remove(key);
+            return LispObject.VOID;
+        }));
+        add(NativeFunction.of("hash-count", TypeTag.HASH_TABLE,
+                table -> LispObject.Integer.valueOf(((LispObject.HashTable) table).size())));
+        add(NativeFunction.of("hash-keys", TypeTag.HASH_TABLE, table -> hashEntries((LispObject.HashTable) table, true, false)));
+        add(NativeFunction.of("hash-values", TypeTag.HASH_TABLE, table -> hashEntries((LispObject.HashTable) table, false, true)));
+        add(NativeFunction.of("hash->list", TypeTag.HASH_TABLE, table -> hashEntries((LispObject.HashTable) table, true, true)));
+    }
+
+    /**
+     * Whether `function` is one of these builtins, as opposed to a function of the same name from another interface.
+     */
+    static boolean isBuiltin(LispObject.JavaFunction function) {
+        return function.nativeFunction != null && function.nativeFunction == functions.get(function.name);
+    }
+
+    private static void add(NativeFunction function) {
+        functions.put(function.getName(), function);
+    }
+
+    /**
+     * The arithmetic and comparison kernels take these instead of BiFunctions, so nothing gets boxed.
+     */
+    private interface IntOp {
+        int apply(int a, int b);
+    }
+
+    private interface DoubleOp {
+        double apply(double a, double b);
+    }
+
+    private interface IntTest {
+        boolean test(int a, int b);
+    }
+
+    private interface DoubleTest {
+        boolean test(double a, double b);
+    }
+
+    /**
+     * Registers an arithmetic function that folds any number of parameters into `identity`, e.g. (+) is 0. Calls with
+     * two parameters skip the fold.
+     */
+    private static void arithmetic(String name, int identity, IntOp intOp, DoubleOp doubleOp) {
+        add(NativeFunction.variadic(name, new int[]{}, TypeTag.NUMBER,
+                params -> reduceNumber(params, 0, null, identity, intOp, doubleOp),
+                (a, b) -> applyNumber(a, b, intOp, doubleOp)).pure());
+    }
+
+    /**
+     * Registers an arithmetic function that folds the rest of its parameters into the first one, which is required.
+     */
+    private static void arithmetic(String name, IntOp intOp, DoubleOp doubleOp) {
+        add(NativeFunction.variadic(name, new int[]{TypeTag.NUMBER}, TypeTag.NUMBER,
+                params -> reduceNumber(params, 1, (LispObject.Number) params[0], 0, intOp, doubleOp),
+                (a, b) -> applyNumber(a, b, intOp, doubleOp)).pure());
+    }
+
+    private static void comparison(String name, IntTest intTest, DoubleTest doubleTest) {
+        add(NativeFunction.variadic(name, new int[]{TypeTag.NUMBER}, TypeTag.NUMBER,
+                params -> reduceCompare(params, intTest, doubleTest),
+                (a, b) -> LispObject.Boolean.valueOf(compare(a, b, intTest, doubleTest))).pure());
+    }
+
     @Override
     public boolean isSupportedFunction(String name) {
-        switch (name) {
-            case "+":
-            case "-":
-            case "*":
-            case "/":
-            case ">":
-            case "<":
-            case "=":
-            case ">=":
-            case "<=":
-            case "symbol=?":
-            case "string=?":
-            case "empty?":
-            case "cons":
-            case "car":
-            case "cdr":
-            case "list":
-            case "not":
-            case "void":
-                return true;
-            default:
-                return false;
-        }
+        return functions.containsKey(name);
+    }
+
+    @Override
+    public NativeFunction getNativeFunction(String name) {
+        return functions.get(name);
     }
 
     @Override
     public LispObject runFunction(String name, LispObject[] params, StackFrame frame) throws LispException {
-        switch (name) {
-            case "+":
-                checkParams("+", params, new Class[]{LispObject.Number.class}, true);
-
-                return mapReduceNumber(params, new LispObject.Integer(0), (a, b) -> a + b, (a, b) -> a + b);
-            case "-":
-                checkParams("+", params, new Class[]{LispObject.Number.class}, true);
-
-                return mapReduceNumber(
-                        Arrays.asList(params)
-                                .subList(1, params.length)
-                                .toArray(new LispObject[]{}),
-                        (LispObject.Number) params[0],
-                        (a, b) -> a - b,
-                        (a, b) -> a - b
-                );
-            case "*":
-                checkParams("*", params, new Class[]{LispObject.Number.class}, true);
-
-                return mapReduceNumber(params, new LispObject.Integer(1), (a, b) -> a * b, (a, b) -> a * b);
-            case "/":
-                checkParams("/", params, new Class[]{LispObject.Number.class}, true);
-
-                return mapReduceNumber(
-                        Arrays.asList(params)
-                                .subList(1, params.length)
-                                .toArray(new LispObject[]{}),
-                        (LispObject.Number) params[0],
-                        (a, b) -> a / b,
-                        (a, b) -> a / b
-                );
-            case ">":
-                checkParams(">", params, new Class[]{LispObject.Number.class, LispObject.Number.class}, true);
-                return mapReduceCompare(params, (a, b) -> a > b, (a, b) -> a > b);
-            case "<":
-                checkParams("<", params, new Class[]{LispObject.Number.class, LispObject.Number.class}, true);
-                return mapReduceCompare(params, (a, b) -> a < b, (a, b) -> a < b);
-            case "=":
-                checkParams("=", params, new Class[]{LispObject.Number.class, LispObject.Number.class}, true);
-                return mapReduceCompare(params, Integer::equals, Double::equals);
-            case "!=":
-                checkParams("!=", params, new Class[]{LispObject.Number.class, LispObject.Number.class}, true);
-                return mapReduceCompare(params, (a, b) -> !a.equals(b), (a, b) -> !a.equals(b));
-            case ">=":
-                checkParams(">=", params, new Class[]{LispObject.Number.class, LispObject.Number.class}, true);
-                return mapReduceCompare(params, (a, b) -> a >= b, (a, b) -> a >= b);
-            case "<=":
-                checkParams("<=", params, new Class[]{LispObject.Number.class, LispObject.Number.class}, true);
-                return mapReduceCompare(params, (a, b) -> a <= b, (a, b) -> a <= b);
-            case "symbol=?":
-                checkParams("symbol=?", params, new Class[]{LispObject.Symbol.class, LispObject.Symbol.class}, false);
-                return new LispObject.Boolean(((LispObject.Symbol) params[0]).getValue().equals(((LispObject.Symbol) params[1]).getValue()));
-            case "string=?":
-                checkParams("string=?", params, new Class[]{LispObject.String.class, LispObject.String.class}, true);
-                boolean allEqual = true;
-                String base = ((LispObject.String) params[0]).getValue();
-
-                for (int i = 1; i < params.length; ++i) {
-                    if (!((LispObject.String) params[i]).getValue().equals(base))
-                        allEqual = false;
-                }
-
-                return new LispObject.Boolean(allEqual);
-            case "cons":
-                checkParams("cons", params, new Class[]{LispObject.class, LispObject.List.class}, false);
-                List<LispObject> res = new ArrayList<>();
-                res.add(params[0]);
-                res.addAll(((LispObject.List) params[1]).getValue());
-                return new LispObject.List(res);
-            case "car":
-                checkParams("car", params, new Class[]{LispObject.List.class}, false);
-                return ((LispObject.List) params[0]).getValue().get(0);
-            case "cdr":
-                checkParams("car", params, new Class[]{LispObject.List.class}, false);
-                List<LispObject> list = ((LispObject.List) params[0]).getValue();
-                return new LispObject.List(list.subList(1, list.size()));
-            case "list":
-                checkParams("list", params, new Class[]{LispObject.class}, true);
-                return new LispObject.List(Arrays.asList(params));
-            case "empty?":
-                checkParams("empty?", params, new Class[]{LispObject.List.class}, false);
-                return new LispObject.Boolean(((LispObject.List) params[0]).getValue().isEmpty());
-            case "not":
-                checkParams("not", params, new Class[]{LispObject.Boolean.class}, false);
-                return new LispObject.Boolean(!((LispObject.Boolean) params[0]).getValue());
-            case "void":
-                checkParams("void", params, new Class[]{}, false);
-                return new LispObject.Void();
-            default:
-                return null;
+        NativeFunction function = functions.get(name);
+
+        if (function == null)
+            return null;
+
+        return function.call(params);
+    }
+
+    /**
+     * Lists the keys, the values, or (key value) pairs of a hash table, in no particular order.
+     */
+    private static LispObject.List hashEntries(LispObject.HashTable table, boolean keys, boolean values) {
+        OpenHashMap map = table.map();
+        LispObject[] res = new LispObject[map.size()];
+        int n = 0;
+
+        for (int i = 0; i < map.capacity(); ++i) {
+            LispObject key = map.keyAt(i);
+
+            if (key == null)
+                continue;
+
+            if (keys && values)
+                res[n++] = LispObject.List.of(key, map.valueAt(i));
+            else
+                res[n++] = keys ? key : map.valueAt(i);
         }
+
+        return LispObject.List.wrap(res);
     }
 
-    private LispObject.Number mapReduceNumber(
+    private static LispObject.Number applyNumber(LispObject a, LispObject b, IntOp intOp, DoubleOp doubleOp) {
+        if (a.typeTag == TypeTag.INTEGER && b.typeTag == TypeTag.INTEGER)
+            return LispObject.Integer.valueOf(intOp.apply(((LispObject.Integer) a).intValue(), ((LispObject.Integer) b).intValue()));
+
+        return new LispObject.Double(doubleOp.apply(((LispObject.Number) a).doubleValue(), ((LispObject.Number) b).doubleValue()));
+    }
+
+    /**
+     * Folds the numbers in params, starting from index `start`, into `init`, or into `identity` if `init` is null. Stays
+     * in int arithmetic until the first double.
+     */
+    private static LispObject.Number reduceNumber(
             LispObject[] params,
+            int start,
             LispObject.Number init,
-            BiFunction<Integer, Integer, Integer> intFn,
-            BiFunction<Double, Double, Double> doubleFn
+            int identity,
+            IntOp intOp,
+            DoubleOp doubleOp
     ) {
-        boolean isDouble = false;
-        int intRes = 0;
-        double doubleRes = 0;
-
-        if (init instanceof LispObject.Integer) {
-            intRes = ((LispObject.Integer) init).getValue();
-            isDouble = false;
-        } else if (init instanceof LispObject.Double) {
-            doubleRes = ((LispObject.Double) init).getValue();
-            isDouble = true;
-        }
+        int i = start;
+        double doubleRes;
+
+        if (init == null || init.typeTag == TypeTag.INTEGER) {
+            int intRes = init == null ? identity : ((LispObject.Integer) init).intValue();
 
+            for (; i < params.length; ++i) {
+                LispObject param = params[i];
 
-        for (LispObject param : params) {
-            if (param instanceof LispObject.Integer) {
-                if (isDouble)
-                    doubleRes = doubleFn.apply(doubleRes, (double) ((LispObject.Integer) param).getValue());
-                else
-                    intRes = intFn.apply(intRes, ((LispObject.Integer) param).getValue());
-            } else {
-                if (!isDouble) {
-                    isDouble = true;
-                    doubleRes = intRes;
-                }
-                doubleRes = doubleFn.apply(doubleRes, ((LispObject.Double) param).getValue());
+                if (param.typeTag != TypeTag.INTEGER)
+                    break;
+                intRes = intOp.apply(intRes, ((LispObject.Integer) param).intValue());
             }
+
+            if (i == params.length)
+                return LispObject.Integer.valueOf(intRes);
+
+            doubleRes = intRes;
+        } else {
+            doubleRes = init.doubleValue();
         }
 
-        if (isDouble)
-            return new LispObject.Double(doubleRes);
-        else
-            return new LispObject.Integer(intRes);
+        for (; i < params.length; ++i)
+            doubleRes = doubleOp.apply(doubleRes, ((LispObject.Number) params[i]).doubleValue());
+
+        return new LispObject.Double(doubleRes);
     }
 
-    private LispObject.Boolean mapReduceCompare(
-            LispObject[] params,
-            BiFunction<Integer, Integer, Boolean> intFn,
-            BiFunction<Double, Double, Boolean> doubleFn
-    ) {
-        boolean res = true;
+    private static boolean compare(LispObject a, LispObject b, IntTest intTest, DoubleTest doubleTest) {
+        if (a.typeTag == TypeTag.INTEGER && b.typeTag == TypeTag.INTEGER)
+            return intTest.test(((LispObject.Integer) a).intValue(), ((LispObject.Integer) b).intValue());
 
-        // Delicious Spaghetti
-        for (int i = 0; i < params.length - 1; ++i) {
-            if (params[i] instanceof LispObject.Integer && params[i + 1] instanceof LispObject.Integer) {
-                res = intFn.apply(((LispObject.Integer) params[i]).getValue(), ((LispObject.Integer) params[i + 1]).getValue());
-            } else if (params[i] instanceof LispObject.Integer && params[i + 1] instanceof LispObject.Double) {
-                res = doubleFn.apply((double) ((LispObject.Integer) params[i]).getValue(), ((LispObject.Double) params[i + 1]).getValue());
-            } else if (params[i] instanceof LispObject.Double && params[i + 1] instanceof LispObject.Integer) {
-                res = doubleFn.apply(((LispObject.Double) params[i]).getValue(), (double) ((LispObject.Integer) params[i + 1]).getValue());
-            } else if (params[i] instanceof LispObject.Double && params[i + 1] instanceof LispObject.Double) {
-                res = doubleFn.apply(((LispObject.Double) params[i]).getValue(), ((LispObject.Double) params[i + 1]).getValue());
-            }
+        return doubleTest.test(((LispObject.Number) a).doubleValue(), ((LispObject.Number) b).doubleValue());
+    }
 
-            if (!res)
-                return new LispObject.Boolean(false);
+    private static LispObject.Boolean reduceCompare(LispObject[] params, IntTest intTest, DoubleTest doubleTest) {
+        for (int i = 0; i < params.length - 1; ++i) {
+            if (!compare(params[i], params[i + 1], intTest, doubleTest))
+                return LispObject.FALSE;
         }
 
-        return new LispObject.Boolean(true);
+        return LispObject.TRUE;
     }
-
 }
@@ -0,0 +1,490 @@
+package org.majora320.tealisp.evaluator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.majora320.tealisp.evaluator.ClassFile.*;
+
+/**
+ * Compiles a Node.FunctionBody into a subclass of CompiledFunction, for the TIERED execution mode. Each Node type the
+ * compiler knows becomes the straight-line bytecode equivalent of its execute method, so the JIT sees one method per
+ * function instead of a tree of virtual calls. Nodes it doesn't know, such as Lambda, are kept as constants and run
+ * through their execute method, so any body can be compiled.
+ * <p>
+ * The classes are defined by a ClassLoader belonging to this compiler, so they can be unloaded along with the
+ * Interpreter.
+ */
+final class BytecodeCompiler {
+    private static final String GENERATED_PACKAGE = "org.majora320.tealisp.generated.";
+
+    private static final String BASE = "org/majora320/tealisp/evaluator/CompiledFunction";
+    private static final String LISP_OBJECT = "org/majora320/tealisp/evaluator/LispObject";
+    private static final String STACK_FRAME = "org/majora320/tealisp/evaluator/StackFrame";
+    private static final String INTERPRETER = "org/majora320/tealisp/evaluator/Interpreter";
+
+    private static final String OBJ = "L" + LISP_OBJECT + ";";
+    private static final String FRAME = "L" + STACK_FRAME + ";";
+    private static final String INTERP = "L" + INTERPRETER + ";";
+    private static final String STRING = "Ljava/lang/String;";
+
+    private final Interpreter interpreter;
+    private final Loader loader = new Loader();
+    private int classCount;
+
+    BytecodeCompiler(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    private static final class Loader extends ClassLoader {
+        Loader() {
+            super(CompiledFunction.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Compiles `body`, for a function called `name` (which is only used in the class name, and can be null). Returns
+     * null if the body is too large for a class file.
+     */
+    CompiledFunction compile(Node.FunctionBody body, String name) {
+        String className = GENERATED_PACKAGE + "Function$" + sanitize(name) + "$" + classCount++;
+        ClassFile file = new ClassFile(className.replace('.', '/'), BASE);
+        Method method = new Method(file, body);
+
+        byte[] bytes;
+        try {
+            ClassFile.Code init = file.method(ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", 2);
+            init.aload(0);
+            init.aload(1);
+            init.invoke(INVOKESPECIAL, BASE, "<init>", "([Ljava/lang/Object;)V");
+            init.op(RETURN, 0);
+            init.resolve(Collections.<Label>emptyList());
+
+            method.compile();
+            bytes = file.toBytes();
+        } catch (TooLargeException e) {
+            return null;
+        }
+
+        try {
+            Class<?> compiled = loader.define(className, bytes);
+            return (CompiledFunction) compiled.getConstructor(Object[].class)
+                    .newInstance((Object) method.constants.toArray());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Couldn't load compiled function " + className, e);
+        }
+    }
+
+    private static String sanitize(String name) {
+        if (name == null)
+            return "lambda";
+
+        StringBuilder res = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); ++i) {
+            char c = name.charAt(i);
+            res.append(c < 128 && Character.isLetterOrDigit(c) ? c : '_');
+        }
+
+        return res.toString();
+    }
+
+    /**
+     * The state of compiling one body into execute(StackFrame). Local 1 is the frame argument; the constants array and
+     * the Interpreter are loaded into locals once at the start.
+     */
+    private final class Method {
+        private final Node.FunctionBody body;
+        private final ClassFile.Code code;
+        private final List<Object> constants = new ArrayList<>();
+        private final List<Label> labels = new ArrayList<>();
+        private final int constantsLocal;
+        private final int interpreterLocal;
+
+        Method(ClassFile file, Node.FunctionBody body) {
+            this.body = body;
+            this.code = file.method(ACC_PUBLIC, "execute", "(" + FRAME + ")" + OBJ, 2);
+            this.constantsLocal = code.newLocal();
+            this.interpreterLocal = code.newLocal();
+        }
+
+        void compile() throws TooLargeException {
+            code.aload(0);
+            code.field(GETFIELD, BASE, "constants", "[Ljava/lang/Object;");
+            code.astore(constantsLocal);
+            loadConstant(interpreter, INTERPRETER);
+            code.astore(interpreterLocal);
+
+            if (anyBoxed(body.boxed, 0)) {
+                loadConstant(body.boxed, "[Z");
+                code.pushInt(0);
+                code.aload(1);
+                code.invoke(INVOKESTATIC, BASE, "boxSlots", "([ZI" + FRAME + ")V");
+            }
+
+            compileBody(body.body, 1);
+            code.op(ARETURN, -1);
+            code.resolve(labels);
+        }
+
+        private Label newLabel() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        private void loadConstant(Object value, String type) {
+            code.aload(constantsLocal);
+            code.pushInt(constants.size());
+            code.op(AALOAD, -1);
+            if (!type.equals("java/lang/Object"))
+                code.type(CHECKCAST, type);
+
+            constants.add(value);
+        }
+
+        private void getStatic(String name, String className) {
+            code.field(GETSTATIC, LISP_OBJECT, name, "L" + LISP_OBJECT + "$" + className + ";");
+        }
+
+        private void helper(String name, String descriptor) {
+            code.invoke(INVOKESTATIC, BASE, name, descriptor);
+        }
+
+        /**
+         * Compiles the nodes of a body, leaving the value of the last one on the stack, or null if it is empty.
+         */
+        private void compileBody(Node[] nodes, int frame) {
+            if (nodes.length == 0) {
+                code.op(ACONST_NULL, 1);
+                return;
+            }
+
+            for (int i = 0; i < nodes.length; ++i) {
+                compile(nodes[i], frame);
+
+                if (i != nodes.length - 1)
+                    code.op(POP, -1);
+            }
+        }
+
+        /**
+         * Compiles `node`, leaving its value on the stack. `frame` is the local holding the StackFrame it runs in.
+         */
+        private void compile(Node node, int frame) {
+            if (node instanceof Node.Literal) {
+                loadConstant(((Node.Literal) node).value, LISP_OBJECT);
+            } else if (node instanceof Node.GlobalRef) {
+                Node.GlobalRef ref = (Node.GlobalRef) node;
+                loadConstant(ref.globals, STACK_FRAME);
+                code.pushString(ref.name);
+                helper("global", "(" + FRAME + STRING + ")" + OBJ);
+            } else if (node instanceof Node.LocalRef) {
+                Node.LocalRef ref = (Node.LocalRef) node;
+                variable(frame, ref.depth, ref.slot);
+                code.pushString(ref.name);
+                helper("local", "(" + FRAME + "II" + STRING + ")" + OBJ);
+            } else if (node instanceof Node.BoxRef) {
+                Node.BoxRef ref = (Node.BoxRef) node;
+                variable(frame, ref.depth, ref.slot);
+                code.pushString(ref.name);
+                helper("boxed", "(" + FRAME + "II" + STRING + ")" + OBJ);
+            } else if (node instanceof Node.SlotRef) {
+                Node.SlotRef ref = (Node.SlotRef) node;
+                variable(frame, ref.depth, ref.slot);
+                helper("slot", "(" + FRAME + "II)" + OBJ);
+            } else if (node instanceof Node.NamedCall) {
+                Node.NamedCall call = (Node.NamedCall) node;
+                lookupFunction(call.site);
+                call(call.arguments, frame);
+            } else if (node instanceof Node.Call) {
+                Node.Call call = (Node.Call) node;
+                compile(call.function, frame);
+                call(call.arguments, frame);
+            } else if (node instanceof Node.FunctionRef) {
+                lookupFunction(((Node.FunctionRef) node).site);
+            } else if (node instanceof Node.TailCall) {
+                tailCall((Node.TailCall) node, frame);
+            } else if (node instanceof Node.Define) {
+                Node.Define define = (Node.Define) node;
+                code.aload(frame);
+                code.pushString(define.name);
+                compile(define.value, frame);
+                helper("define", "(" + FRAME + STRING + OBJ + ")" + OBJ);
+            } else if (node instanceof Node.LocalDefine) {
+                Node.LocalDefine define = (Node.LocalDefine) node;
+                code.aload(frame);
+                code.pushInt(define.slot);
+                compile(define.value, frame);
+                helper("localDefine", "(" + FRAME + "I" + OBJ + ")" + OBJ);
+            } else if (node instanceof Node.BoxDefine) {
+                Node.BoxDefine define = (Node.BoxDefine) node;
+                code.aload(frame);
+                code.pushInt(define.slot);
+                compile(define.value, frame);
+                helper("boxDefine", "(" + FRAME + "I" + OBJ + ")" + OBJ);
+            } else if (node instanceof Node.GlobalSet) {
+                Node.GlobalSet set = (Node.GlobalSet) node;
+                loadConstant(set.globals, STACK_FRAME);
+                code.pushString(set.name);
+                compile(set.value, frame);
+                helper("globalSet", "(" + FRAME + STRING + OBJ + ")" + OBJ);
+            } else if (node instanceof Node.LocalSet) {
+                Node.LocalSet set = (Node.LocalSet) node;
+                variable(frame, set.depth, set.slot);
+                compile(set.value, frame);
+                helper("localSet", "(" + FRAME + "II" + OBJ + ")" + OBJ);
+            } else if (node instanceof Node.BoxSet) {
+                Node.BoxSet set = (Node.BoxSet) node;
+                variable(frame, set.depth, set.slot);
+                compile(set.value, frame);
+                helper("boxSet", "(" + FRAME + "II" + OBJ + ")" + OBJ);
+            } else if (node instanceof Node.If) {
+                Node.If branch = (Node.If) node;
+                Label otherwise = newLabel();
+                Label end = newLabel();
+
+                condition(branch.condition, frame, IFNE, otherwise);
+                compile(branch.then, frame);
+                code.jump(GOTO, end, 0);
+                code.mark(otherwise, false);
+                compile(branch.otherwise, frame);
+                code.mark(end, true);
+            } else if (node instanceof Node.Folded) {
+                Node.Folded folded = (Node.Folded) node;
+                Label original = newLabel();
+                Label end = newLabel();
+
+                loadConstant(folded, "java/lang/Object");
+                helper("isValid", "(Ljava/lang/Object;)Z");
+                code.jump(IFEQ, original, -1);
+                compile(folded.folded, frame);
+                code.jump(GOTO, end, 0);
+                code.mark(original, false);
+                compile(folded.original, frame);
+                code.mark(end, true);
+            } else if (node instanceof Node.WhenUnless) {
+                Node.WhenUnless when = (Node.WhenUnless) node;
+                Label skip = newLabel();
+                Label end = newLabel();
+
+                condition(when.condition, frame, when.runOnTrue ? IFNE : IFEQ, skip);
+                compileBody(when.body, frame);
+                code.jump(GOTO, end, 0);
+                code.mark(skip, false);
+                getStatic("VOID", "Void");
+                code.mark(end, true);
+            } else if (node instanceof Node.Cond) {
+                cond((Node.Cond) node, frame);
+            } else if (node instanceof Node.And) {
+                andOr(((Node.And) node).terms, frame, IFNE, "TRUE");
+            } else if (node instanceof Node.Or) {
+                andOr(((Node.Or) node).terms, frame, IFEQ, "FALSE");
+            } else if (node instanceof Node.Let) {
+                let((Node.Let) node, frame);
+            } else {
+                // Lambda, and Quotes of unquotable data: not worth compiling, since they allocate or throw
+                loadConstant(node, "java/lang/Object");
+                code.aload(frame);
+                helper("execute", "(Ljava/lang/Object;" + FRAME + ")" + OBJ);
+            }
+        }
+
+        private void variable(int frame, int depth, int slot) {
+            code.aload(frame);
+            code.pushInt(depth);
+            code.pushInt(slot);
+        }
+
+        private void lookupFunction(Node.CallSite site) {
+            loadConstant(site, "java/lang/Object");
+            helper("function", "(Ljava/lang/Object;)" + OBJ);
+        }
+
+        /**
+         * With the function on the stack, evaluates `arguments` and calls it.
+         */
+        private void call(Node[] arguments, int frame) {
+            StringBuilder descriptor = new StringBuilder("(").append(OBJ);
+            String name;
+
+            if (arguments.length <= 3) {
+                for (Node argument : arguments) {
+                    compile(argument, frame);
+                    descriptor.append(OBJ);
+                }
+
+                name = "call" + arguments.length;
+            } else {
+                code.pushInt(arguments.length);
+                code.type(ANEWARRAY, LISP_OBJECT);
+
+                for (int i = 0; i < arguments.length; ++i) {
+                    code.op(DUP, 1);
+                    code.pushInt(i);
+                    compile(arguments[i], frame);
+                    code.op(AASTORE, -3);
+                }
+
+                descriptor.append("[").append(OBJ);
+                name = "callN";
+            }
+
+            code.aload(interpreterLocal);
+            code.aload(frame);
+            helper(name, descriptor.append(INTERP).append(FRAME).append(")").append(OBJ).toString());
+        }
+
+        /**
+         * Like Node.TailCall.execute. The scratch slots are at a fixed place in the function's frame, so their index
+         * is a constant here.
+         */
+        private void tailCall(Node.TailCall call, int frame) {
+            int count = call.arguments.length;
+            int base = body.slotNames.length + body.scratchSize - count;
+            int functionFrame = frame;
+
+            compile(call.function, frame);
+
+            if (call.functionDepth != 0) {
+                functionFrame = code.newLocal();
+                code.aload(frame);
+                code.pushInt(call.functionDepth);
+                helper("ancestor", "(" + FRAME + "I)" + FRAME);
+                code.astore(functionFrame);
+            }
+
+            for (int i = 0; i < count; ++i) {
+                code.aload(functionFrame);
+                code.pushInt(base + i);
+                compile(call.arguments[i], frame);
+                helper("setSlot", "(" + FRAME + "I" + OBJ + ")V");
+            }
+
+            code.aload(functionFrame);
+            code.pushInt(base);
+            code.pushInt(count);
+            code.aload(interpreterLocal);
+            helper("tailCall", "(" + OBJ + FRAME + "II" + INTERP + ")" + OBJ);
+        }
+
+        /**
+         * Evaluates `condition` and branches to `target` with `opcode` on the result of isFalse: IFNE jumps if it
+         * is false, IFEQ if it is true.
+         */
+        private void condition(Node condition, int frame, int opcode, Label target) {
+            compile(condition, frame);
+            helper("isFalse", "(" + OBJ + ")Z");
+            code.jump(opcode, target, -1);
+        }
+
+        private void cond(Node.Cond cond, int frame) {
+            Label end = newLabel();
+            boolean hasElse = false;
+            int value = -1;
+
+            for (int i = 0; i < cond.tests.length; ++i) {
+                Node[] clause = cond.bodies[i];
+
+                if (cond.tests[i] == null) {
+                    if (clause.length == 0)
+                        getStatic("VOID", "Void");
+                    else
+                        compileBody(clause, frame);
+
+                    hasElse = true;
+                    break;
+                }
+
+                Label next = newLabel();
+
+                if (clause.length == 0) {
+                    // The clause's value is the test's value, so keep it around
+                    if (value == -1)
+                        value = code.newLocal();
+
+                    compile(cond.tests[i], frame);
+                    code.astore(value);
+                    code.aload(value);
+                    helper("isFalse", "(" + OBJ + ")Z");
+                    code.jump(IFNE, next, -1);
+                    code.aload(value);
+                } else {
+                    condition(cond.tests[i], frame, IFNE, next);
+                    compileBody(clause, frame);
+                }
+
+                code.jump(GOTO, end, 0);
+                code.mark(next, false);
+            }
+
+            if (!hasElse)
+                getStatic("VOID", "Void");
+
+            code.mark(end, true);
+        }
+
+        /**
+         * And and or: each term's value is kept on the stack, and the first one for which isFalse gives the branch
+         * `opcode` is the result. If there are no terms, the result is `empty`.
+         */
+        private void andOr(Node[] terms, int frame, int opcode, String empty) {
+            Label end = newLabel();
+
+            for (int i = 0; i < terms.length; ++i) {
+                compile(terms[i], frame);
+
+                // The last value of an and is the result either way
+                if (opcode == IFNE && i == terms.length - 1)
+                    break;
+
+                code.op(DUP, 1);
+                helper("isFalse", "(" + OBJ + ")Z");
+                code.jump(opcode, end, -1);
+                code.op(POP, -1);
+            }
+
+            if (opcode == IFEQ || terms.length == 0)
+                getStatic(empty, "Boolean");
+
+            code.mark(end, true);
+        }
+
+        private void let(Node.Let let, int frame) {
+            int newFrame = code.newLocal();
+
+            code.aload(frame);
+            loadConstant(let.slotNames, "[Ljava/lang/String;");
+            helper("newFrame", "(" + FRAME + "[Ljava/lang/String;)" + FRAME);
+            code.astore(newFrame);
+
+            for (int i = 0; i < let.values.length; ++i) {
+                code.aload(newFrame);
+                code.pushInt(i);
+                compile(let.values[i], let.sequential ? newFrame : frame);
+                helper(let.boxed[i] ? "setBox" : "setSlot", "(" + FRAME + "I" + OBJ + ")V");
+            }
+
+            if (anyBoxed(let.boxed, let.values.length)) {
+                loadConstant(let.boxed, "[Z");
+                code.pushInt(let.values.length);
+                code.aload(newFrame);
+                helper("boxSlots", "([ZI" + FRAME + ")V");
+            }
+
+            compileBody(let.body, newFrame);
+        }
+    }
+
+    private static boolean anyBoxed(boolean[] boxed, int from) {
+        for (int i = from; i < boxed.length; ++i) {
+            if (boxed[i])
+                return true;
+        }
+
+        return false;
+    }
+}
@@ -0,0 +1,115 @@
+package org.majora320.tealisp.evaluator;
+
+/**
+ * A function body or top-level form compiled for the VirtualMachine: a flat int[] of instructions and a constant
+ * pool. Each instruction is an opcode followed by its operands, all ints; operands named `k` index the constant pool.
+ * <p>
+ * The machine is stack-based, with numbered registers for variables. A call's frame lives on the machine's value
+ * stack: the function being run, then `frameSize` registers (the parameters first, then internal defines, then the
+ * variables of every let in the body, flattened), then up to `maxStack` operands.
+ */
+final class Chunk {
+    // Push constant k
+    static final int CONST = 0;
+    // Push register r; k is the variable's name, for the error if it is undefined
+    static final int LOAD = 1;
+    // Push the value in the Box in register r
+    static final int LOAD_BOX = 2;
+    // Push register r as-is, without unboxing it
+    static final int LOAD_RAW = 3;
+    // The same three for slot i of the running function's closure
+    static final int CAPTURED = 4;
+    static final int CAPTURED_BOX = 5;
+    static final int CAPTURED_RAW = 6;
+    // Push global variable k
+    static final int GLOBAL = 7;
+    // Push what Node.CallSite k refers to
+    static final int FUNCTION = 8;
+    // Pop a value into register r
+    static final int INIT = 9;
+    // Pop a value into a new Box in register r
+    static final int INIT_BOX = 10;
+    // Set register r to null
+    static final int CLEAR = 11;
+    // Wrap the value in register r in a new Box
+    static final int BOX = 12;
+    // Definitions and assignments pop a value, store it and push VOID
+    static final int DEFINE_LOCAL = 13;
+    static final int DEFINE_BOX = 14;
+    static final int DEFINE_GLOBAL = 15;
+    static final int SET_LOCAL = 16;
+    static final int SET_BOX = 17;
+    static final int SET_CAPTURED = 18;
+    static final int SET_CAPTURED_BOX = 19;
+    static final int SET_GLOBAL = 20;
+    static final int POP = 21;
+    static final int DUP = 22;
+    // Jump to absolute position t
+    static final int JUMP = 23;
+    // Pop a value, and jump to t if it is false (or true)
+    static final int JUMP_IF_FALSE = 24;
+    static final int JUMP_IF_TRUE = 25;
+    // Call the function under the top n values with them as the arguments, and push the result
+    static final int CALL = 26;
+    // Like CALL, but replaces the running frame
+    static final int TAIL_CALL = 27;
+    static final int RETURN = 28;
+    // Pop n captured values and push the function made from Node.Lambda k with them
+    static final int CLOSURE = 29;
+    // Push the quoted AstNode k as a LispObject
+    static final int QUOTE = 30;
+    // Jump to t unless Node.Folded k is still valid
+    static final int GUARD = 31;
+
+    private static final String[] NAMES = {
+            "CONST", "LOAD", "LOAD_BOX", "LOAD_RAW", "CAPTURED", "CAPTURED_BOX", "CAPTURED_RAW", "GLOBAL",
+            "FUNCTION", "INIT", "INIT_BOX", "CLEAR", "BOX", "DEFINE_LOCAL", "DEFINE_BOX", "DEFINE_GLOBAL",
+            "SET_LOCAL", "SET_BOX", "SET_CAPTURED", "SET_CAPTURED_BOX", "SET_GLOBAL", "POP", "DUP", "JUMP",
+            "JUMP_IF_FALSE", "JUMP_IF_TRUE", "CALL", "TAIL_CALL", "RETURN", "CLOSURE", "QUOTE", "GUARD"
+    };
+
+    private static final int[] OPERANDS = {
+            1, 2, 2, 1, 2, 2, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 0, 0, 1,
+            1, 1, 1, 1, 0, 2, 1, 2
+    };
+
+    final int[] code;
+    final Object[] constants;
+    final int frameSize;
+    final int maxStack;
+
+    Chunk(int[] code, Object[] constants, int frameSize, int maxStack) {
+        this.code = code;
+        this.constants = constants;
+        this.frameSize = frameSize;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * Lists the instructions, one per line, for debugging.
+     */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        res.append("; frame ").append(frameSize).append(", stack ").append(maxStack).append('\n');
+
+        for (int pc = 0; pc < code.length; ) {
+            int opcode = code[pc];
+            res.append(pc).append('\t').append(NAMES[opcode]);
+
+            for (int i = 1; i <= OPERANDS[opcode]; ++i)
+                res.append(' ').append(code[pc + i]);
+
+            if (opcode == CONST || opcode == GLOBAL || opcode == FUNCTION || opcode == DEFINE_GLOBAL
+                    || opcode == SET_GLOBAL || opcode == QUOTE)
+                res.append("\t; ").append(constants[code[pc + 1]]);
+
+            res.append('\n');
+            pc += 1 + OPERANDS[opcode];
+        }
+
+        return res.toString();
+    }
+}
@@ -0,0 +1,380 @@
+package org.majora320.tealisp.evaluator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.majora320.tealisp.evaluator.Chunk.*;
+
+/**
+ * Compiles analyzed Nodes into Chunks for the VirtualMachine. The Analyzer has already resolved every variable to a
+ * (depth, slot) address; this maps those addresses onto registers. Let frames are never captured (closures copy what
+ * they use), so each let gets a block of registers in the function's frame instead of a frame of its own, and the
+ * blocks of lets that aren't nested share registers.
+ */
+final class ChunkCompiler {
+    private int[] code = new int[64];
+    private int length;
+    private final List<Object> constants = new ArrayList<>();
+    private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+    private int stack;
+    private int maxStack;
+
+    private final boolean inFunction;
+    // The first register of each let the code being compiled is in, innermost last
+    private final List<Integer> lets = new ArrayList<>();
+    // The first register no let is using
+    private int top;
+    private int frameSize;
+
+    private ChunkCompiler(boolean inFunction, int namedSlots) {
+        this.inFunction = inFunction;
+        this.top = namedSlots;
+        this.frameSize = namedSlots;
+    }
+
+    static Chunk compile(Node.FunctionBody body) {
+        // The scratch slots are only for Node.TailCall; the machine passes tail call arguments on the stack
+        ChunkCompiler compiler = new ChunkCompiler(true, body.slotNames.length);
+
+        for (int i = 0; i < body.boxed.length; ++i) {
+            if (body.boxed[i])
+                compiler.emit(BOX, i, 0);
+        }
+
+        compiler.compileBody(body.body);
+        compiler.emit(RETURN, -1);
+        return compiler.finish();
+    }
+
+    static Chunk compileTopLevel(Node node) {
+        ChunkCompiler compiler = new ChunkCompiler(false, 0);
+        compiler.compile(node);
+        compiler.emit(RETURN, -1);
+        return compiler.finish();
+    }
+
+    private Chunk finish() {
+        return new Chunk(Arrays.copyOf(code, length), constants.toArray(), frameSize, maxStack);
+    }
+
+    private void emit(int opcode, int stackChange) {
+        write(opcode);
+        adjust(stackChange);
+    }
+
+    private void emit(int opcode, int operand, int stackChange) {
+        write(opcode);
+        write(operand);
+        adjust(stackChange);
+    }
+
+    private void emit(int opcode, int a, int b, int stackChange) {
+        write(opcode);
+        write(a);
+        write(b);
+        adjust(stackChange);
+    }
+
+    private void write(int value) {
+        if (length == code.length)
+            code = Arrays.copyOf(code, length * 2);
+
+        code[length++] = value;
+    }
+
+    private void adjust(int change) {
+        stack += change;
+        maxStack = Math.max(maxStack, stack);
+    }
+
+    private int constant(Object value) {
+        Integer index = constantIndices.get(value);
+
+        if (index == null) {
+            index = constants.size();
+            constants.add(value);
+            constantIndices.put(value, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Emits a jump with its target left to patch(), and returns where the target goes.
+     */
+    private int jump(int opcode) {
+        emit(opcode, 0, opcode == JUMP ? 0 : -1);
+        return length - 1;
+    }
+
+    private void patch(int at) {
+        code[at] = length;
+    }
+
+    /**
+     * Returns the register for a variable `depth` frames up, or -1 if it is in the function's closure.
+     */
+    private int register(int depth, int slot) {
+        if (depth < lets.size())
+            return lets.get(lets.size() - 1 - depth) + slot;
+        if (inFunction && depth == lets.size())
+            return slot;
+
+        return -1;
+    }
+
+    private void compileBody(Node[] nodes) {
+        if (nodes.length == 0) {
+            emit(CONST, constant(null), 1);
+            return;
+        }
+
+        for (int i = 0; i < nodes.length; ++i) {
+            compile(nodes[i]);
+
+            if (i != nodes.length - 1)
+                emit(POP, -1);
+        }
+    }
+
+    private void compileAll(Node[] nodes) {
+        for (Node node : nodes)
+            compile(node);
+    }
+
+    /**
+     * Compiles `node`, leaving its value on the stack.
+     */
+    private void compile(Node node) {
+        if (node instanceof Node.Literal) {
+            emit(CONST, constant(((Node.Literal) node).value), 1);
+        } else if (node instanceof Node.Quote) {
+            emit(QUOTE, constant(((Node.Quote) node).quoted), 1);
+        } else if (node instanceof Node.GlobalRef) {
+            emit(GLOBAL, constant(((Node.GlobalRef) node).name), 1);
+        } else if (node instanceof Node.LocalRef) {
+            Node.LocalRef ref = (Node.LocalRef) node;
+            load(LOAD, CAPTURED, ref.depth, ref.slot, ref.name);
+        } else if (node instanceof Node.BoxRef) {
+            Node.BoxRef ref = (Node.BoxRef) node;
+            load(LOAD_BOX, CAPTURED_BOX, ref.depth, ref.slot, ref.name);
+        } else if (node instanceof Node.SlotRef) {
+            Node.SlotRef ref = (Node.SlotRef) node;
+            int register = register(ref.depth, ref.slot);
+
+            if (register == -1)
+                emit(CAPTURED_RAW, ref.slot, 1);
+            else
+                emit(LOAD_RAW, register, 1);
+        } else if (node instanceof Node.NamedCall) {
+            Node.NamedCall call = (Node.NamedCall) node;
+            emit(FUNCTION, constant(call.site), 1);
+            call(CALL, call.arguments);
+        } else if (node instanceof Node.Call) {
+            Node.Call call = (Node.Call) node;
+            compile(call.function);
+            call(CALL, call.arguments);
+        } else if (node instanceof Node.FunctionRef) {
+            emit(FUNCTION, constant(((Node.FunctionRef) node).site), 1);
+        } else if (node instanceof Node.TailCall) {
+            Node.TailCall call = (Node.TailCall) node;
+            compile(call.function);
+            call(TAIL_CALL, call.arguments);
+        } else if (node instanceof Node.Define) {
+            Node.Define define = (Node.Define) node;
+            compile(define.value);
+            emit(DEFINE_GLOBAL, constant(define.name), 0);
+        } else if (node instanceof Node.LocalDefine) {
+            Node.LocalDefine define = (Node.LocalDefine) node;
+            compile(define.value);
+            emit(DEFINE_LOCAL, register(0, define.slot), 0);
+        } else if (node instanceof Node.BoxDefine) {
+            Node.BoxDefine define = (Node.BoxDefine) node;
+            compile(define.value);
+            emit(DEFINE_BOX, register(0, define.slot), 0);
+        } else if (node instanceof Node.GlobalSet) {
+            Node.GlobalSet set = (Node.GlobalSet) node;
+            compile(set.value);
+            emit(SET_GLOBAL, constant(set.name), 0);
+        } else if (node instanceof Node.LocalSet) {
+            Node.LocalSet set = (Node.LocalSet) node;
+            compile(set.value);
+            store(SET_LOCAL, SET_CAPTURED, set.depth, set.slot);
+        } else if (node instanceof Node.BoxSet) {
+            Node.BoxSet set = (Node.BoxSet) node;
+            compile(set.value);
+            store(SET_BOX, SET_CAPTURED_BOX, set.depth, set.slot);
+        } else if (node instanceof Node.Lambda) {
+            Node.Lambda lambda = (Node.Lambda) node;
+            compileAll(lambda.captureSources);
+            emit(CLOSURE, constant(lambda), lambda.captureSources.length, 1 - lambda.captureSources.length);
+        } else if (node instanceof Node.If) {
+            Node.If branch = (Node.If) node;
+            compile(branch.condition);
+            int otherwise = jump(JUMP_IF_FALSE);
+            compile(branch.then);
+            int end = jump(JUMP);
+            patch(otherwise);
+            --stack;
+            compile(branch.otherwise);
+            patch(end);
+        } else if (node instanceof Node.Folded) {
+            Node.Folded folded = (Node.Folded) node;
+            emit(GUARD, constant(folded), 0, 0);
+            int original = length - 1;
+            compile(folded.folded);
+            int end = jump(JUMP);
+            patch(original);
+            --stack;
+            compile(folded.original);
+            patch(end);
+        } else if (node instanceof Node.WhenUnless) {
+            Node.WhenUnless when = (Node.WhenUnless) node;
+            compile(when.condition);
+            int skip = jump(when.runOnTrue ? JUMP_IF_FALSE : JUMP_IF_TRUE);
+            compileBody(when.body);
+            int end = jump(JUMP);
+            patch(skip);
+            --stack;
+            emit(CONST, constant(LispObject.VOID), 1);
+            patch(end);
+        } else if (node instanceof Node.Cond) {
+            cond((Node.Cond) node);
+        } else if (node instanceof Node.And) {
+            andOr(((Node.And) node).terms, JUMP_IF_FALSE, LispObject.TRUE);
+        } else if (node instanceof Node.Or) {
+            andOr(((Node.Or) node).terms, JUMP_IF_TRUE, LispObject.FALSE);
+        } else if (node instanceof Node.Let) {
+            let((Node.Let) node);
+        } else {
+            throw new IllegalStateException("Can't compile " + node.getClass().getSimpleName());
+        }
+    }
+
+    private void load(int registerOpcode, int capturedOpcode, int depth, int slot, String name) {
+        int register = register(depth, slot);
+
+        if (register == -1)
+            emit(capturedOpcode, slot, constant(name), 1);
+        else
+            emit(registerOpcode, register, constant(name), 1);
+    }
+
+    private void store(int registerOpcode, int capturedOpcode, int depth, int slot) {
+        int register = register(depth, slot);
+
+        if (register == -1)
+            emit(capturedOpcode, slot, 0);
+        else
+            emit(registerOpcode, register, 0);
+    }
+
+    /**
+     * With the function on the stack, pushes the arguments and calls it.
+     */
+    private void call(int opcode, Node[] arguments) {
+        compileAll(arguments);
+        emit(opcode, arguments.length, -arguments.length);
+    }
+
+    private void cond(Node.Cond cond) {
+        List<Integer> ends = new ArrayList<>();
+        boolean hasElse = false;
+
+        for (int i = 0; i < cond.tests.length; ++i) {
+            Node[] clause = cond.bodies[i];
+
+            if (cond.tests[i] == null) {
+                if (clause.length == 0)
+                    emit(CONST, constant(LispObject.VOID), 1);
+                else
+                    compileBody(clause);
+
+                hasElse = true;
+                break;
+            }
+
+            compile(cond.tests[i]);
+
+            if (clause.length == 0) {
+                // The test's value is the result
+                emit(DUP, 1);
+                int next = jump(JUMP_IF_FALSE);
+                ends.add(jump(JUMP));
+                patch(next);
+                emit(POP, -1);
+            } else {
+                int next = jump(JUMP_IF_FALSE);
+                compileBody(clause);
+                ends.add(jump(JUMP));
+                patch(next);
+                --stack;
+            }
+        }
+
+        if (!hasElse)
+            emit(CONST, constant(LispObject.VOID), 1);
+
+        for (int end : ends)
+            patch(end);
+    }
+
+    /**
+     * Each term is kept on the stack, and `opcode` jumps past the rest with the first one that decides the result.
+     * With no terms, the result is `empty`.
+     */
+    private void andOr(Node[] terms, int opcode, LispObject empty) {
+        List<Integer> ends = new ArrayList<>();
+
+        for (int i = 0; i < terms.length; ++i) {
+            compile(terms[i]);
+
+            // The last value of an and is the result either way
+            if (opcode == JUMP_IF_FALSE && i == terms.length - 1)
+                break;
+
+            emit(DUP, 1);
+            ends.add(jump(opcode));
+            emit(POP, -1);
+        }
+
+        if (opcode == JUMP_IF_TRUE || terms.length == 0)
+            emit(CONST, constant(empty), 1);
+
+        for (int end : ends)
+            patch(end);
+    }
+
+    private void let(Node.Let let) {
+        int base = top;
+        top += let.slotNames.length;
+        frameSize = Math.max(frameSize, top);
+
+        if (let.sequential)
+            lets.add(base);
+
+        for (int i = 0; i < let.values.length; ++i) {
+            compile(let.values[i]);
+            emit(let.boxed[i] ? INIT_BOX : INIT, base + i, -1);
+        }
+
+        // Registers are reused, so the slots for internal defines may hold something from an earlier let
+        for (int i = let.values.length; i < let.slotNames.length; ++i) {
+            emit(CLEAR, base + i, 0);
+
+            if (let.boxed[i])
+                emit(BOX, base + i, 0);
+        }
+
+        if (!let.sequential)
+            lets.add(base);
+
+        compileBody(let.body);
+
+        lets.remove(lets.size() - 1);
+        top = base;
+    }
+}
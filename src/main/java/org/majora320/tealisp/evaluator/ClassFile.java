@@ -0,0 +1,417 @@
+package org.majora320.tealisp.evaluator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes JVM class files, with just the parts the BytecodeCompiler needs: a constant pool, methods with a Code
+ * attribute, and no fields or other attributes. Classes are version 49 (Java 5), which the JVM still verifies by
+ * type inference, so no StackMapTable frames are needed. The operand stack depth is tracked as instructions are
+ * added, for max_stack.
+ * <p>
+ * Names and descriptors are in the JVM's internal form, e.g. "java/lang/Object" and "(I)Ljava/lang/String;".
+ */
+final class ClassFile {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    // The opcodes the compiler uses
+    static final int ACONST_NULL = 0x01;
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC = 0x12;
+    static final int LDC_W = 0x13;
+    static final int ALOAD = 0x19;
+    static final int AALOAD = 0x32;
+    static final int ASTORE = 0x3a;
+    static final int AASTORE = 0x53;
+    static final int POP = 0x57;
+    static final int DUP = 0x59;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int IF_ACMPEQ = 0xa5;
+    static final int IF_ACMPNE = 0xa6;
+    static final int GOTO = 0xa7;
+    static final int ARETURN = 0xb0;
+    static final int RETURN = 0xb1;
+    static final int GETSTATIC = 0xb2;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+    static final int INVOKESTATIC = 0xb8;
+    static final int ANEWARRAY = 0xbd;
+    static final int CHECKCAST = 0xc0;
+    static final int IFNULL = 0xc6;
+    static final int IFNONNULL = 0xc7;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_STRING = 8;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /**
+     * Thrown when a method doesn't fit in the class file format, e.g. a branch is too far for a 16-bit offset.
+     */
+    static class TooLargeException extends Exception {
+        TooLargeException(String message) {
+            super(message);
+        }
+    }
+
+    private final String name;
+    private final String superName;
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final DataOutputStream poolOut = new DataOutputStream(pool);
+    private final Map<String, Integer> poolIndices = new HashMap<>();
+    private int poolCount = 1;
+    private final List<Code> methods = new ArrayList<>();
+
+    ClassFile(String name, String superName) {
+        this.name = name;
+        this.superName = superName;
+    }
+
+    /**
+     * Adds a method and returns its Code, to add instructions to.
+     */
+    Code method(int access, String name, String descriptor, int parameterSlots) {
+        Code code = new Code(access, utf8(name), utf8(descriptor), parameterSlots);
+        methods.add(code);
+        return code;
+    }
+
+    byte[] toBytes() throws TooLargeException {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int codeName = utf8("Code");
+
+        if (poolCount > 0xFFFF)
+            throw new TooLargeException("Too many constants");
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+
+            out.writeShort(poolCount);
+            pool.writeTo(out);
+
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+
+            out.writeShort(methods.size());
+            for (Code method : methods)
+                method.write(out, codeName);
+
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int constant(String key, int tag, Object... parts) {
+        Integer index = poolIndices.get(key);
+        if (index != null)
+            return index;
+
+        try {
+            poolOut.writeByte(tag);
+
+            for (Object part : parts) {
+                if (part instanceof String)
+                    poolOut.writeUTF((String) part);
+                else if (tag == CONSTANT_INTEGER)
+                    poolOut.writeInt((Integer) part);
+                else
+                    poolOut.writeShort((Integer) part);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+
+        poolIndices.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private int utf8(String value) {
+        return constant("U" + value, CONSTANT_UTF8, value);
+    }
+
+    private int classRef(String className) {
+        return constant("C" + className, CONSTANT_CLASS, utf8(className));
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor) {
+        int nameAndType = constant("N" + name + ' ' + descriptor, CONSTANT_NAME_AND_TYPE, utf8(name), utf8(descriptor));
+        return constant(tag + owner + '.' + name + ' ' + descriptor, tag, classRef(owner), nameAndType);
+    }
+
+    static final class Label {
+        private int offset = -1;
+        private int stack = -1;
+        private final List<Integer> fixups = new ArrayList<>();
+    }
+
+    /**
+     * The instructions of one method.
+     */
+    final class Code {
+        private final int access;
+        private final int nameIndex;
+        private final int descriptorIndex;
+        private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+        private int stack;
+        private int maxStack;
+        private int maxLocals;
+        private String error;
+
+        private Code(int access, int nameIndex, int descriptorIndex, int parameterSlots) {
+            this.access = access;
+            this.nameIndex = nameIndex;
+            this.descriptorIndex = descriptorIndex;
+            this.maxLocals = parameterSlots;
+        }
+
+        /**
+         * Returns an unused local variable slot.
+         */
+        int newLocal() {
+            return maxLocals++;
+        }
+
+        /**
+         * Adds an instruction without operands, which changes the stack depth by `stackChange`.
+         */
+        void op(int opcode, int stackChange) {
+            code.write(opcode);
+            adjust(stackChange);
+        }
+
+        void pushInt(int value) {
+            if (value >= -1 && value <= 5) {
+                op(ICONST_0 + value, 1);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                op(BIPUSH, 1);
+                code.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(SIPUSH, 1);
+                writeShort(value);
+            } else {
+                ldc(constant("I" + value, CONSTANT_INTEGER, value));
+            }
+        }
+
+        void pushString(String value) {
+            ldc(constant("S" + value, CONSTANT_STRING, utf8(value)));
+        }
+
+        private void ldc(int index) {
+            if (index <= 0xFF) {
+                op(LDC, 1);
+                code.write(index);
+            } else {
+                op(LDC_W, 1);
+                writeShort(index);
+            }
+        }
+
+        void aload(int local) {
+            op(ALOAD, 1);
+            code.write(checkLocal(local));
+        }
+
+        void astore(int local) {
+            op(ASTORE, -1);
+            code.write(checkLocal(local));
+        }
+
+        private int checkLocal(int local) {
+            if (local > 0xFF)
+                error = "Too many locals";
+
+            return local;
+        }
+
+        void field(int opcode, String owner, String name, String descriptor) {
+            int size = descriptor.equals("J") || descriptor.equals("D") ? 2 : 1;
+            int change;
+
+            switch (opcode) {
+                case GETSTATIC:
+                    change = size;
+                    break;
+                case GETFIELD:
+                    change = size - 1;
+                    break;
+                case PUTFIELD:
+                    change = -size - 1;
+                    break;
+                default:
+                    change = -size;
+            }
+
+            op(opcode, change);
+            writeShort(memberRef(CONSTANT_FIELDREF, owner, name, descriptor));
+        }
+
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            int change = returnSize(descriptor) - argumentSize(descriptor);
+            if (opcode != INVOKESTATIC)
+                --change;
+
+            op(opcode, change);
+            writeShort(memberRef(CONSTANT_METHODREF, owner, name, descriptor));
+        }
+
+        /**
+         * checkcast or anewarray, which take a class and don't change the stack depth.
+         */
+        void type(int opcode, String className) {
+            op(opcode, 0);
+            writeShort(classRef(className));
+        }
+
+        /**
+         * Adds a branch to `target`. `stackChange` is what the branch instruction itself pops.
+         */
+        void jump(int opcode, Label target, int stackChange) {
+            op(opcode, stackChange);
+
+            if (target.stack == -1)
+                target.stack = stack;
+
+            target.fixups.add(code.size() - 1);
+            writeShort(0);
+        }
+
+        /**
+         * Places `label` here. If the previous instruction doesn't fall through, the stack depth continues from what
+         * it was at the branches to the label.
+         */
+        void mark(Label label, boolean reachableByFallthrough) {
+            label.offset = code.size();
+
+            if (!reachableByFallthrough && label.stack != -1)
+                stack = label.stack;
+        }
+
+        int stackDepth() {
+            return stack;
+        }
+
+        /**
+         * Sets the stack depth after an instruction that doesn't fall through, like goto or areturn, for the code
+         * that follows it.
+         */
+        void setStackDepth(int depth) {
+            stack = depth;
+        }
+
+        private void adjust(int change) {
+            stack += change;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void writeShort(int value) {
+            code.write(value >>> 8);
+            code.write(value);
+        }
+
+        private void write(DataOutputStream out, int codeName) throws IOException {
+            byte[] bytes = code.toByteArray();
+
+            if (error != null)
+                throw new IOException(error);
+
+            out.writeShort(access);
+            out.writeShort(nameIndex);
+            out.writeShort(descriptorIndex);
+            out.writeShort(1);
+
+            out.writeShort(codeName);
+            out.writeInt(12 + bytes.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        /**
+         * Fills in branch offsets. Must be called once the method is complete.
+         */
+        void resolve(List<Label> labels) throws TooLargeException {
+            if (error != null)
+                throw new TooLargeException(error);
+            if (code.size() > 0xFFFF)
+                throw new TooLargeException("Method too large");
+
+            byte[] bytes = code.toByteArray();
+
+            for (Label label : labels) {
+                for (int at : label.fixups) {
+                    int offset = label.offset - at;
+
+                    if (offset < Short.MIN_VALUE || offset > Short.MAX_VALUE)
+                        throw new TooLargeException("Branch too far");
+
+                    bytes[at + 1] = (byte) (offset >>> 8);
+                    bytes[at + 2] = (byte) offset;
+                }
+            }
+
+            code.reset();
+            code.write(bytes, 0, bytes.length);
+        }
+    }
+
+    private static int argumentSize(String descriptor) {
+        int size = 0;
+        int i = 1;
+
+        while (descriptor.charAt(i) != ')') {
+            char c = descriptor.charAt(i);
+
+            if (c == 'J' || c == 'D') {
+                size += 2;
+                ++i;
+            } else {
+                ++size;
+
+                while (descriptor.charAt(i) == '[')
+                    ++i;
+                if (descriptor.charAt(i) == 'L')
+                    i = descriptor.indexOf(';', i);
+
+                ++i;
+            }
+        }
+
+        return size;
+    }
+
+    private static int returnSize(String descriptor) {
+        char c = descriptor.charAt(descriptor.indexOf(')') + 1);
+        return c == 'V' ? 0 : c == 'J' || c == 'D' ? 2 : 1;
+    }
+}
@@ -0,0 +1,195 @@
+package org.majora320.tealisp.evaluator;
+
+/**
+ * A function body compiled to JVM bytecode by the BytecodeCompiler; each compiled body is a subclass of this.
+ * <p>
+ * The subclasses are defined by their own ClassLoader, so at runtime they are not in this package and can't use its
+ * package-private members. The static methods here are the operations on frames and calls that they need instead,
+ * and mostly mirror the execute methods of the corresponding Nodes.
+ */
+public abstract class CompiledFunction {
+    /**
+     * The objects the generated code refers to: Literal values, the Interpreter, Nodes it falls back to, and so on.
+     */
+    protected final Object[] constants;
+
+    protected CompiledFunction(Object[] constants) {
+        this.constants = constants;
+    }
+
+    /**
+     * Runs the body in `frame`, which is set up the same way as for Node.FunctionBody.execute.
+     */
+    public abstract LispObject execute(StackFrame frame) throws LispException;
+
+    protected static LispObject local(StackFrame frame, int depth, int slot, String name) throws LispException {
+        LispObject value = frame.ancestor(depth).getSlot(slot);
+
+        if (value == null)
+            throw new LispException("Undefined variable: " + name);
+        return value;
+    }
+
+    protected static LispObject boxed(StackFrame frame, int depth, int slot, String name) throws LispException {
+        LispObject value = ((StackFrame.Box) frame.ancestor(depth).getSlot(slot)).value;
+
+        if (value == null)
+            throw new LispException("Undefined variable: " + name);
+        return value;
+    }
+
+    protected static LispObject slot(StackFrame frame, int depth, int slot) {
+        return frame.ancestor(depth).getSlot(slot);
+    }
+
+    protected static LispObject global(StackFrame globals, String name) throws LispException {
+        LispObject value = globals.lookupBinding(name);
+
+        if (value == null)
+            throw new LispException("Undefined variable: " + name);
+        return value;
+    }
+
+    /**
+     * Resolves the function for a Node.CallSite.
+     */
+    protected static LispObject function(Object site) throws LispException {
+        return ((Node.CallSite) site).resolve();
+    }
+
+    protected static LispObject call0(LispObject function, Interpreter interpreter, StackFrame frame) throws LispException {
+        NativeFunction nativeFunction = nativeFunction(function);
+        if (nativeFunction != null)
+            return nativeFunction.call0();
+
+        return interpreter.call(function, new LispObject[0], frame);
+    }
+
+    protected static LispObject call1(LispObject function, LispObject a, Interpreter interpreter, StackFrame frame) throws LispException {
+        NativeFunction nativeFunction = nativeFunction(function);
+        if (nativeFunction != null)
+            return nativeFunction.call1(a);
+
+        return interpreter.call(function, new LispObject[]{a}, frame);
+    }
+
+    protected static LispObject call2(LispObject function, LispObject a, LispObject b, Interpreter interpreter,
+                                      StackFrame frame) throws LispException {
+        NativeFunction nativeFunction = nativeFunction(function);
+        if (nativeFunction != null)
+            return nativeFunction.call2(a, b);
+
+        return interpreter.call(function, new LispObject[]{a, b}, frame);
+    }
+
+    protected static LispObject call3(LispObject function, LispObject a, LispObject b, LispObject c,
+                                      Interpreter interpreter, StackFrame frame) throws LispException {
+        NativeFunction nativeFunction = nativeFunction(function);
+        if (nativeFunction != null)
+            return nativeFunction.call3(a, b, c);
+
+        return interpreter.call(function, new LispObject[]{a, b, c}, frame);
+    }
+
+    protected static LispObject callN(LispObject function, LispObject[] arguments, Interpreter interpreter,
+                                      StackFrame frame) throws LispException {
+        return interpreter.call(function, arguments, frame);
+    }
+
+    private static NativeFunction nativeFunction(LispObject function) {
+        if (function instanceof LispObject.JavaFunction)
+            return ((LispObject.JavaFunction) function).nativeFunction;
+
+        return null;
+    }
+
+    /**
+     * Finishes a tail call whose arguments were already stored in `functionFrame` from slot `base` on. Java functions
+     * are called right away, since they can't loop back into this body; anything else is left to the Interpreter.call
+     * loop, as for Node.TailCall.
+     */
+    protected static LispObject tailCall(LispObject function, StackFrame functionFrame, int base, int count,
+                                         Interpreter interpreter) throws LispException {
+        if (function instanceof LispObject.JavaFunction)
+            return interpreter.applyJavaFunction((LispObject.JavaFunction) function, functionFrame, base, count);
+
+        interpreter.tailFunction = function;
+        interpreter.tailArgumentCount = count;
+        return Interpreter.TAIL_CALL;
+    }
+
+    protected static boolean isValid(Object folded) {
+        return ((Node.Folded) folded).isValid();
+    }
+
+    protected static boolean isFalse(LispObject value) {
+        return Node.isFalse(value);
+    }
+
+    protected static StackFrame ancestor(StackFrame frame, int depth) {
+        return frame.ancestor(depth);
+    }
+
+    protected static void setSlot(StackFrame frame, int slot, LispObject value) {
+        frame.setSlot(slot, value);
+    }
+
+    protected static void setBox(StackFrame frame, int slot, LispObject value) {
+        frame.setSlot(slot, new StackFrame.Box(value));
+    }
+
+    protected static void boxSlots(boolean[] boxed, int from, StackFrame frame) {
+        Node.boxSlots(boxed, from, frame);
+    }
+
+    protected static StackFrame newFrame(StackFrame parent, String[] slotNames) {
+        return new StackFrame(parent, slotNames);
+    }
+
+    protected static LispObject define(StackFrame frame, String name, LispObject value) {
+        frame.storeBinding(name, value);
+        return LispObject.VOID;
+    }
+
+    protected static LispObject localDefine(StackFrame frame, int slot, LispObject value) {
+        frame.setSlot(slot, value);
+        return LispObject.VOID;
+    }
+
+    protected static LispObject boxDefine(StackFrame frame, int slot, LispObject value) {
+        ((StackFrame.Box) frame.getSlot(slot)).value = value;
+        return LispObject.VOID;
+    }
+
+    protected static LispObject globalSet(StackFrame globals, String name, LispObject value) throws LispException {
+        globals.modifyBinding(name, value);
+        return LispObject.VOID;
+    }
+
+    protected static LispObject localSet(StackFrame frame, int depth, int slot, LispObject value) throws LispException {
+        StackFrame target = frame.ancestor(depth);
+
+        if (target.getSlot(slot) == null)
+            throw new LispException("Tried to call set! on an nonexistant identifier");
+
+        target.setSlot(slot, value);
+        return LispObject.VOID;
+    }
+
+    protected static LispObject boxSet(StackFrame frame, int depth, int slot, LispObject value) throws LispException {
+        StackFrame.Box box = (StackFrame.Box) frame.ancestor(depth).getSlot(slot);
+
+        if (box.value == null)
+            throw new LispException("Tried to call set! on an nonexistant identifier");
+
+        box.value = value;
+        return LispObject.VOID;
+    }
+
+    /**
+     * Runs a Node the compiler doesn't handle itself, such as a Lambda.
+     */
+    protected static LispObject execute(Object node, StackFrame frame) throws LispException {
+        return ((Node) node).execute(frame);
+    }
+}
@@ -2,17 +2,35 @@ package org.majora320.tealisp.evaluator;
 
 import org.majora320.tealisp.lexer.LexException;
 import org.majora320.tealisp.parser.AstNode;
+import org.majora320.tealisp.parser.FormReader;
 import org.majora320.tealisp.parser.ParseException;
 import org.majora320.tealisp.parser.Parser;
 
 import java.io.IOException;
 import java.io.Reader;
-import java.util.ArrayList;
+import java.nio.file.Path;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
 public class Interpreter {
+    /**
+     * How an Interpreter runs code. COMPILED analyzes each expression into a tree of Nodes before running it;
+     * TREE_WALKER evaluates the AstNodes directly and is kept as a reference implementation. TIERED starts out like
+     * COMPILED, and compiles the body of a function to JVM bytecode once it has been called more than the compile
+     * threshold times. BYTECODE compiles each expression and function body to a compact bytecode, run by a
+     * VirtualMachine with frames of its own.
+     */
+    public enum ExecutionMode {
+        TREE_WALKER,
+        COMPILED,
+        TIERED,
+        BYTECODE
+    }
+
+    public static final int DEFAULT_COMPILE_THRESHOLD = 1000;
+    public static final int DEFAULT_INLINE_BUDGET = 24;
+
     protected StackFrame globalFrame = new StackFrame();
     // Weird syntax to add stuff to a container inline
     // The first { creates an anonymous class subclassing from HashSet
@@ -33,15 +51,45 @@ public class Interpreter {
         add("unquote");
         add("quasiquote");
     }};
+    /**
+     * Returned instead of a value by a call in tail position. The function to call is in tailFunction; its arguments
+     * are in tailArguments if the call came from the tree-walker, or otherwise in the last tailArgumentCount slots of
+     * the caller's frame. The call loop running the caller then makes the call.
+     */
+    static final LispObject TAIL_CALL = new LispObject() {
+        @Override
+        public Object getValue() {
+            return null;
+        }
+    };
+
+    LispObject tailFunction;
+    LispObject[] tailArguments;
+    int tailArgumentCount;
+
     private Runtime runtime;
     private LispObject globalResult;
+    private ExecutionMode mode;
+    private Analyzer analyzer = new Analyzer(this);
+    private BytecodeCompiler compiler;
+    private VirtualMachine machine;
+    private int compileThreshold = DEFAULT_COMPILE_THRESHOLD;
+    private int inlineBudget = DEFAULT_INLINE_BUDGET;
 
     public Interpreter() {
         this(JavaRegistry.getGlobalRegistry());
     }
 
     public Interpreter(JavaRegistry registry) {
+        this(registry, ExecutionMode.COMPILED);
+    }
+
+    public Interpreter(JavaRegistry registry, ExecutionMode mode) {
         runtime = new Runtime(this, registry);
+        this.mode = mode;
+
+        if (mode == ExecutionMode.BYTECODE)
+            machine = new VirtualMachine(this);
     }
 
     public Interpreter(Reader reader) throws LispException, ParseException, LexException, IOException {
@@ -52,6 +100,22 @@ public class Interpreter {
         this(Parser.parse(reader), registry);
     }
 
+    public Interpreter(Reader reader, JavaRegistry registry, ExecutionMode mode) throws LispException, ParseException, LexException, IOException {
+        this(Parser.parse(reader), registry, mode);
+    }
+
+    public Interpreter(Path path) throws LispException, ParseException, LexException, IOException {
+        this(Parser.parse(path));
+    }
+
+    public Interpreter(Path path, JavaRegistry registry) throws LispException, ParseException, LexException, IOException {
+        this(Parser.parse(path), registry);
+    }
+
+    public Interpreter(Path path, JavaRegistry registry, ExecutionMode mode) throws LispException, ParseException, LexException, IOException {
+        this(Parser.parse(path), registry, mode);
+    }
+
     public Interpreter(AstNode.RootNode program) throws LispException {
         this(program, JavaRegistry.getGlobalRegistry());
     }
@@ -61,6 +125,11 @@ public class Interpreter {
         run(program);
     }
 
+    public Interpreter(AstNode.RootNode program, JavaRegistry registry, ExecutionMode mode) throws LispException {
+        this(registry, mode);
+        run(program);
+    }
+
     public Runtime getRuntime() {
         return runtime;
     }
@@ -73,22 +142,111 @@ public class Interpreter {
         return globalFrame;
     }
 
+    public ExecutionMode getExecutionMode() {
+        return mode;
+    }
+
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    /**
+     * Sets how many times a function body runs in TIERED mode before it is compiled to bytecode. With 0, bodies are
+     * compiled the first time they are called.
+     */
+    public void setCompileThreshold(int compileThreshold) {
+        if (compileThreshold < 0)
+            throw new IllegalArgumentException("Negative compile threshold: " + compileThreshold);
+
+        this.compileThreshold = compileThreshold;
+    }
+
+    public int getInlineBudget() {
+        return inlineBudget;
+    }
+
+    /**
+     * Sets how large a global function's body can be, counted in AstNodes, for calls to it to be replaced by the body
+     * when they are analyzed. The bodies of functions inlined into one call share the budget. With 0, nothing is
+     * inlined. This has no effect in TREE_WALKER mode, and only applies to code analyzed after the call.
+     */
+    public void setInlineBudget(int inlineBudget) {
+        if (inlineBudget < 0)
+            throw new IllegalArgumentException("Negative inline budget: " + inlineBudget);
+
+        this.inlineBudget = inlineBudget;
+    }
+
+    boolean isReservedKeyword(String name) {
+        return reservedKeywords.contains(name);
+    }
+
     public LispObject run(Reader reader) throws ParseException, LexException, IOException, LispException {
         return run(Parser.parse(reader));
     }
 
+    /**
+     * Runs the UTF-8 file at `path`, which is memory-mapped rather than read; see Parser.parse(Path).
+     */
+    public LispObject run(Path path) throws ParseException, LexException, IOException, LispException {
+        return run(Parser.parse(path));
+    }
+
     public LispObject run(AstNode.RootNode program) throws LispException {
         boolean didLoopOnce = false;
 
         for (AstNode child : program.children) {
-            globalResult = eval(child, globalFrame);
+            runForm(child);
             didLoopOnce = true;
         }
 
         if (didLoopOnce)
             return globalResult;
         else
-            return new LispObject.Void();
+            return LispObject.VOID;
+    }
+
+    /**
+     * Runs the forms from `forms` one at a time: each form is evaluated as soon as it is parsed and dropped
+     * afterwards, so the whole program is never held in memory. Unlike run(Reader), forms before a syntax error have
+     * already run when the error is thrown. Closes `forms`.
+     */
+    public LispObject run(FormReader forms) throws ParseException, LexException, IOException, LispException {
+        boolean didLoopOnce = false;
+
+        try (FormReader input = forms) {
+            for (AstNode form = input.next(); form != null; form = input.next()) {
+                runForm(form);
+                didLoopOnce = true;
+            }
+        }
+
+        if (didLoopOnce)
+            return globalResult;
+        else
+            return LispObject.VOID;
+    }
+
+    public LispObject runIncrementally(Reader reader) throws ParseException, LexException, IOException, LispException {
+        return run(Parser.forms(reader));
+    }
+
+    public LispObject runIncrementally(Path path) throws ParseException, LexException, IOException, LispException {
+        return run(Parser.forms(path));
+    }
+
+    /**
+     * Runs a single top-level form, and makes its value the global result.
+     */
+    public LispObject runForm(AstNode form) throws LispException {
+        if (mode == ExecutionMode.BYTECODE)
+            globalResult = machine.run(ChunkCompiler.compileTopLevel(analyzer.analyze(form)));
+        else if (mode != ExecutionMode.TREE_WALKER)
+            globalResult = analyzer.analyze(form).execute(globalFrame);
+        else
+            globalResult = eval(form, globalFrame);
+
+        return globalResult;
     }
 
 
@@ -96,11 +254,11 @@ public class Interpreter {
         if (node instanceof AstNode.RootNode) {
             throw new LispException("Only one root node is allowed, and it must be the actual root node.");
         } else if (node instanceof AstNode.Boolean) {
-            return new LispObject.Boolean(((AstNode.Boolean) node).value);
+            return LispObject.Boolean.valueOf(((AstNode.Boolean) node).value);
         } else if (node instanceof AstNode.String) {
             return new LispObject.String(((AstNode.String) node).value);
         } else if (node instanceof AstNode.Integer) {
-            return new LispObject.Integer(((AstNode.Integer) node).value);
+            return LispObject.Integer.valueOf(((AstNode.Integer) node).value);
         } else if (node instanceof AstNode.Double) {
             return new LispObject.Double(((AstNode.Double) node).value);
         } else if (node instanceof AstNode.Name) {
@@ -115,13 +273,24 @@ public class Interpreter {
                 throw new LispException("Undefined variable: " + name);
             return value;
         } else if (node instanceof AstNode.Sexp) {
-            return evalSexp((AstNode.Sexp) node, frame);
+            return evalSexp((AstNode.Sexp) node, frame, false);
         }
 
         throw new LispException("This should never happen. If it does, contact Majora320 immediately with error code 452");
     }
 
-    private LispObject evalSexp(AstNode.Sexp node, StackFrame frame) throws LispException {
+    /**
+     * Evaluates a node in tail position. If it is a call, this can return TAIL_CALL instead of making the call, so
+     * it must only be used where the result is returned straight from a function body.
+     */
+    LispObject evalTail(AstNode node, StackFrame frame) throws LispException {
+        if (node instanceof AstNode.Sexp)
+            return evalSexp((AstNode.Sexp) node, frame, true);
+
+        return eval(node, frame);
+    }
+
+    private LispObject evalSexp(AstNode.Sexp node, StackFrame frame, boolean tail) throws LispException {
         List<AstNode> contents = node.contents;
 
         if (contents.size() == 0)
@@ -134,89 +303,284 @@ public class Interpreter {
 
         if (first instanceof AstNode.Name) {
             String name = ((AstNode.Name) first).value;
-            return apply(name, contents.subList(1, contents.size()), frame);
+            return apply(name, contents.subList(1, contents.size()), frame, tail);
         } else if (first instanceof AstNode.Sexp) {
             LispObject result = eval(first, new StackFrame(frame));
 
-            return apply(result, contents.subList(1, contents.size()), frame);
+            return apply(result, contents.subList(1, contents.size()), frame, tail);
         }
 
         throw new LispException("This should never happen. If it does, contact Majora320 immediately with error code 453");
     }
 
-    // Bit of code duplication here. Feel free to clean up.
     protected LispObject apply(String name, List<AstNode> arguments, StackFrame frame) throws LispException {
+        return apply(name, arguments, frame, false);
+    }
+
+    protected LispObject apply(LispObject value, List<AstNode> arguments, StackFrame frame) throws LispException {
+        return apply(value, arguments, frame, false);
+    }
+
+    // Bit of code duplication here. Feel free to clean up.
+    private LispObject apply(String name, List<AstNode> arguments, StackFrame frame, boolean tail) throws LispException {
         if (reservedKeywords.contains(name))
-            return SpecialForms.handleSpecials(name, arguments, frame, this);
+            return SpecialForms.handleSpecials(name, arguments, frame, this, tail);
 
-        List<LispObject> lispObjs = new ArrayList<>(arguments.size());
+        LispObject[] lispObjs = evalArguments(arguments, frame);
 
-        for (AstNode node : arguments) {
-            lispObjs.add(eval(node, frame));
-        }
+        if (tail)
+            return tailCall(lookupFunction(name, frame), lispObjs);
 
-        return applyNoSpecials(name, lispObjs, frame);
+        return call(lookupFunction(name, frame), lispObjs, frame);
     }
 
-    protected LispObject apply(LispObject value, List<AstNode> arguments, StackFrame frame) throws LispException {
-        List<LispObject> lispObjs = new ArrayList<>(arguments.size());
+    private LispObject apply(LispObject value, List<AstNode> arguments, StackFrame frame, boolean tail) throws LispException {
+        LispObject[] lispObjs = evalArguments(arguments, frame);
 
-        for (AstNode node : arguments) {
-            lispObjs.add(eval(node, frame));
-        }
+        if (tail)
+            return tailCall(value, lispObjs);
+
+        return call(value, lispObjs, frame);
+    }
+
+    private LispObject[] evalArguments(List<AstNode> arguments, StackFrame frame) throws LispException {
+        LispObject[] lispObjs = new LispObject[arguments.size()];
+
+        for (int i = 0; i < lispObjs.length; ++i)
+            lispObjs[i] = eval(arguments.get(i), frame);
+
+        return lispObjs;
+    }
 
-        return apply2(value, lispObjs, frame);
+    private LispObject tailCall(LispObject function, LispObject[] arguments) {
+        tailFunction = function;
+        tailArguments = arguments;
+        return TAIL_CALL;
     }
 
     protected LispObject applyNoSpecials(String name, List<LispObject> arguments, StackFrame frame) throws LispException {
-        LispObject value = null;
+        return apply2(lookupFunction(name, frame), arguments, frame);
+    }
 
-        LispObject.JavaFunction javaFunction = runtime.registry.lookupFunction(name);
-        if (javaFunction != null)
-            value = javaFunction;
+    /**
+     * Finds what a call to `name` refers to: a binding visible from `frame` if there is one, otherwise a Java function.
+     */
+    LispObject lookupFunction(String name, StackFrame frame) throws LispException {
+        LispObject value = frame.lookupBinding(name);
 
-        LispObject obj = frame.lookupBinding(name);
-        if (obj != null)
-            value = obj;
+        if (value == null)
+            value = runtime.registry.lookupFunction(name);
 
         if (value == null)
             throw new LispException("Undefined variable: " + name);
 
-        return apply2(value, arguments, frame);
+        return value;
     }
 
     // The apply2 is to work around "method has same erasure" error
     // Kind of hacky, if you find a better solution go ahead
 
     protected LispObject apply2(LispObject value, List<LispObject> arguments, StackFrame frame) throws LispException {
-        if (!(value instanceof LispObject.Function || value instanceof LispObject.JavaFunction))
-            throw new LispException("Not a function: " + value);
+        return call(value, arguments.toArray(new LispObject[]{}), frame);
+    }
+
+    /**
+     * Calls a function value with already evaluated arguments.
+     */
+    LispObject call(LispObject value, LispObject[] arguments, StackFrame frame) throws LispException {
+        checkCallable(value);
 
         if (value instanceof LispObject.JavaFunction)
             return applyJavaFunction((LispObject.JavaFunction) value, arguments, frame);
 
         LispObject.Function function = (LispObject.Function) value;
 
-        if (!(arguments.size() == function.paramNames.size()))
-            throw new LispException("Expected " + function.paramNames.size() + " arguments, got " + arguments.size());
+        if (mode == ExecutionMode.BYTECODE && analyze(function) != null)
+            return machine.call(function, arguments);
+
+        StackFrame newFrame = newCallFrame(function, arguments.length);
+
+        for (int i = 0; i < arguments.length; ++i)
+            newFrame.setSlot(i, arguments[i]);
+
+        return run(function, newFrame);
+    }
+
+    /**
+     * Calls `function` from a Node.NamedCall that has specialized to it. The arguments are evaluated straight into the
+     * new frame, without an argument array, and must be as many as the function's parameters.
+     */
+    LispObject call(LispObject.Function function, Node[] arguments, StackFrame frame) throws LispException {
+        StackFrame newFrame = newCallFrame(function, arguments.length);
+
+        for (int i = 0; i < arguments.length; ++i)
+            newFrame.setSlot(i, arguments[i].execute(frame));
+
+        return run(function, newFrame);
+    }
+
+    /**
+     * Runs `function` in `newFrame`, which already holds the arguments.
+     */
+    private LispObject run(LispObject.Function function, StackFrame newFrame) throws LispException {
+        // Calls in tail position return TAIL_CALL, and we make the call here instead, so loops don't grow the stack
+        while (true) {
+            LispObject res;
+            if (function.code != null)
+                res = execute(function, newFrame);
+            else
+                res = evalBody(function.body, newFrame);
+
+            if (res != TAIL_CALL)
+                return res;
+
+            LispObject target = tailFunction;
+            tailFunction = null;
+            checkCallable(target);
+
+            if (tailArguments != null) {
+                LispObject[] nextArguments = tailArguments;
+                tailArguments = null;
+
+                if (target instanceof LispObject.JavaFunction)
+                    return applyJavaFunction((LispObject.JavaFunction) target, nextArguments, newFrame);
+
+                function = (LispObject.Function) target;
+                newFrame = newCallFrame(function, nextArguments.length);
+
+                for (int i = 0; i < nextArguments.length; ++i)
+                    newFrame.setSlot(i, nextArguments[i]);
+            } else {
+                int count = tailArgumentCount;
+                int base = newFrame.slotCount() - count;
+
+                if (target instanceof LispObject.JavaFunction)
+                    return applyJavaFunction((LispObject.JavaFunction) target, newFrame, base, count);
+
+                if (target == function) {
+                    // Calling ourselves; closures copy what they need, so nothing else can be using this frame
+                    checkArity(function, count);
+                    newFrame.rebind(base, count);
+                } else {
+                    LispObject.Function next = (LispObject.Function) target;
+                    StackFrame nextFrame = newCallFrame(next, count);
+
+                    for (int i = 0; i < count; ++i)
+                        nextFrame.setSlot(i, newFrame.getSlot(base + i));
+
+                    function = next;
+                    newFrame = nextFrame;
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the analyzed body of `function`. In TIERED mode, this is where calls are counted and hot bodies compiled.
+     */
+    private LispObject execute(LispObject.Function function, StackFrame frame) throws LispException {
+        Node.FunctionBody code = function.code;
 
+        if (code.compiled != null)
+            return code.compiled.execute(frame);
 
-        StackFrame newFrame = new StackFrame(frame);
+        if (mode == ExecutionMode.TIERED && !code.uncompilable && ++code.calls > compileThreshold) {
+            if (compiler == null)
+                compiler = new BytecodeCompiler(this);
 
-        for (int i = 0; i < arguments.size(); ++i) {
-            newFrame.storeBinding(function.paramNames.get(i), arguments.get(i));
+            code.compiled = compiler.compile(code, function.name);
+
+            if (code.compiled != null)
+                return code.compiled.execute(frame);
+
+            // Too large for a class file; stay on the Node tree
+            code.uncompilable = true;
         }
 
+        return code.execute(frame);
+    }
+
+    private void checkCallable(LispObject value) throws LispException {
+        if (!(value instanceof LispObject.Function || value instanceof LispObject.JavaFunction))
+            throw new LispException("Not a function: " + value);
+    }
+
+    private void checkArity(LispObject.Function function, int count) throws LispException {
+        if (count != function.paramNames.size())
+            throw new LispException("Expected " + function.paramNames.size() + " arguments, got " + count);
+    }
+
+    /**
+     * Creates the frame for a call to `function` with `count` arguments. The arguments go in the first slots.
+     */
+    private StackFrame newCallFrame(LispObject.Function function, int count) throws LispException {
+        checkArity(function, count);
+        analyze(function);
+
+        StackFrame parent = function.closure == null ? globalFrame : function.closure;
+
+        if (function.code != null)
+            return new StackFrame(parent, function.code.slotNames, function.code.scratchSize);
+        else
+            return new StackFrame(parent, function.paramArray);
+    }
+
+    /**
+     * Returns the analyzed body of `function`, analyzing it first if it hasn't been, or null if it can't be
+     * analyzed or this Interpreter is a tree-walker.
+     */
+    Node.FunctionBody analyze(LispObject.Function function) throws LispException {
+        // Functions built by hand from Java have no closure, so there's nothing the analyzer can't see
+        if (mode != ExecutionMode.TREE_WALKER && function.code == null && function.closure == null)
+            function.code = analyzer.analyzeFunction(function);
+
+        return function.code;
+    }
+
+    private LispObject evalBody(List<AstNode> body, StackFrame frame) throws LispException {
         LispObject res = null;
-        for (AstNode node : function.body) {
-            res = eval(node, newFrame);
+
+        for (int i = 0; i < body.size(); ++i) {
+            if (i == body.size() - 1)
+                res = evalTail(body.get(i), frame);
+            else
+                res = eval(body.get(i), frame);
         }
 
         return res;
     }
 
-    private LispObject applyJavaFunction(LispObject.JavaFunction function, List<LispObject> arguments, StackFrame frame) throws LispException {
-        return function.iface.runFunction(function.name, arguments.toArray(new LispObject[]{}), frame);
+    private LispObject applyJavaFunction(LispObject.JavaFunction function, LispObject[] arguments, StackFrame frame) throws LispException {
+        if (function.nativeFunction != null)
+            return function.nativeFunction.call(arguments);
+
+        return function.iface.runFunction(function.name, arguments, frame);
+    }
+
+    /**
+     * Calls a Java function with the `count` arguments starting at slot `base` of `frame`.
+     */
+    LispObject applyJavaFunction(LispObject.JavaFunction function, StackFrame frame, int base, int count) throws LispException {
+        NativeFunction nativeFunction = function.nativeFunction;
+
+        if (nativeFunction != null) {
+            switch (count) {
+                case 0:
+                    return nativeFunction.call0();
+                case 1:
+                    return nativeFunction.call1(frame.getSlot(base));
+                case 2:
+                    return nativeFunction.call2(frame.getSlot(base), frame.getSlot(base + 1));
+                case 3:
+                    return nativeFunction.call3(frame.getSlot(base), frame.getSlot(base + 1), frame.getSlot(base + 2));
+            }
+        }
+
+        LispObject[] arguments = new LispObject[count];
+        for (int i = 0; i < count; ++i)
+            arguments[i] = frame.getSlot(base + i);
+
+        return applyJavaFunction(function, arguments, frame);
     }
 
     LispObject processQuotedObj(AstNode node) throws LispException {
@@ -225,20 +589,21 @@ public class Interpreter {
             throw new LispException("Not quotable: " + node);
 
         if (node instanceof AstNode.Name) {
-            return new LispObject.Symbol(((AstNode.Name) node).value);
+            return LispObject.Symbol.intern(((AstNode.Name) node).value);
         } else if (node instanceof AstNode.Sexp) {
-            List<LispObject> processedContents = new ArrayList<>();
+            List<AstNode> contents = ((AstNode.Sexp) node).contents;
+            LispObject[] processedContents = new LispObject[contents.size()];
 
-            for (AstNode subNode : ((AstNode.Sexp) node).contents)
-                processedContents.add(processQuotedObj(subNode));
+            for (int i = 0; i < processedContents.length; ++i)
+                processedContents[i] = processQuotedObj(contents.get(i));
 
-            return new LispObject.List(processedContents);
+            return LispObject.List.wrap(processedContents);
         } else if (node instanceof AstNode.Integer) {
-            return new LispObject.Integer(((AstNode.Integer) node).value);
+            return LispObject.Integer.valueOf(((AstNode.Integer) node).value);
         } else if (node instanceof AstNode.String) {
             return new LispObject.String(((AstNode.String) node).value);
         } else if (node instanceof AstNode.Boolean) {
-            return new LispObject.Boolean(((AstNode.Boolean) node).value);
+            return LispObject.Boolean.valueOf(((AstNode.Boolean) node).value);
         }
 
         throw new LispException("ERROR BEGIN PLEASE CONTACT LOCAL CODING MONKEY TO UPDATE QUOTE TABLE END ERROR");
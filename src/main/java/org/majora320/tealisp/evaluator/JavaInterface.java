@@ -1,10 +1,21 @@
 package org.majora320.tealisp.evaluator;
 
 public abstract class JavaInterface {
+    /**
+     * JavaRegistry caches the answer for each name, so this should always give the same answer for the same name.
+     */
     public abstract boolean isSupportedFunction(String function);
 
     public abstract LispObject runFunction(String name, LispObject[] params, StackFrame frame) throws LispException;
 
+    /**
+     * Override this to have the interpreter call `name` through a NativeFunction instead of runFunction. It is asked
+     * once per name, when the name is first looked up; returning null means runFunction is used.
+     */
+    public NativeFunction getNativeFunction(String name) {
+        return null;
+    }
+
     /**
      * The checkParams function will check the types of actual parameters passed to a function with a list of expected
      * types. If any mismatch is detected, it will throw a LispException including the name of the function.
@@ -1,14 +1,22 @@
 package org.majora320.tealisp.evaluator;
 
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Register Java functions for use within TeaLisp here.
+ * <p>
+ * Lookups are cached by name, including names no interface supports, so each interface is only asked about a name
+ * once. The cache is cleared whenever the set of interfaces changes, along with every call site's cached function.
  */
 public class JavaRegistry {
+    private static final LispObject.JavaFunction NOT_FOUND = new LispObject.JavaFunction(null, null);
+
     private static JavaRegistry globalRegistry = new JavaRegistry(true);
     private Set<JavaInterface> interfaces = new HashSet<>();
+    private Map<String, LispObject.JavaFunction> functions = new ConcurrentHashMap<>();
 
     public JavaRegistry() {
         this(true);
@@ -31,23 +39,43 @@ public class JavaRegistry {
     }
 
     public LispObject.JavaFunction lookupFunction(String name) {
+        LispObject.JavaFunction function = functions.get(name);
+
+        if (function == null)
+            function = findFunction(name);
+
+        return function == NOT_FOUND ? null : function;
+    }
+
+    private synchronized LispObject.JavaFunction findFunction(String name) {
+        LispObject.JavaFunction function = NOT_FOUND;
+
         for (JavaInterface iface : interfaces) {
-            if (iface.isSupportedFunction(name))
-                return new LispObject.JavaFunction(name, iface);
+            if (iface.isSupportedFunction(name)) {
+                function = new LispObject.JavaFunction(name, iface, iface.getNativeFunction(name));
+                break;
+            }
         }
 
-        return null;
+        functions.put(name, function);
+        return function;
     }
 
-    public void registerInterface(JavaInterface iface) {
+    public synchronized void registerInterface(JavaInterface iface) {
         interfaces.add(iface);
+        functions.clear();
+        Node.CallSite.invalidateAll();
     }
 
-    public void registerInterfaces(Set<JavaInterface> ifaces) {
+    public synchronized void registerInterfaces(Set<JavaInterface> ifaces) {
         interfaces.addAll(ifaces);
+        functions.clear();
+        Node.CallSite.invalidateAll();
     }
 
-    public void deregisterInterface(JavaInterface iface) {
+    public synchronized void deregisterInterface(JavaInterface iface) {
         interfaces.remove(iface);
+        functions.clear();
+        Node.CallSite.invalidateAll();
     }
 }
@@ -5,16 +5,34 @@ import org.majora320.tealisp.parser.AstNode;
 import java.util.stream.Collectors;
 
 public abstract class LispObject {
+    /**
+     * The only Boolean and Void values the interpreter creates, so they can be compared by identity. Use these, or
+     * Boolean.valueOf, instead of the constructors.
+     */
+    public static final Boolean TRUE = new Boolean(true);
+    public static final Boolean FALSE = new Boolean(false);
+    public static final Void VOID = new Void();
+
+    final int typeTag;
+
+    protected LispObject() {
+        this(TypeTag.OTHER);
+    }
+
+    LispObject(int typeTag) {
+        this.typeTag = typeTag;
+    }
+
     @SuppressWarnings("unchecked")
     public static LispObject fromJavaObject(Object obj) throws ClassNotFoundException {
         if (obj instanceof java.lang.Integer) {
-            return new Integer((java.lang.Integer) obj);
+            return Integer.valueOf((java.lang.Integer) obj);
         } else if (obj instanceof java.lang.Double) {
             return new Double((java.lang.Double) obj);
         } else if (obj instanceof java.lang.String) {
             return new String((java.lang.String) obj);
         } else if (obj instanceof java.lang.Boolean) {
-            return new Boolean((java.lang.Boolean) obj);
+            return Boolean.valueOf((java.lang.Boolean) obj);
         } else if (obj instanceof java.util.List) {
             java.util.List<LispObject> converted;
 
@@ -38,9 +56,13 @@ public abstract class LispObject {
             }
 
             return new List(converted);
+        } else if (obj instanceof int[]) {
+            return new IntVector((int[]) obj);
+        } else if (obj instanceof double[]) {
+            return new DoubleVector((double[]) obj);
         } else if (obj.getClass().isEnum()) {
             // should work
-            return new Symbol(obj.toString());
+            return Symbol.intern(obj.toString());
         }
 
         throw new ClassNotFoundException("Matching Tealisp type not found for class " + obj.getClass());
@@ -48,17 +70,48 @@ public abstract class LispObject {
 
     public abstract Object getValue();
 
+    public int getTypeTag() {
+        return typeTag;
+    }
+
     public static abstract class Number extends LispObject {
+        Number(int typeTag) {
+            super(typeTag);
+        }
 
+        /**
+         * The value as a primitive double, without boxing it like getValue does.
+         */
+        public abstract double doubleValue();
     }
 
     public static class Integer extends Number {
+        private static final int CACHE_LOW = -128;
+        private static final int CACHE_HIGH = 1024;
+        private static final Integer[] cache = new Integer[CACHE_HIGH - CACHE_LOW + 1];
+
+        static {
+            for (int i = 0; i < cache.length; ++i)
+                cache[i] = new Integer(i + CACHE_LOW);
+        }
+
         private int value;
 
         public Integer(int value) {
+            super(TypeTag.INTEGER);
             this.value = value;
         }
 
+        /**
+         * Like java.lang.Integer.valueOf: small values come from a cache instead of being allocated.
+         */
+        public static Integer valueOf(int value) {
+            if (value >= CACHE_LOW && value <= CACHE_HIGH)
+                return cache[value - CACHE_LOW];
+
+            return new Integer(value);
+        }
+
         @Override
         public java.lang.String toString() {
             return java.lang.String.valueOf(value);
@@ -68,12 +121,32 @@ public abstract class LispObject {
         public java.lang.Integer getValue() {
             return value;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Integer && ((Integer) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value;
+        }
+
+        public int intValue() {
+            return value;
+        }
+
+        @Override
+        public double doubleValue() {
+            return value;
+        }
     }
 
     public static class Double extends Number {
         private double value;
 
         public Double(double value) {
+            super(TypeTag.DOUBLE);
             this.value = value;
         }
 
@@ -86,15 +159,55 @@ public abstract class LispObject {
         public java.lang.Double getValue() {
             return value;
         }
+
+        /**
+         * Same as java.lang.Double.equals, so NaN equals itself, and 1.0 doesn't equal the Integer 1.
+         */
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Double
+                    && java.lang.Double.doubleToLongBits(((Double) o).value) == java.lang.Double.doubleToLongBits(value);
+        }
+
+        @Override
+        public int hashCode() {
+            return java.lang.Double.hashCode(value);
+        }
+
+        @Override
+        public double doubleValue() {
+            return value;
+        }
     }
 
+    /**
+     * Symbols made with intern are canonical: there is one per name, so they can be compared with ==. The interpreter
+     * only makes symbols that way, but Symbols made with the constructor still compare equal by name.
+     */
     public static class Symbol extends LispObject {
+        private static final java.util.concurrent.ConcurrentHashMap<java.lang.String, Symbol> table =
+                new java.util.concurrent.ConcurrentHashMap<>();
+
         private java.lang.String value;
 
         public Symbol(java.lang.String value) {
+            super(TypeTag.SYMBOL);
             this.value = value;
         }
 
+        /**
+         * Returns the canonical symbol called `name`. Its name is the interned String, the same instance as the names
+         * the lexer produces. Interned symbols are never freed.
+         */
+        public static Symbol intern(java.lang.String name) {
+            Symbol symbol = table.get(name);
+
+            if (symbol == null)
+                symbol = table.computeIfAbsent(name.intern(), Symbol::new);
+
+            return symbol;
+        }
+
         @Override
         public java.lang.String toString() {
             return "'" + realToString();
@@ -108,12 +221,23 @@ public abstract class LispObject {
         public java.lang.String getValue() {
             return value;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o == this || (o instanceof Symbol && ((Symbol) o).value.equals(value));
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
     }
 
     public static class String extends LispObject {
         private java.lang.String value;
 
         public String(java.lang.String value) {
+            super(TypeTag.STRING);
             this.value = value;
         }
 
@@ -126,15 +250,30 @@ public abstract class LispObject {
         public java.lang.String getValue() {
             return value;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof String && ((String) o).value.equals(value);
+        }
+
+        @Override
+        public int hashCode() {
+            return value.hashCode();
+        }
     }
 
     public static class Boolean extends LispObject {
         private boolean value;
 
         public Boolean(boolean value) {
+            super(TypeTag.BOOLEAN);
             this.value = value;
         }
 
+        public static Boolean valueOf(boolean value) {
+            return value ? TRUE : FALSE;
+        }
+
         @Override
         public java.lang.String toString() {
             if (value)
@@ -147,13 +286,104 @@ public abstract class LispObject {
         public java.lang.Boolean getValue() {
             return value;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Boolean && ((Boolean) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value ? 1231 : 1237;
+        }
     }
 
+    /**
+     * An immutable list. Each List is either a cons cell, holding its first element and the rest of the list, or a
+     * slice running from `offset` to the end of an array. cons, car and cdr are all O(1), and lists built from Java or
+     * by `list` are stored flat, without a cell per element.
+     */
     public static class List extends LispObject {
-        private java.util.List<LispObject> elements;
+        public static final List EMPTY = new List(new LispObject[0], 0);
+
+        // Set for cons cells
+        private final LispObject first;
+        private final List rest;
+        // Set for array slices
+        private final LispObject[] array;
+        private final int offset;
 
+        private final int size;
+        // Computed on first use; lists are immutable, so it never changes
+        private int hash;
+
+        /**
+         * Copies `elements`, so later changes to it are not seen by the list.
+         */
         public List(java.util.List<LispObject> elements) {
-            this.elements = elements;
+            this(elements.toArray(new LispObject[0]), 0);
+        }
+
+        private List(LispObject[] array, int offset) {
+            super(TypeTag.LIST);
+            this.first = null;
+            this.rest = null;
+            this.array = array;
+            this.offset = offset;
+            this.size = array.length - offset;
+        }
+
+        private List(LispObject first, List rest) {
+            super(TypeTag.LIST);
+            this.first = first;
+            this.rest = rest;
+            this.array = null;
+            this.offset = 0;
+            this.size = rest.size + 1;
+        }
+
+        public static List of(LispObject... elements) {
+            return wrap(elements.clone());
+        }
+
+        /**
+         * Makes a list backed by `elements` without copying it. `elements` must not be changed afterwards.
+         */
+        static List wrap(LispObject[] elements) {
+            if (elements.length == 0)
+                return EMPTY;
+
+            return new List(elements, 0);
+        }
+
+        public List cons(LispObject element) {
+            return new List(element, this);
+        }
+
+        public LispObject car() throws LispException {
+            if (size == 0)
+                throw new LispException("Cannot take the car of an empty list");
+
+            return array == null ? first : array[offset];
+        }
+
+        public List cdr() throws LispException {
+            if (size == 0)
+                throw new LispException("Cannot take the cdr of an empty list");
+
+            if (array == null)
+                return rest;
+            if (size == 1)
+                return EMPTY;
+            return new List(array, offset + 1);
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
         }
 
         @Override
@@ -169,7 +399,7 @@ public abstract class LispObject {
 
             boolean once = false;
 
-            for (LispObject obj : elements) {
+            for (LispObject obj : getValue()) {
                 if (once)
                     res.append(" ");
                 else
@@ -188,16 +418,276 @@ public abstract class LispObject {
             return res.toString();
         }
 
-        // TODO: convert fully
+        /**
+         * A read-only java.util.List view of this list. Iterating over it is O(n), but get(i) has to walk past any
+         * cons cells in front of the index.
+         */
         @Override
         public java.util.List<LispObject> getValue() {
-            return elements;
+            return new View();
+        }
+
+        /**
+         * Lists are equal if they have equal elements in the same order, however they are stored.
+         */
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof List))
+                return false;
+
+            List other = (List) o;
+            if (other.size != size || (hash != 0 && other.hash != 0 && hash != other.hash))
+                return false;
+
+            java.util.Iterator<LispObject> it = other.getValue().iterator();
+            for (LispObject element : getValue()) {
+                if (!element.equals(it.next()))
+                    return false;
+            }
+
+            return true;
+        }
+
+        /**
+         * The same hash as java.util.List would give the elements.
+         */
+        @Override
+        public int hashCode() {
+            int h = hash;
+
+            if (h == 0) {
+                h = 1;
+                for (LispObject element : getValue())
+                    h = 31 * h + element.hashCode();
+
+                hash = h;
+            }
+
+            return h;
+        }
+
+        private final class View extends java.util.AbstractList<LispObject> {
+            @Override
+            public LispObject get(int index) {
+                if (index < 0 || index >= size)
+                    throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+
+                List list = List.this;
+                while (list.array == null) {
+                    if (index == 0)
+                        return list.first;
+
+                    --index;
+                    list = list.rest;
+                }
+
+                return list.array[list.offset + index];
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public java.util.Iterator<LispObject> iterator() {
+                return new java.util.Iterator<LispObject>() {
+                    private List list = List.this;
+                    private int index = list.offset;
+
+                    @Override
+                    public boolean hasNext() {
+                        return list.array == null || index < list.array.length;
+                    }
+
+                    @Override
+                    public LispObject next() {
+                        if (!hasNext())
+                            throw new java.util.NoSuchElementException();
+
+                        if (list.array != null)
+                            return list.array[index++];
+
+                        LispObject res = list.first;
+                        list = list.rest;
+                        index = list.offset;
+                        return res;
+                    }
+                };
+            }
+        }
+    }
+
+    /**
+     * A fixed-length, mutable vector of primitive numbers. Unlike a List of Integers or Doubles, the numbers are stored
+     * unboxed in a Java array.
+     */
+    public static abstract class Vector extends LispObject {
+        Vector(int typeTag) {
+            super(typeTag);
+        }
+
+        public abstract int length();
+    }
+
+    public static class IntVector extends Vector {
+        private final int[] values;
+
+        /**
+         * Uses `values` directly, without copying it, so changes on either side are seen by the other.
+         */
+        public IntVector(int[] values) {
+            super(TypeTag.INT_VECTOR);
+            this.values = values;
+        }
+
+        @Override
+        public int length() {
+            return values.length;
+        }
+
+        @Override
+        public java.lang.String toString() {
+            StringBuilder res = new StringBuilder("#s32(");
+
+            for (int i = 0; i < values.length; ++i) {
+                if (i != 0)
+                    res.append(" ");
+                res.append(values[i]);
+            }
+
+            return res.append(")").toString();
+        }
+
+        @Override
+        public int[] getValue() {
+            return values;
+        }
+
+        /**
+         * Vectors are mutable, so their hash changes with their contents. Don't change a vector used as a hash key.
+         */
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof IntVector && java.util.Arrays.equals(((IntVector) o).values, values);
+        }
+
+        @Override
+        public int hashCode() {
+            return java.util.Arrays.hashCode(values);
+        }
+    }
+
+    public static class DoubleVector extends Vector {
+        private final double[] values;
+
+        /**
+         * Uses `values` directly, without copying it, so changes on either side are seen by the other.
+         */
+        public DoubleVector(double[] values) {
+            super(TypeTag.DOUBLE_VECTOR);
+            this.values = values;
+        }
+
+        @Override
+        public int length() {
+            return values.length;
+        }
+
+        @Override
+        public java.lang.String toString() {
+            StringBuilder res = new StringBuilder("#f64(");
+
+            for (int i = 0; i < values.length; ++i) {
+                if (i != 0)
+                    res.append(" ");
+                res.append(values[i]);
+            }
+
+            return res.append(")").toString();
+        }
+
+        @Override
+        public double[] getValue() {
+            return values;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof DoubleVector && java.util.Arrays.equals(((DoubleVector) o).values, values);
+        }
+
+        @Override
+        public int hashCode() {
+            return java.util.Arrays.hashCode(values);
+        }
+    }
+
+    /**
+     * A mutable hash table mapping any LispObject to any LispObject, using their equals and hashCode. Two hash tables
+     * are only equal if they are the same table.
+     */
+    public static class HashTable extends LispObject {
+        private final OpenHashMap map;
+
+        public HashTable() {
+            this(new OpenHashMap());
+        }
+
+        HashTable(OpenHashMap map) {
+            super(TypeTag.HASH_TABLE);
+            this.map = map;
+        }
+
+        /**
+         * Returns null if there is no value for `key`.
+         */
+        public LispObject get(LispObject key) {
+            return map.get(key);
+        }
+
+        public LispObject put(LispObject key, LispObject value) {
+            return map.put(key, value);
+        }
+
+        public LispObject remove(LispObject key) {
+            return map.remove(key);
+        }
+
+        public int size() {
+            return map.size();
+        }
+
+        OpenHashMap map() {
+            return map;
+        }
+
+        @Override
+        public java.lang.String toString() {
+            return "#<hash-table:" + map.size() + ">";
+        }
+
+        /**
+         * A copy of the contents as a java.util.Map. Changes to it are not seen by the table.
+         */
+        @Override
+        public java.util.Map<LispObject, LispObject> getValue() {
+            java.util.Map<LispObject, LispObject> res = new java.util.HashMap<>();
+
+            for (int i = 0; i < map.capacity(); ++i) {
+                if (map.keyAt(i) != null)
+                    res.put(map.keyAt(i), map.valueAt(i));
+            }
+
+            return res;
         }
     }
 
     public static class Void extends LispObject {
         public Void() {
-
+            super(TypeTag.VOID);
         }
 
         @Override
@@ -209,20 +699,51 @@ public abstract class LispObject {
         public Object getValue() {
             return null;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Void;
+        }
+
+        @Override
+        public int hashCode() {
+            return 0;
+        }
     }
 
     public static class Function extends LispObject {
         public java.lang.String name;
         public java.util.List<java.lang.String> paramNames;
         public java.util.List<AstNode> body;
+        /**
+         * paramNames as an array, used as the slot names of each call's StackFrame.
+         */
+        java.lang.String[] paramArray;
+        /**
+         * The frame the function was created in, which is the parent of every frame it is called with. If null, the
+         * function only sees globals.
+         */
+        StackFrame closure;
+        /**
+         * The analyzed body. Set when the function is created by analyzed code, or the first time a compiling
+         * Interpreter calls a function without a closure.
+         */
+        Node.FunctionBody code;
 
         /**
          * name *can* be null. If so, this is a lambda (anonymous function).
          */
         public Function(java.lang.String name, java.util.List<java.lang.String> paramNames, java.util.List<AstNode> body) {
+            this(name, paramNames, body, null);
+        }
+
+        public Function(java.lang.String name, java.util.List<java.lang.String> paramNames, java.util.List<AstNode> body, StackFrame closure) {
+            super(TypeTag.FUNCTION);
             this.name = name;
             this.paramNames = paramNames;
             this.body = body;
+            this.closure = closure;
+            this.paramArray = paramNames.toArray(new java.lang.String[0]);
         }
 
         @Override
@@ -242,14 +763,24 @@ public abstract class LispObject {
     public static class JavaFunction extends LispObject {
         public java.lang.String name;
         public JavaInterface iface;
+        /**
+         * If not null, called instead of iface.runFunction.
+         */
+        public NativeFunction nativeFunction;
 
         /**
          * All parameters of `function` must be `LispObject`s. It should return a `LispObject`.
          * If the function does not have a value to return, it should return `LispVoid`, not `null`.
          */
         public JavaFunction(java.lang.String name, JavaInterface iface) {
+            this(name, iface, null);
+        }
+
+        public JavaFunction(java.lang.String name, JavaInterface iface, NativeFunction nativeFunction) {
+            super(TypeTag.JAVA_FUNCTION);
             this.name = name;
             this.iface = iface;
+            this.nativeFunction = nativeFunction;
         }
 
         @Override
@@ -265,6 +796,7 @@ public abstract class LispObject {
         private T value;
 
         public JavaObject(T value) {
+            super(TypeTag.JAVA_OBJECT);
             this.value = value;
         }
 
@@ -272,5 +804,15 @@ public abstract class LispObject {
         public T getValue() {
             return value;
         }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof JavaObject && java.util.Objects.equals(((JavaObject<?>) o).value, value);
+        }
+
+        @Override
+        public int hashCode() {
+            return java.util.Objects.hashCode(value);
+        }
     }
 }
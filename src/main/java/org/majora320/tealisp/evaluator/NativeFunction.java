@@ -0,0 +1,269 @@
+package org.majora320.tealisp.evaluator;
+
+/**
+ * A Java function that the interpreter can call directly, without going through JavaInterface.runFunction. Unlike
+ * runFunction, there is no dispatch on the function name, and argument types are checked against precomputed
+ * TypeTags instead of with reflection.
+ * <p>
+ * Create one with the `of` and `variadic` factories, and hand it out from JavaInterface.getNativeFunction. The
+ * interpreter calls the method matching the number of arguments at the call site, so a function with a fixed arity
+ * can be called without allocating an argument array.
+ */
+public abstract class NativeFunction {
+    @FunctionalInterface
+    public interface Body0 {
+        LispObject apply() throws LispException;
+    }
+
+    @FunctionalInterface
+    public interface Body1 {
+        LispObject apply(LispObject a) throws LispException;
+    }
+
+    @FunctionalInterface
+    public interface Body2 {
+        LispObject apply(LispObject a, LispObject b) throws LispException;
+    }
+
+    @FunctionalInterface
+    public interface Body3 {
+        LispObject apply(LispObject a, LispObject b, LispObject c) throws LispException;
+    }
+
+    @FunctionalInterface
+    public interface BodyN {
+        LispObject apply(LispObject[] params) throws LispException;
+    }
+
+    protected final String name;
+    private boolean pure = false;
+
+    protected NativeFunction(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Marks the function as pure: its result depends only on its arguments, it has no side effects, and what it
+     * returns can't be modified. A call to a pure function whose arguments are all constants is computed once, when
+     * the call is analyzed. Returns this.
+     */
+    public NativeFunction pure() {
+        pure = true;
+        return this;
+    }
+
+    public boolean isPure() {
+        return pure;
+    }
+
+    /**
+     * Calls the function with any number of arguments.
+     */
+    public abstract LispObject call(LispObject[] params) throws LispException;
+
+    public LispObject call0() throws LispException {
+        return call(new LispObject[]{});
+    }
+
+    public LispObject call1(LispObject a) throws LispException {
+        return call(new LispObject[]{a});
+    }
+
+    public LispObject call2(LispObject a, LispObject b) throws LispException {
+        return call(new LispObject[]{a, b});
+    }
+
+    public LispObject call3(LispObject a, LispObject b, LispObject c) throws LispException {
+        return call(new LispObject[]{a, b, c});
+    }
+
+    public static NativeFunction of(String name, Body0 body) {
+        return new Fixed0(name, body);
+    }
+
+    public static NativeFunction of(String name, int type, Body1 body) {
+        return new Fixed1(name, type, body);
+    }
+
+    public static NativeFunction of(String name, int type0, int type1, Body2 body) {
+        return new Fixed2(name, type0, type1, body);
+    }
+
+    public static NativeFunction of(String name, int type0, int type1, int type2, Body3 body) {
+        return new Fixed3(name, type0, type1, type2, body);
+    }
+
+    /**
+     * A function taking at least `types.length` parameters of the given types, followed by any number of parameters
+     * of type `restType`.
+     */
+    public static NativeFunction variadic(String name, int[] types, int restType, BodyN body) {
+        return new Variadic(name, types, restType, body, null);
+    }
+
+    /**
+     * Like variadic(name, types, restType, body), but calls with exactly two arguments go to `binary` instead, without
+     * an argument array. `binary` must give the same result as `body` would.
+     */
+    public static NativeFunction variadic(String name, int[] types, int restType, BodyN body, Body2 binary) {
+        return new Variadic(name, types, restType, body, binary);
+    }
+
+    protected void checkType(LispObject param, int types) throws LispException {
+        if ((param.typeTag & types) == 0)
+            throw new LispException("Type mismatch: expected " + TypeTag.name(types)
+                    + ", got " + param.getClass().getSimpleName() + " for function " + name);
+    }
+
+    protected LispException arityMismatch(int expected, int got) {
+        return new LispException("Arity mismatch: expected " + expected + " parameters, got "
+                + got + " for function " + name);
+    }
+
+    private static final class Fixed0 extends NativeFunction {
+        private final Body0 body;
+
+        Fixed0(String name, Body0 body) {
+            super(name);
+            this.body = body;
+        }
+
+        @Override
+        public LispObject call(LispObject[] params) throws LispException {
+            if (params.length != 0)
+                throw arityMismatch(0, params.length);
+
+            return body.apply();
+        }
+
+        @Override
+        public LispObject call0() throws LispException {
+            return body.apply();
+        }
+    }
+
+    private static final class Fixed1 extends NativeFunction {
+        private final int type;
+        private final Body1 body;
+
+        Fixed1(String name, int type, Body1 body) {
+            super(name);
+            this.type = type;
+            this.body = body;
+        }
+
+        @Override
+        public LispObject call(LispObject[] params) throws LispException {
+            if (params.length != 1)
+                throw arityMismatch(1, params.length);
+
+            return call1(params[0]);
+        }
+
+        @Override
+        public LispObject call1(LispObject a) throws LispException {
+            checkType(a, type);
+            return body.apply(a);
+        }
+    }
+
+    private static final class Fixed2 extends NativeFunction {
+        private final int type0;
+        private final int type1;
+        private final Body2 body;
+
+        Fixed2(String name, int type0, int type1, Body2 body) {
+            super(name);
+            this.type0 = type0;
+            this.type1 = type1;
+            this.body = body;
+        }
+
+        @Override
+        public LispObject call(LispObject[] params) throws LispException {
+            if (params.length != 2)
+                throw arityMismatch(2, params.length);
+
+            return call2(params[0], params[1]);
+        }
+
+        @Override
+        public LispObject call2(LispObject a, LispObject b) throws LispException {
+            checkType(a, type0);
+            checkType(b, type1);
+            return body.apply(a, b);
+        }
+    }
+
+    private static final class Fixed3 extends NativeFunction {
+        private final int type0;
+        private final int type1;
+        private final int type2;
+        private final Body3 body;
+
+        Fixed3(String name, int type0, int type1, int type2, Body3 body) {
+            super(name);
+            this.type0 = type0;
+            this.type1 = type1;
+            this.type2 = type2;
+            this.body = body;
+        }
+
+        @Override
+        public LispObject call(LispObject[] params) throws LispException {
+            if (params.length != 3)
+                throw arityMismatch(3, params.length);
+
+            return call3(params[0], params[1], params[2]);
+        }
+
+        @Override
+        public LispObject call3(LispObject a, LispObject b, LispObject c) throws LispException {
+            checkType(a, type0);
+            checkType(b, type1);
+            checkType(c, type2);
+            return body.apply(a, b, c);
+        }
+    }
+
+    private static final class Variadic extends NativeFunction {
+        private final int[] types;
+        private final int restType;
+        private final BodyN body;
+        private final Body2 binary;
+
+        Variadic(String name, int[] types, int restType, BodyN body, Body2 binary) {
+            super(name);
+            this.types = types;
+            this.restType = restType;
+            this.body = body;
+            this.binary = binary;
+        }
+
+        @Override
+        public LispObject call(LispObject[] params) throws LispException {
+            if (params.length < types.length)
+                throw new LispException("Arity mismatch: expected " + types.length + " or more parameters, got "
+                        + params.length + " for function " + name);
+
+            for (int i = 0; i < params.length; ++i)
+                checkType(params[i], i < types.length ? types[i] : restType);
+
+            return body.apply(params);
+        }
+
+        @Override
+        public LispObject call2(LispObject a, LispObject b) throws LispException {
+            if (binary == null || types.length > 2)
+                return call(new LispObject[]{a, b});
+
+            checkType(a, types.length > 0 ? types[0] : restType);
+            checkType(b, types.length > 1 ? types[1] : restType);
+            return binary.apply(a, b);
+        }
+    }
+}
@@ -0,0 +1,914 @@
+package org.majora320.tealisp.evaluator;
+
+import org.majora320.tealisp.parser.AstNode;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An executable node, produced from an AstNode by the Analyzer. Special forms and keyword checks
+ * are resolved once when the node is built, so execute() only does the work that depends on runtime values.
+ */
+abstract class Node {
+    abstract LispObject execute(StackFrame frame) throws LispException;
+
+    static boolean isFalse(LispObject value) {
+        if (value == LispObject.FALSE)
+            return true;
+
+        // Java code can still make its own Booleans
+        return value.typeTag == TypeTag.BOOLEAN && value != LispObject.TRUE && !((LispObject.Boolean) value).getValue();
+    }
+
+    static LispObject executeBody(Node[] body, StackFrame frame) throws LispException {
+        LispObject res = null;
+        for (Node node : body)
+            res = node.execute(frame);
+
+        return res;
+    }
+
+    static class Literal extends Node {
+        final LispObject value;
+
+        Literal(LispObject value) {
+            this.value = value;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) {
+            return value;
+        }
+    }
+
+    /**
+     * Code simplified by the Analyzer on the assumption that some global names still refer to the functions they did
+     * at analysis time, e.g. (* 2 3) folded into 6, or a call to a small function replaced by its body. `folded` runs
+     * as long as that holds; once any of the names is redefined, the unsimplified `original` runs instead, from then on.
+     */
+    static class Folded extends Node {
+        final Node folded;
+        final Node original;
+        final CallSite[] sites;
+        final LispObject[] assumed;
+        private int version;
+        private boolean invalid = false;
+
+        Folded(Node folded, Node original, CallSite[] sites, LispObject[] assumed) {
+            this.folded = folded;
+            this.original = original;
+            this.sites = sites;
+            this.assumed = assumed;
+            this.version = CallSite.currentVersion();
+        }
+
+        /**
+         * Whether the names still refer to the same functions. This only has to look them up again after a change
+         * that invalidates call sites.
+         */
+        boolean isValid() {
+            int current = CallSite.currentVersion();
+
+            if (version == current)
+                return true;
+            if (invalid)
+                return false;
+
+            for (int i = 0; i < sites.length; ++i) {
+                try {
+                    if (!isSameFunction(sites[i].resolve(), assumed[i])) {
+                        invalid = true;
+                        return false;
+                    }
+                } catch (LispException e) {
+                    invalid = true;
+                    return false;
+                }
+            }
+
+            version = current;
+            return true;
+        }
+
+        private static boolean isSameFunction(LispObject a, LispObject b) {
+            if (a == b)
+                return true;
+
+            // The JavaRegistry makes new JavaFunctions whenever its cache is cleared
+            return a instanceof LispObject.JavaFunction && b instanceof LispObject.JavaFunction
+                    && ((LispObject.JavaFunction) a).nativeFunction != null
+                    && ((LispObject.JavaFunction) a).nativeFunction == ((LispObject.JavaFunction) b).nativeFunction;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            return isValid() ? folded.execute(frame) : original.execute(frame);
+        }
+    }
+
+    /**
+     * A quote of something processQuotedObj rejects. Quotes of valid data are Literals, built during analysis.
+     */
+    static class Quote extends Node {
+        final AstNode quoted;
+        final Interpreter interpreter;
+
+        Quote(AstNode quoted, Interpreter interpreter) {
+            this.quoted = quoted;
+            this.interpreter = interpreter;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            return interpreter.processQuotedObj(quoted);
+        }
+    }
+
+    static class GlobalRef extends Node {
+        final String name;
+        final StackFrame globals;
+
+        GlobalRef(String name, StackFrame globals) {
+            this.name = name;
+            this.globals = globals;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject value = globals.lookupBinding(name);
+
+            if (value == null)
+                throw new LispException("Undefined variable: " + name);
+            return value;
+        }
+    }
+
+    /**
+     * A variable in the current function or its closure, `depth` frames up the parent chain.
+     */
+    static class LocalRef extends Node {
+        final String name;
+        final int depth;
+        final int slot;
+
+        LocalRef(String name, int depth, int slot) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject value = frame.ancestor(depth).getSlot(slot);
+
+            if (value == null)
+                throw new LispException("Undefined variable: " + name);
+            return value;
+        }
+    }
+
+    /**
+     * Reads a variable that is kept in a Box, because closures can see it being assigned.
+     */
+    static class BoxRef extends Node {
+        final String name;
+        final int depth;
+        final int slot;
+
+        BoxRef(String name, int depth, int slot) {
+            this.name = name;
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject value = ((StackFrame.Box) frame.ancestor(depth).getSlot(slot)).value;
+
+            if (value == null)
+                throw new LispException("Undefined variable: " + name);
+            return value;
+        }
+    }
+
+    /**
+     * Reads a slot as-is, without unboxing it. Used to copy variables into a closure.
+     */
+    static class SlotRef extends Node {
+        final int depth;
+        final int slot;
+
+        SlotRef(int depth, int slot) {
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) {
+            return frame.ancestor(depth).getSlot(slot);
+        }
+    }
+
+    /**
+     * A monomorphic inline cache for what a global name refers to when it is called: a Lisp function bound in the
+     * global frame, or otherwise a Java function. Anything that could change the answer (a define or set! of a global
+     * function, or a change to a JavaRegistry) calls invalidateAll, which moves the global version on; a cached
+     * function is used only while the version it was resolved at is still current.
+     */
+    static final class CallSite {
+        private static final AtomicInteger version = new AtomicInteger();
+
+        final String name;
+        private final Interpreter interpreter;
+        private LispObject function;
+        private int functionVersion;
+
+        CallSite(String name, Interpreter interpreter) {
+            this.name = name;
+            this.interpreter = interpreter;
+        }
+
+        static void invalidateAll() {
+            version.incrementAndGet();
+        }
+
+        static int currentVersion() {
+            return version.get();
+        }
+
+        LispObject resolve() throws LispException {
+            // Read before the lookup, so a change made during it isn't missed
+            int current = version.get();
+
+            if (function != null && functionVersion == current)
+                return function;
+
+            LispObject value = interpreter.lookupFunction(name, interpreter.globalFrame);
+
+            // Calling anything else is an error anyway, so it isn't worth keeping
+            if (isFunction(value)) {
+                function = value;
+                functionVersion = current;
+            }
+
+            return value;
+        }
+
+        static boolean isFunction(LispObject value) {
+            return value instanceof LispObject.Function || value instanceof LispObject.JavaFunction;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * A call whose head is a global name, which may resolve to either a Lisp binding or a Java function.
+     * <p>
+     * The call specializes itself to what it sees the first time it runs. A two-argument call to a Builtins arithmetic
+     * function or comparison on two Integers or two Doubles becomes just that operation on ints or doubles, and car
+     * or cdr on a List just calls car() or cdr(); a call to a Lisp function evaluates its arguments straight into the
+     * new frame. Each of these first checks that the name still refers to the same function and, for builtins, that
+     * the arguments have the types seen before. If not, the call deoptimizes for good to the GENERIC case, the plain
+     * call through invoke.
+     */
+    static class NamedCall extends Node {
+        private static final int UNINITIALIZED = 0;
+        private static final int GENERIC = 1;
+        private static final int INTEGER = 2;
+        private static final int DOUBLE = 3;
+        private static final int LIST = 4;
+        private static final int FUNCTION = 5;
+
+        // The builtins that can be specialized, indexed by the operation constants after them
+        private static final String[] OPERATIONS = {"+", "-", "*", "/", "<", ">", "<=", ">=", "=", "!=", "car", "cdr"};
+        private static final int ADD = 0;
+        private static final int SUBTRACT = 1;
+        private static final int MULTIPLY = 2;
+        private static final int DIVIDE = 3;
+        private static final int LESS = 4;
+        private static final int GREATER = 5;
+        private static final int LESS_EQUAL = 6;
+        private static final int GREATER_EQUAL = 7;
+        private static final int EQUAL = 8;
+        private static final int NOT_EQUAL = 9;
+        private static final int CAR = 10;
+        private static final int CDR = 11;
+
+        final CallSite site;
+        final Node[] arguments;
+        final Interpreter interpreter;
+        private int state = UNINITIALIZED;
+        private int operation;
+        private LispObject target;
+
+        NamedCall(String name, Node[] arguments, Interpreter interpreter) {
+            this.site = new CallSite(name, interpreter);
+            this.arguments = arguments;
+            this.interpreter = interpreter;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject function = site.resolve();
+
+            if (function == target) {
+                switch (state) {
+                    case INTEGER: {
+                        LispObject a = arguments[0].execute(frame);
+                        LispObject b = arguments[1].execute(frame);
+
+                        if (a.typeTag == TypeTag.INTEGER && b.typeTag == TypeTag.INTEGER)
+                            return apply(((LispObject.Integer) a).intValue(), ((LispObject.Integer) b).intValue());
+
+                        state = GENERIC;
+                        return ((LispObject.JavaFunction) function).nativeFunction.call2(a, b);
+                    }
+                    case DOUBLE: {
+                        LispObject a = arguments[0].execute(frame);
+                        LispObject b = arguments[1].execute(frame);
+
+                        if (a.typeTag == TypeTag.DOUBLE && b.typeTag == TypeTag.DOUBLE)
+                            return apply(((LispObject.Double) a).doubleValue(), ((LispObject.Double) b).doubleValue());
+
+                        state = GENERIC;
+                        return ((LispObject.JavaFunction) function).nativeFunction.call2(a, b);
+                    }
+                    case LIST: {
+                        LispObject a = arguments[0].execute(frame);
+
+                        if (a.typeTag == TypeTag.LIST)
+                            return operation == CAR ? ((LispObject.List) a).car() : ((LispObject.List) a).cdr();
+
+                        state = GENERIC;
+                        return ((LispObject.JavaFunction) function).nativeFunction.call1(a);
+                    }
+                    case FUNCTION:
+                        return interpreter.call((LispObject.Function) function, arguments, frame);
+                }
+            }
+
+            if (state == UNINITIALIZED)
+                return specialize(function, frame);
+
+            state = GENERIC;
+            return invoke(interpreter, function, arguments, frame);
+        }
+
+        /**
+         * Makes the first call, and picks the state for the ones after it.
+         */
+        private LispObject specialize(LispObject function, StackFrame frame) throws LispException {
+            state = GENERIC;
+            target = function;
+
+            if (function instanceof LispObject.Function) {
+                LispObject.Function lispFunction = (LispObject.Function) function;
+
+                // The bytecode VM doesn't run Nodes, and calls with the wrong arity are left to report their error
+                if (interpreter.getExecutionMode() != Interpreter.ExecutionMode.BYTECODE && lispFunction.code != null
+                        && lispFunction.paramNames.size() == arguments.length) {
+                    state = FUNCTION;
+                    return interpreter.call(lispFunction, arguments, frame);
+                }
+            } else if (function instanceof LispObject.JavaFunction && Builtins.isBuiltin((LispObject.JavaFunction) function)) {
+                operation = Arrays.asList(OPERATIONS).indexOf(((LispObject.JavaFunction) function).name);
+                NativeFunction nativeFunction = ((LispObject.JavaFunction) function).nativeFunction;
+
+                if (operation != -1 && operation < CAR && arguments.length == 2) {
+                    LispObject a = arguments[0].execute(frame);
+                    LispObject b = arguments[1].execute(frame);
+
+                    if (a.typeTag == TypeTag.INTEGER && b.typeTag == TypeTag.INTEGER)
+                        state = INTEGER;
+                    else if (a.typeTag == TypeTag.DOUBLE && b.typeTag == TypeTag.DOUBLE)
+                        state = DOUBLE;
+
+                    return nativeFunction.call2(a, b);
+                } else if (operation >= CAR && arguments.length == 1) {
+                    LispObject a = arguments[0].execute(frame);
+
+                    if (a.typeTag == TypeTag.LIST)
+                        state = LIST;
+
+                    return nativeFunction.call1(a);
+                }
+            }
+
+            return invoke(interpreter, function, arguments, frame);
+        }
+
+        /**
+         * The same as the Builtins function on two Integers.
+         */
+        private LispObject apply(int a, int b) {
+            switch (operation) {
+                case ADD:
+                    return LispObject.Integer.valueOf(a + b);
+                case SUBTRACT:
+                    return LispObject.Integer.valueOf(a - b);
+                case MULTIPLY:
+                    return LispObject.Integer.valueOf(a * b);
+                case DIVIDE:
+                    return LispObject.Integer.valueOf(a / b);
+                case LESS:
+                    return LispObject.Boolean.valueOf(a < b);
+                case GREATER:
+                    return LispObject.Boolean.valueOf(a > b);
+                case LESS_EQUAL:
+                    return LispObject.Boolean.valueOf(a <= b);
+                case GREATER_EQUAL:
+                    return LispObject.Boolean.valueOf(a >= b);
+                case EQUAL:
+                    return LispObject.Boolean.valueOf(a == b);
+                default:
+                    return LispObject.Boolean.valueOf(a != b);
+            }
+        }
+
+        /**
+         * The same as the Builtins function on two Doubles.
+         */
+        private LispObject apply(double a, double b) {
+            switch (operation) {
+                case ADD:
+                    return new LispObject.Double(a + b);
+                case SUBTRACT:
+                    return new LispObject.Double(a - b);
+                case MULTIPLY:
+                    return new LispObject.Double(a * b);
+                case DIVIDE:
+                    return new LispObject.Double(a / b);
+                case LESS:
+                    return LispObject.Boolean.valueOf(a < b);
+                case GREATER:
+                    return LispObject.Boolean.valueOf(a > b);
+                case LESS_EQUAL:
+                    return LispObject.Boolean.valueOf(a <= b);
+                case GREATER_EQUAL:
+                    return LispObject.Boolean.valueOf(a >= b);
+                case EQUAL:
+                    return LispObject.Boolean.valueOf(Double.compare(a, b) == 0);
+                default:
+                    return LispObject.Boolean.valueOf(Double.compare(a, b) != 0);
+            }
+        }
+    }
+
+    /**
+     * A call whose head is a local variable or an arbitrary expression, e.g. ((lambda (x) x) 1).
+     */
+    static class Call extends Node {
+        final Node function;
+        final Node[] arguments;
+        final Interpreter interpreter;
+
+        Call(Node function, Node[] arguments, Interpreter interpreter) {
+            this.function = function;
+            this.arguments = arguments;
+            this.interpreter = interpreter;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            return invoke(interpreter, function.execute(frame), arguments, frame);
+        }
+    }
+
+    /**
+     * The head of a tail call to a global name; resolves it the same way NamedCall does.
+     */
+    static class FunctionRef extends Node {
+        final CallSite site;
+
+        FunctionRef(String name, Interpreter interpreter) {
+            this.site = new CallSite(name, interpreter);
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            return site.resolve();
+        }
+    }
+
+    /**
+     * A call in tail position. Instead of making the call, this puts the arguments in the scratch slots at the end of
+     * the function's frame and returns TAIL_CALL, and the Interpreter.call loop that is running the function makes the call
+     * without growing the stack. `functionDepth` is the number of let frames between this node and the function's
+     * frame.
+     */
+    static class TailCall extends Node {
+        final Node function;
+        final Node[] arguments;
+        final int functionDepth;
+        final Interpreter interpreter;
+
+        TailCall(Node function, Node[] arguments, int functionDepth, Interpreter interpreter) {
+            this.function = function;
+            this.arguments = arguments;
+            this.functionDepth = functionDepth;
+            this.interpreter = interpreter;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject target = function.execute(frame);
+            StackFrame functionFrame = frame.ancestor(functionDepth);
+            int base = functionFrame.slotCount() - arguments.length;
+
+            for (int i = 0; i < arguments.length; ++i)
+                functionFrame.setSlot(base + i, arguments[i].execute(frame));
+
+            interpreter.tailFunction = target;
+            interpreter.tailArgumentCount = arguments.length;
+            return Interpreter.TAIL_CALL;
+        }
+    }
+
+    /**
+     * Calls `value` with the results of `arguments`. Native functions with up to three arguments are called through
+     * their fixed-arity entry points, so no argument array is allocated.
+     */
+    private static LispObject invoke(Interpreter interpreter, LispObject value, Node[] arguments, StackFrame frame) throws LispException {
+        if (value instanceof LispObject.JavaFunction && ((LispObject.JavaFunction) value).nativeFunction != null) {
+            NativeFunction nativeFunction = ((LispObject.JavaFunction) value).nativeFunction;
+
+            switch (arguments.length) {
+                case 0:
+                    return nativeFunction.call0();
+                case 1:
+                    return nativeFunction.call1(arguments[0].execute(frame));
+                case 2: {
+                    LispObject a = arguments[0].execute(frame);
+                    return nativeFunction.call2(a, arguments[1].execute(frame));
+                }
+                case 3: {
+                    LispObject a = arguments[0].execute(frame);
+                    LispObject b = arguments[1].execute(frame);
+                    return nativeFunction.call3(a, b, arguments[2].execute(frame));
+                }
+            }
+        }
+
+        return interpreter.call(value, evalArguments(arguments, frame), frame);
+    }
+
+    private static LispObject[] evalArguments(Node[] arguments, StackFrame frame) throws LispException {
+        LispObject[] values = new LispObject[arguments.length];
+
+        for (int i = 0; i < arguments.length; ++i)
+            values[i] = arguments[i].execute(frame);
+
+        return values;
+    }
+
+    static class Define extends Node {
+        final String name;
+        final Node value;
+
+        Define(String name, Node value) {
+            this.name = name;
+            this.value = value;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            frame.storeBinding(name, value.execute(frame));
+            return LispObject.VOID;
+        }
+    }
+
+    /**
+     * A define inside a function or let, which was given a slot in the current frame.
+     */
+    static class LocalDefine extends Node {
+        final int slot;
+        final Node value;
+
+        LocalDefine(int slot, Node value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            frame.setSlot(slot, value.execute(frame));
+            return LispObject.VOID;
+        }
+    }
+
+    static class BoxDefine extends Node {
+        final int slot;
+        final Node value;
+
+        BoxDefine(int slot, Node value) {
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            ((StackFrame.Box) frame.getSlot(slot)).value = value.execute(frame);
+            return LispObject.VOID;
+        }
+    }
+
+    static class GlobalSet extends Node {
+        final String name;
+        final Node value;
+        final StackFrame globals;
+
+        GlobalSet(String name, Node value, StackFrame globals) {
+            this.name = name;
+            this.value = value;
+            this.globals = globals;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            globals.modifyBinding(name, value.execute(frame));
+            return LispObject.VOID;
+        }
+    }
+
+    static class LocalSet extends Node {
+        final int depth;
+        final int slot;
+        final Node value;
+
+        LocalSet(int depth, int slot, Node value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject res = value.execute(frame);
+            StackFrame target = frame.ancestor(depth);
+
+            if (target.getSlot(slot) == null)
+                throw new LispException("Tried to call set! on an nonexistant identifier");
+
+            target.setSlot(slot, res);
+            return LispObject.VOID;
+        }
+    }
+
+    static class BoxSet extends Node {
+        final int depth;
+        final int slot;
+        final Node value;
+
+        BoxSet(int depth, int slot, Node value) {
+            this.depth = depth;
+            this.slot = slot;
+            this.value = value;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject res = value.execute(frame);
+            StackFrame.Box box = (StackFrame.Box) frame.ancestor(depth).getSlot(slot);
+
+            if (box.value == null)
+                throw new LispException("Tried to call set! on an nonexistant identifier");
+
+            box.value = res;
+            return LispObject.VOID;
+        }
+    }
+
+    /**
+     * Creates a function. The variables it uses from the enclosing scopes are copied into a new frame, whose parent
+     * is the global frame; if it doesn't use any, the global frame itself is the closure.
+     */
+    static class Lambda extends Node {
+        final String name;
+        final List<String> paramNames;
+        final List<AstNode> body;
+        final FunctionBody code;
+        final String[] captureNames;
+        final Node[] captureSources;
+        final StackFrame globals;
+
+        Lambda(String name, List<String> paramNames, List<AstNode> body, FunctionBody code,
+               String[] captureNames, Node[] captureSources, StackFrame globals) {
+            this.name = name;
+            this.paramNames = paramNames;
+            this.body = body;
+            this.code = code;
+            this.captureNames = captureNames;
+            this.captureSources = captureSources;
+            this.globals = globals;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            StackFrame closure = globals;
+
+            if (captureNames.length != 0) {
+                closure = new StackFrame(globals, captureNames);
+
+                for (int i = 0; i < captureSources.length; ++i)
+                    closure.setSlot(i, captureSources[i].execute(frame));
+            }
+
+            return function(closure);
+        }
+
+        LispObject.Function function(StackFrame closure) {
+            LispObject.Function function = new LispObject.Function(name, paramNames, body, closure);
+            function.code = code;
+            return function;
+        }
+    }
+
+    static class If extends Node {
+        final Node condition;
+        final Node then;
+        final Node otherwise;
+
+        If(Node condition, Node then, Node otherwise) {
+            this.condition = condition;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            if (isFalse(condition.execute(frame)))
+                return otherwise.execute(frame);
+            else
+                return then.execute(frame);
+        }
+    }
+
+    /**
+     * Handles both when and unless; `runOnTrue` is true for when.
+     */
+    static class WhenUnless extends Node {
+        final boolean runOnTrue;
+        final Node condition;
+        final Node[] body;
+
+        WhenUnless(boolean runOnTrue, Node condition, Node[] body) {
+            this.runOnTrue = runOnTrue;
+            this.condition = condition;
+            this.body = body;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            if (isFalse(condition.execute(frame)) == runOnTrue)
+                return LispObject.VOID;
+
+            return executeBody(body, frame);
+        }
+    }
+
+    /**
+     * `tests` has one entry per clause; a null test is an else clause, which can only be the last one.
+     */
+    static class Cond extends Node {
+        final Node[] tests;
+        final Node[][] bodies;
+
+        Cond(Node[] tests, Node[][] bodies) {
+            this.tests = tests;
+            this.bodies = bodies;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            for (int i = 0; i < tests.length; ++i) {
+                if (tests[i] == null)
+                    return bodies[i].length == 0 ? LispObject.VOID : executeBody(bodies[i], frame);
+
+                LispObject condition = tests[i].execute(frame);
+                if (!isFalse(condition))
+                    return bodies[i].length == 0 ? condition : executeBody(bodies[i], frame);
+            }
+
+            return LispObject.VOID;
+        }
+    }
+
+    static class And extends Node {
+        final Node[] terms;
+
+        And(Node[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            LispObject res = LispObject.TRUE;
+            for (Node term : terms) {
+                res = term.execute(frame);
+                if (isFalse(res))
+                    return res;
+            }
+
+            return res;
+        }
+    }
+
+    static class Or extends Node {
+        final Node[] terms;
+
+        Or(Node[] terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            for (Node term : terms) {
+                LispObject res = term.execute(frame);
+                if (!isFalse(res))
+                    return res;
+            }
+
+            return LispObject.FALSE;
+        }
+    }
+
+    /**
+     * Puts a new Box around each slot that needs one, holding whatever the slot held before.
+     */
+    static void boxSlots(boolean[] boxed, int from, StackFrame frame) {
+        for (int i = from; i < boxed.length; ++i) {
+            if (boxed[i])
+                frame.setSlot(i, new StackFrame.Box(frame.getSlot(i)));
+        }
+    }
+
+    /**
+     * Handles both let and let*; with `sequential` set, each value can see the bindings before it. The bound
+     * variables take the first slots of the new frame, followed by any internal defines.
+     */
+    static class Let extends Node {
+        final boolean sequential;
+        final String[] slotNames;
+        final boolean[] boxed;
+        final Node[] values;
+        final Node[] body;
+
+        Let(boolean sequential, String[] slotNames, boolean[] boxed, Node[] values, Node[] body) {
+            this.sequential = sequential;
+            this.slotNames = slotNames;
+            this.boxed = boxed;
+            this.values = values;
+            this.body = body;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            StackFrame newFrame = new StackFrame(frame, slotNames);
+
+            for (int i = 0; i < values.length; ++i) {
+                LispObject value = values[i].execute(sequential ? newFrame : frame);
+                newFrame.setSlot(i, boxed[i] ? new StackFrame.Box(value) : value);
+            }
+
+            boxSlots(boxed, values.length, newFrame);
+            return executeBody(body, newFrame);
+        }
+    }
+
+    /**
+     * The analyzed body of a LispObject.Function. The parameters take the first slots of the frame it runs in,
+     * followed by any internal defines and then `scratchSize` unnamed slots for the arguments of tail calls.
+     * <p>
+     * In TIERED mode, the Interpreter counts calls in `calls` and sets `compiled` once the body is compiled. These live
+     * here rather than on the LispObject.Function because every closure made by the same lambda shares its body.
+     */
+    static class FunctionBody extends Node {
+        final String[] slotNames;
+        final int scratchSize;
+        final boolean[] boxed;
+        final Node[] body;
+        int calls;
+        CompiledFunction compiled;
+        // Set if the body is too large to compile, so it isn't tried again
+        boolean uncompilable;
+        // The body compiled for the VirtualMachine, in BYTECODE mode
+        Chunk chunk;
+
+        FunctionBody(String[] slotNames, boolean[] boxed, int scratchSize, Node[] body) {
+            this.slotNames = slotNames;
+            this.boxed = boxed;
+            this.scratchSize = scratchSize;
+            this.body = body;
+        }
+
+        @Override
+        LispObject execute(StackFrame frame) throws LispException {
+            boxSlots(boxed, 0, frame);
+            return executeBody(body, frame);
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.majora320.tealisp.evaluator;
+
+/**
+ * The map behind LispObject.HashTable. Keys and values are stored in two flat arrays and collisions are resolved by
+ * linear probing, so a lookup is a hash, an index and usually one equals call, with no entry objects. Removal shifts
+ * later entries of the same probe run back instead of leaving tombstones.
+ */
+final class OpenHashMap {
+    private static final int MIN_CAPACITY = 8;
+
+    private LispObject[] keys;
+    private LispObject[] values;
+    private int size;
+    // 32 - log2(capacity); slot() takes the top bits of the scrambled hash
+    private int shift;
+
+    OpenHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    OpenHashMap(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity * 2 < expectedSize * 3)
+            capacity <<= 1;
+
+        keys = new LispObject[capacity];
+        values = new LispObject[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns null if `key` is not in the map.
+     */
+    LispObject get(LispObject key) {
+        int mask = keys.length - 1;
+
+        for (int i = slot(key); keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key))
+                return values[i];
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the previous value for `key`, or null if there wasn't one.
+     */
+    LispObject put(LispObject key, LispObject value) {
+        // Keep the load factor under 2/3, so probe runs stay short
+        if ((size + 1) * 3 > keys.length * 2)
+            resize(keys.length * 2);
+
+        int mask = keys.length - 1;
+        int i = slot(key);
+
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key)) {
+                LispObject old = values[i];
+                values[i] = value;
+                return old;
+            }
+        }
+
+        keys[i] = key;
+        values[i] = value;
+        ++size;
+        return null;
+    }
+
+    /**
+     * Returns the removed value, or null if `key` was not in the map.
+     */
+    LispObject remove(LispObject key) {
+        int mask = keys.length - 1;
+        int i = slot(key);
+
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(key))
+                break;
+        }
+
+        if (keys[i] == null)
+            return null;
+
+        LispObject old = values[i];
+        --size;
+
+        // Move back any later entry in the run that would no longer be reachable from its home slot
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != null; j = (j + 1) & mask) {
+            int home = slot(keys[j]);
+
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+
+        keys[hole] = null;
+        values[hole] = null;
+        return old;
+    }
+
+    /**
+     * The number of slots, including empty ones. Slots are visited by index with keyAt and valueAt.
+     */
+    int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * The key in slot `i`, or null if the slot is empty.
+     */
+    LispObject keyAt(int i) {
+        return keys[i];
+    }
+
+    LispObject valueAt(int i) {
+        return values[i];
+    }
+
+    private int slot(LispObject key) {
+        // Fibonacci hashing, so small or sequential hashes like those of Integers don't all land in one run
+        return (key.hashCode() * 0x9E3779B9) >>> shift;
+    }
+
+    private void resize(int capacity) {
+        LispObject[] oldKeys = keys;
+        LispObject[] oldValues = values;
+        int mask = capacity - 1;
+
+        keys = new LispObject[capacity];
+        values = new LispObject[capacity];
+        shift = Integer.numberOfLeadingZeros(capacity) + 1;
+
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] == null)
+                continue;
+
+            int j = slot(oldKeys[i]);
+            while (keys[j] != null)
+                j = (j + 1) & mask;
+
+            keys[j] = oldKeys[i];
+            values[j] = oldValues[i];
+        }
+    }
+}
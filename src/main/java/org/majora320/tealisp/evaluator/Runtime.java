@@ -1,8 +1,5 @@
 package org.majora320.tealisp.evaluator;
 
-
-import java.util.Arrays;
-
 public class Runtime {
     protected JavaRegistry registry;
     private Interpreter interpreter;
@@ -13,6 +10,6 @@ public class Runtime {
     }
 
     public LispObject callFunction(String name, LispObject... args) throws LispException {
-        return interpreter.applyNoSpecials(name, Arrays.asList(args), interpreter.globalFrame);
+        return interpreter.call(interpreter.lookupFunction(name, interpreter.globalFrame), args, interpreter.globalFrame);
     }
 }
@@ -6,28 +6,31 @@ import java.util.List;
 import java.util.stream.Collectors;
 
 class SpecialForms {
-    static LispObject handleSpecials(String name, List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
+    /**
+     * If `tail` is true, the special form is in tail position, and so are the subexpressions it returns the value of.
+     */
+    static LispObject handleSpecials(String name, List<AstNode> contents, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
         switch (name) {
             case "define":
                 return define(contents, frame, interpreter);
             case "lambda":
-                return lambda(contents);
+                return lambda(contents, frame);
             case "let":
             case "let*":
-                return let(name, contents, frame, interpreter);
+                return let(name, contents, frame, interpreter, tail);
             case "set!":
                 return set(contents, frame, interpreter);
             case "if":
-                return if_(contents, frame, interpreter);
+                return if_(contents, frame, interpreter, tail);
             case "when":
             case "unless":
-                return whenUnless(name, contents, frame, interpreter);
+                return whenUnless(name, contents, frame, interpreter, tail);
             case "cond":
-                return cond(contents, frame, interpreter);
+                return cond(contents, frame, interpreter, tail);
             case "and":
-                return and(contents, frame, interpreter);
+                return and(contents, frame, interpreter, tail);
             case "or":
-                return or(contents, frame, interpreter);
+                return or(contents, frame, interpreter, tail);
             case "quote":
                 return quote(contents, frame, interpreter);
         }
@@ -35,6 +38,13 @@ class SpecialForms {
         throw new LispException("Something has gone horribly wrong. Please consult a local moose to update this.");
     }
 
+    private static LispObject eval(AstNode node, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
+        if (tail)
+            return interpreter.evalTail(node, frame);
+        else
+            return interpreter.eval(node, frame);
+    }
+
     private static LispObject define(List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
         if (contents.size() < 2)
             throw new LispException("Define missing body");
@@ -66,13 +76,13 @@ class SpecialForms {
                     .map(node -> ((AstNode.Name) node).value)
                     .collect(Collectors.toList());
 
-            frame.storeBinding(name, new LispObject.Function(name, paramNames, contents.subList(1, contents.size())));
+            frame.storeBinding(name, new LispObject.Function(name, paramNames, contents.subList(1, contents.size()), frame));
         }
 
-        return new LispObject.Void();
+        return LispObject.VOID;
     }
 
-    private static LispObject lambda(List<AstNode> contents) throws LispException {
+    private static LispObject lambda(List<AstNode> contents, StackFrame frame) throws LispException {
         if (contents.size() < 2)
             throw new LispException("Lambda missing body");
 
@@ -92,10 +102,10 @@ class SpecialForms {
                 .map(node -> ((AstNode.Name) node).value)
                 .collect(Collectors.toList());
 
-        return new LispObject.Function(null, paramNames, contents.subList(1, contents.size()));
+        return new LispObject.Function(null, paramNames, contents.subList(1, contents.size()), frame);
     }
 
-    private static LispObject let(String name, List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
+    private static LispObject let(String name, List<AstNode> contents, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
         if (contents.size() < 2)
             throw new LispException("Let clause missing pairs or body");
 
@@ -104,10 +114,12 @@ class SpecialForms {
         if (!(rawPairs instanceof AstNode.Sexp))
             throw new LispException("Expected a list of binding pairs in let clause, got something else: " + rawPairs);
 
-        AstNode.Sexp pairs = (AstNode.Sexp) rawPairs;
+        List<AstNode> pairs = ((AstNode.Sexp) rawPairs).contents;
+        String[] names = new String[pairs.size()];
+
+        for (int i = 0; i < pairs.size(); ++i) {
+            AstNode rawPair = pairs.get(i);
 
-        StackFrame newFrame = new StackFrame(frame);
-        for (AstNode rawPair : pairs.contents) {
             if (!(rawPair instanceof AstNode.Sexp))
                 throw new LispException("Expected a binding pair, got something else: " + rawPair);
 
@@ -120,17 +132,22 @@ class SpecialForms {
             if (!(rawName instanceof AstNode.Name))
                 throw new LispException("Expected name, got something else: " + rawName);
 
-            AstNode.Name varName = (AstNode.Name) rawName;
+            names[i] = ((AstNode.Name) rawName).value;
+        }
+
+        StackFrame newFrame = new StackFrame(frame, names);
+        for (int i = 0; i < pairs.size(); ++i) {
+            AstNode value = ((AstNode.Sexp) pairs.get(i)).contents.get(1);
 
             if (name.equals("let"))
-                newFrame.storeBinding(varName.value, interpreter.eval(pair.contents.get(1), new StackFrame(frame)));
+                newFrame.setSlot(i, interpreter.eval(value, new StackFrame(frame)));
             else // let*
-                newFrame.storeBinding(varName.value, interpreter.eval(pair.contents.get(1), new StackFrame(newFrame)));
+                newFrame.setSlot(i, interpreter.eval(value, new StackFrame(newFrame)));
         }
 
         LispObject res = null; // must always be one statement, so this can never return null
         for (int i = 1; i < contents.size(); ++i)
-            res = interpreter.eval(contents.get(i), newFrame);
+            res = eval(contents.get(i), newFrame, interpreter, tail && i == contents.size() - 1);
 
         return res;
     }
@@ -147,22 +164,22 @@ class SpecialForms {
         LispObject value = interpreter.eval(contents.get(1), new StackFrame(frame));
         frame.modifyBinding(((AstNode.Name) rawName).value, value);
 
-        return new LispObject.Void();
+        return LispObject.VOID;
     }
 
-    private static LispObject if_(List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
+    private static LispObject if_(List<AstNode> contents, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
         if (contents.size() != 3)
             throw new LispException("If expression must have exactly 3 arguments");
 
         LispObject condition = interpreter.eval(contents.get(0), new StackFrame(frame));
 
-        if ((condition instanceof LispObject.Boolean) && !((LispObject.Boolean) condition).getValue())
-            return interpreter.eval(contents.get(2), new StackFrame(frame));
+        if (Node.isFalse(condition))
+            return eval(contents.get(2), new StackFrame(frame), interpreter, tail);
         else
-            return interpreter.eval(contents.get(1), new StackFrame(frame));
+            return eval(contents.get(1), new StackFrame(frame), interpreter, tail);
     }
 
-    private static LispObject whenUnless(String name, List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
+    private static LispObject whenUnless(String name, List<AstNode> contents, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
         if (contents.size() < 2)
             throw new LispException((name.equals("when") ? "When" : "Unless") + " expression must have two or more arguments");
 
@@ -170,27 +187,27 @@ class SpecialForms {
         LispObject res = null;
         LispObject condition = interpreter.eval(contents.get(0), new StackFrame(frame));
 
-        if (condition instanceof LispObject.Boolean && !((LispObject.Boolean) condition).getValue()) {
+        if (Node.isFalse(condition)) {
             if (name.equals("when")) {
-                return new LispObject.Void();
+                return LispObject.VOID;
             } else {
                 for (int i = 1; i < contents.size(); ++i)
-                    res = interpreter.eval(contents.get(i), new StackFrame(frame));
+                    res = eval(contents.get(i), new StackFrame(frame), interpreter, tail && i == contents.size() - 1);
                 return res;
             }
         } else {
             if (name.equals("when")) {
                 for (int i = 1; i < contents.size(); ++i)
-                    res = interpreter.eval(contents.get(i), new StackFrame(frame));
+                    res = eval(contents.get(i), new StackFrame(frame), interpreter, tail && i == contents.size() - 1);
                 return res;
             } else {
-                return new LispObject.Void();
+                return LispObject.VOID;
             }
         }
     }
 
-    private static LispObject cond(List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
-        LispObject res = new LispObject.Void();
+    private static LispObject cond(List<AstNode> contents, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
+        LispObject res = LispObject.VOID;
         if (contents.size() == 0)
             throw new LispException("Encountered a disappointing lack of arguments in cond");
 
@@ -208,7 +225,7 @@ class SpecialForms {
             if (clause.get(0) instanceof AstNode.Name
                     && ((AstNode.Name) clause.get(0)).value.equals("else")) {
                 for (int j = 1; j < clause.size(); ++j) {
-                    res = interpreter.eval(clause.get(j), new StackFrame(frame));
+                    res = eval(clause.get(j), new StackFrame(frame), interpreter, tail && j == clause.size() - 1);
                 }
 
                 if (i != contents.size() - 1)
@@ -219,12 +236,11 @@ class SpecialForms {
 
 
             LispObject condCondition = interpreter.eval(clause.get(0), new StackFrame(frame));
-            if (!(condCondition instanceof LispObject.Boolean
-                    && !((LispObject.Boolean) condCondition).getValue())) {
+            if (!Node.isFalse(condCondition)) {
                 res = condCondition;
 
                 for (int j = 1; j < clause.size(); j++) {
-                    res = interpreter.eval(clause.get(j), new StackFrame(frame));
+                    res = eval(clause.get(j), new StackFrame(frame), interpreter, tail && j == clause.size() - 1);
                 }
 
                 return res;
@@ -234,27 +250,27 @@ class SpecialForms {
         return res;
     }
 
-    private static LispObject and(List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
-        LispObject andRes = new LispObject.Boolean(true);
-        for (AstNode node : contents) {
-            andRes = interpreter.eval(node, new StackFrame(frame));
-            if (andRes instanceof LispObject.Boolean && !((LispObject.Boolean) andRes).getValue())
+    private static LispObject and(List<AstNode> contents, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
+        LispObject andRes = LispObject.TRUE;
+        for (int i = 0; i < contents.size(); ++i) {
+            andRes = eval(contents.get(i), new StackFrame(frame), interpreter, tail && i == contents.size() - 1);
+            if (Node.isFalse(andRes))
                 return andRes;
         }
 
         return andRes;
     }
 
-    private static LispObject or(List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
-        for (AstNode node : contents) {
-            LispObject orRes = interpreter.eval(node, new StackFrame(frame));
-            if (orRes instanceof LispObject.Boolean && !((LispObject.Boolean) orRes).getValue())
+    private static LispObject or(List<AstNode> contents, StackFrame frame, Interpreter interpreter, boolean tail) throws LispException {
+        for (int i = 0; i < contents.size(); ++i) {
+            LispObject orRes = eval(contents.get(i), new StackFrame(frame), interpreter, tail && i == contents.size() - 1);
+            if (Node.isFalse(orRes))
                 continue;
 
             return orRes;
         }
 
-        return new LispObject.Boolean(false);
+        return LispObject.FALSE;
     }
 
     private static LispObject quote(List<AstNode> contents, StackFrame frame, Interpreter interpreter) throws LispException {
@@ -265,7 +281,7 @@ class SpecialForms {
         AstNode content = contents.get(0);
 
         if (content instanceof AstNode.Name) {
-            return new LispObject.Symbol(((AstNode.Name) content).value);
+            return LispObject.Symbol.intern(((AstNode.Name) content).value);
         } else if (content instanceof AstNode.Sexp) {
             return interpreter.processQuotedObj(content);
         } else {
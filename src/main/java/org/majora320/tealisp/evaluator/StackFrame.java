@@ -1,51 +1,209 @@
 package org.majora320.tealisp.evaluator;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A frame holds its bindings in two places: an array of slots with a fixed set of names (function parameters and
+ * let variables), which the analyzer can address by index, and a map for anything else stored by name. The map is
+ * only allocated when something is actually stored in it.
+ */
 public class StackFrame {
+    /**
+     * A mutable cell for a slot that is shared between a frame and the closures created in it. The value is null
+     * until the variable is defined.
+     */
+    static final class Box extends LispObject {
+        LispObject value;
+
+        Box(LispObject value) {
+            this.value = value;
+        }
+
+        @Override
+        public Object getValue() {
+            return value;
+        }
+    }
+
     private StackFrame parent;
-    private Map<String, LispObject> bindings = new HashMap<>();
+    private Map<String, LispObject> bindings;
+    private String[] names;
+    private LispObject[] slots;
 
     public StackFrame() {
-        parent = null;
+        this((StackFrame) null);
     }
 
     public StackFrame(StackFrame parent) {
         this.parent = parent;
     }
 
+    /**
+     * Creates a frame with one empty slot for each of `names`. The array is not copied, and should not be modified.
+     */
+    public StackFrame(StackFrame parent, String[] names) {
+        this(parent, names, 0);
+    }
+
+    /**
+     * Like StackFrame(StackFrame, String[]), but with `unnamedSlots` more slots after the named ones, which can only
+     * be accessed by index.
+     */
+    StackFrame(StackFrame parent, String[] names, int unnamedSlots) {
+        this.parent = parent;
+        this.names = names;
+        this.slots = new LispObject[names.length + unnamedSlots];
+    }
+
     public LispObject lookupBinding(String name) {
-        LispObject value = bindings.get(name);
+        for (StackFrame frame = this; frame != null; frame = frame.parent) {
+            LispObject value = frame.lookupLocal(name);
 
-        if (value == null) {
-            if (parent == null)
-                return null;
-            else
-                return parent.lookupBinding(name);
+            if (value != null)
+                return value;
         }
 
-        return value;
+        return null;
+    }
+
+    private LispObject lookupLocal(String name) {
+        int slot = boundSlotIndex(name);
+
+        if (slot != -1)
+            return unbox(slots[slot]);
+
+        return bindings == null ? null : bindings.get(name);
+    }
+
+    /**
+     * Finds the slot that `name` would be stored into.
+     */
+    private int slotIndex(String name) {
+        if (names == null)
+            return -1;
+
+        // Later slots shadow earlier ones with the same name, e.g. in (let* ((x 1) (x 2)) x)
+        for (int i = names.length - 1; i >= 0; --i) {
+            if (names[i].equals(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    /**
+     * Finds the last slot named `name` that has actually been given a value.
+     */
+    private int boundSlotIndex(String name) {
+        if (names == null)
+            return -1;
+
+        for (int i = names.length - 1; i >= 0; --i) {
+            if (unbox(slots[i]) != null && names[i].equals(name))
+                return i;
+        }
+
+        return -1;
+    }
+
+    private static LispObject unbox(LispObject value) {
+        return value instanceof Box ? ((Box) value).value : value;
     }
 
     public void storeBinding(String name, LispObject value) {
-        bindings.put(name, value);
+        int slot = slotIndex(name);
+
+        if (slot != -1) {
+            if (slots[slot] instanceof Box)
+                ((Box) slots[slot]).value = value;
+            else
+                slots[slot] = value;
+            return;
+        }
+
+        if (bindings == null)
+            bindings = new HashMap<>();
+        bindingChanged(bindings.put(name, value), value);
+    }
+
+    /**
+     * Invalidates the Node.CallSite caches if a change to a global binding could change what a call resolves to. Global
+     * variables that never hold functions, like a counter updated with set! in a loop, leave them alone.
+     */
+    private void bindingChanged(LispObject old, LispObject value) {
+        if (parent == null && (old == null || Node.CallSite.isFunction(old) || Node.CallSite.isFunction(value)))
+            Node.CallSite.invalidateAll();
     }
 
     public void modifyBinding(String name, LispObject value) throws LispException {
-        if (bindings.containsKey(name)) {
-            bindings.put(name, value);
-            return;
+        for (StackFrame frame = this; frame != null; frame = frame.parent) {
+            int slot = frame.boundSlotIndex(name);
+
+            if (slot != -1) {
+                if (frame.slots[slot] instanceof Box)
+                    ((Box) frame.slots[slot]).value = value;
+                else
+                    frame.slots[slot] = value;
+                return;
+            }
+
+            if (frame.bindings != null && frame.bindings.containsKey(name)) {
+                frame.bindingChanged(frame.bindings.put(name, value), value);
+                return;
+            }
         }
 
-        if (parent == null)
-            throw new LispException("Tried to call set! on an nonexistant identifier");
-        else
-            parent.modifyBinding(name, value);
+        throw new LispException("Tried to call set! on an nonexistant identifier");
+    }
+
+    /**
+     * Returns the frame `depth` levels up the parent chain; depth 0 is this frame.
+     */
+    StackFrame ancestor(int depth) {
+        StackFrame frame = this;
+        for (; depth > 0; --depth)
+            frame = frame.parent;
+
+        return frame;
+    }
+
+    int slotCount() {
+        return slots.length;
+    }
+
+    /**
+     * Reuses this frame for another call to the same function: moves the `count` slots starting at `from` to the
+     * start of the frame as the new arguments, and clears everything after them.
+     */
+    void rebind(int from, int count) {
+        System.arraycopy(slots, from, slots, 0, count);
+        Arrays.fill(slots, count, slots.length, null);
+    }
+
+    LispObject getSlot(int slot) {
+        return slots[slot];
+    }
+
+    void setSlot(int slot, LispObject value) {
+        slots[slot] = value;
     }
 
     @Override
     public String toString() {
-        return bindings.toString() + "\nParent: " + parent;
+        Map<String, LispObject> all = new HashMap<>();
+
+        if (names != null) {
+            for (int i = 0; i < names.length; ++i) {
+                if (unbox(slots[i]) != null)
+                    all.put(names[i], unbox(slots[i]));
+            }
+        }
+
+        if (bindings != null)
+            all.putAll(bindings);
+
+        return all.toString() + "\nParent: " + parent;
     }
 }
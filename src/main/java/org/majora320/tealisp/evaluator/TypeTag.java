@@ -0,0 +1,67 @@
+package org.majora320.tealisp.evaluator;
+
+/**
+ * Every LispObject has a type tag with one bit set, so checking whether a value has one of a set of types is a
+ * single AND against the OR of their tags. Used by NativeFunction to check argument types.
+ */
+public final class TypeTag {
+    public static final int INTEGER = 1;
+    public static final int DOUBLE = 1 << 1;
+    public static final int SYMBOL = 1 << 2;
+    public static final int STRING = 1 << 3;
+    public static final int BOOLEAN = 1 << 4;
+    public static final int LIST = 1 << 5;
+    public static final int VOID = 1 << 6;
+    public static final int FUNCTION = 1 << 7;
+    public static final int JAVA_FUNCTION = 1 << 8;
+    public static final int JAVA_OBJECT = 1 << 9;
+    public static final int INT_VECTOR = 1 << 10;
+    public static final int DOUBLE_VECTOR = 1 << 11;
+    public static final int HASH_TABLE = 1 << 12;
+    /**
+     * Anything else, e.g. subclasses of LispObject defined outside of Tealisp.
+     */
+    public static final int OTHER = 1 << 30;
+
+    public static final int NUMBER = INTEGER | DOUBLE;
+    public static final int VECTOR = INT_VECTOR | DOUBLE_VECTOR;
+    public static final int ANY = -1;
+
+    private static final int[] tags = {
+            INTEGER, DOUBLE, SYMBOL, STRING, BOOLEAN, LIST, VOID, FUNCTION, JAVA_FUNCTION, JAVA_OBJECT, INT_VECTOR,
+            DOUBLE_VECTOR, HASH_TABLE, OTHER
+    };
+    private static final String[] names = {
+            "Integer", "Double", "Symbol", "String", "Boolean", "List", "Void", "Function", "JavaFunction",
+            "JavaObject", "IntVector", "DoubleVector", "HashTable", "LispObject"
+    };
+
+    private TypeTag() {
+
+    }
+
+    /**
+     * Describes a set of types for error messages, using the same names as the LispObject classes.
+     */
+    public static String name(int types) {
+        if (types == ANY)
+            return "LispObject";
+        if (types == NUMBER)
+            return "Number";
+        if (types == VECTOR)
+            return "Vector";
+
+        StringBuilder res = new StringBuilder();
+
+        for (int i = 0; i < tags.length; ++i) {
+            if ((types & tags[i]) == 0)
+                continue;
+
+            if (res.length() != 0)
+                res.append(" or ");
+            res.append(names[i]);
+        }
+
+        return res.toString();
+    }
+}
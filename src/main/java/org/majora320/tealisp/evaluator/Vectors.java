@@ -0,0 +1,359 @@
+package org.majora320.tealisp.evaluator;
+
+import java.util.Arrays;
+
+/**
+ * The kernels behind the vector builtins. Each bulk operation is a plain loop over the backing arrays, picked once per
+ * call, so nothing is boxed until the result is wrapped.
+ */
+final class Vectors {
+    enum Op {
+        ADD,
+        SUBTRACT,
+        MULTIPLY,
+        DIVIDE
+    }
+
+    private Vectors() {
+
+    }
+
+    static LispObject intVector(LispObject[] params) {
+        int[] values = new int[params.length];
+
+        for (int i = 0; i < values.length; ++i)
+            values[i] = ((LispObject.Integer) params[i]).intValue();
+
+        return new LispObject.IntVector(values);
+    }
+
+    static LispObject doubleVector(LispObject[] params) {
+        double[] values = new double[params.length];
+
+        for (int i = 0; i < values.length; ++i)
+            values[i] = ((LispObject.Number) params[i]).doubleValue();
+
+        return new LispObject.DoubleVector(values);
+    }
+
+    static LispObject makeIntVector(LispObject[] params) throws LispException {
+        int[] values = new int[length(params, "make-int-vector")];
+
+        if (params.length == 2)
+            Arrays.fill(values, ((LispObject.Integer) params[1]).intValue());
+
+        return new LispObject.IntVector(values);
+    }
+
+    static LispObject makeDoubleVector(LispObject[] params) throws LispException {
+        double[] values = new double[length(params, "make-double-vector")];
+
+        if (params.length == 2)
+            Arrays.fill(values, ((LispObject.Number) params[1]).doubleValue());
+
+        return new LispObject.DoubleVector(values);
+    }
+
+    /**
+     * Checks the parameters of make-int-vector and make-double-vector: a length, and optionally a fill value.
+     */
+    private static int length(LispObject[] params, String name) throws LispException {
+        if (params.length > 2)
+            throw new LispException("Arity mismatch: expected 1 or 2 parameters, got " + params.length
+                    + " for function " + name);
+
+        int length = ((LispObject.Integer) params[0]).intValue();
+
+        if (length < 0)
+            throw new LispException("Negative vector length: " + length);
+
+        return length;
+    }
+
+    static LispObject ref(LispObject vector, LispObject index) throws LispException {
+        int i = checkIndex((LispObject.Vector) vector, index);
+
+        if (vector instanceof LispObject.IntVector)
+            return LispObject.Integer.valueOf(((LispObject.IntVector) vector).getValue()[i]);
+        else
+            return new LispObject.Double(((LispObject.DoubleVector) vector).getValue()[i]);
+    }
+
+    static LispObject set(LispObject vector, LispObject index, LispObject value) throws LispException {
+        int i = checkIndex((LispObject.Vector) vector, index);
+
+        if (vector instanceof LispObject.IntVector) {
+            if (!(value instanceof LispObject.Integer))
+                throw new LispException("Type mismatch: expected Integer, got " + value.getClass().getSimpleName()
+                        + " for function vector-set!");
+
+            ((LispObject.IntVector) vector).getValue()[i] = ((LispObject.Integer) value).intValue();
+        } else {
+            ((LispObject.DoubleVector) vector).getValue()[i] = ((LispObject.Number) value).doubleValue();
+        }
+
+        return LispObject.VOID;
+    }
+
+    /**
+     * Copies the elements from `start` up to but not including `end` into a new vector.
+     */
+    static LispObject slice(LispObject vector, LispObject start, LispObject end) throws LispException {
+        int length = ((LispObject.Vector) vector).length();
+        int from = ((LispObject.Integer) start).intValue();
+        int to = ((LispObject.Integer) end).intValue();
+
+        if (from < 0 || to > length || from > to)
+            throw new LispException("Invalid slice: " + from + " to " + to + " of a vector of length " + length);
+
+        if (vector instanceof LispObject.IntVector)
+            return new LispObject.IntVector(Arrays.copyOfRange(((LispObject.IntVector) vector).getValue(), from, to));
+        else
+            return new LispObject.DoubleVector(Arrays.copyOfRange(((LispObject.DoubleVector) vector).getValue(), from, to));
+    }
+
+    static LispObject toList(LispObject vector) {
+        LispObject[] elements = new LispObject[((LispObject.Vector) vector).length()];
+
+        if (vector instanceof LispObject.IntVector) {
+            int[] values = ((LispObject.IntVector) vector).getValue();
+            for (int i = 0; i < elements.length; ++i)
+                elements[i] = LispObject.Integer.valueOf(values[i]);
+        } else {
+            double[] values = ((LispObject.DoubleVector) vector).getValue();
+            for (int i = 0; i < elements.length; ++i)
+                elements[i] = new LispObject.Double(values[i]);
+        }
+
+        return LispObject.List.wrap(elements);
+    }
+
+    /**
+     * Applies `op` to each pair of elements of two vectors of the same length, or to each element of a vector and a
+     * number. The result is an IntVector if both sides are integers, like with +.
+     */
+    static LispObject elementwise(Op op, LispObject a, LispObject b) throws LispException {
+        if (b instanceof LispObject.Vector && ((LispObject.Vector) a).length() != ((LispObject.Vector) b).length())
+            throw new LispException("Vector length mismatch: " + ((LispObject.Vector) a).length()
+                    + " and " + ((LispObject.Vector) b).length());
+
+        if (a instanceof LispObject.IntVector && b instanceof LispObject.IntVector) {
+            int[] x = ((LispObject.IntVector) a).getValue();
+            return new LispObject.IntVector(apply(op, x, ((LispObject.IntVector) b).getValue(), new int[x.length]));
+        } else if (a instanceof LispObject.IntVector && b instanceof LispObject.Integer) {
+            int[] x = ((LispObject.IntVector) a).getValue();
+            return new LispObject.IntVector(apply(op, x, ((LispObject.Integer) b).intValue(), new int[x.length]));
+        }
+
+        double[] x = doubles(a);
+        double[] res = new double[x.length];
+
+        if (b instanceof LispObject.Vector)
+            return new LispObject.DoubleVector(apply(op, x, doubles(b), res));
+        else
+            return new LispObject.DoubleVector(apply(op, x, ((LispObject.Number) b).doubleValue(), res));
+    }
+
+    static LispObject dot(LispObject a, LispObject b) throws LispException {
+        if (((LispObject.Vector) a).length() != ((LispObject.Vector) b).length())
+            throw new LispException("Vector length mismatch: " + ((LispObject.Vector) a).length()
+                    + " and " + ((LispObject.Vector) b).length());
+
+        if (a instanceof LispObject.IntVector && b instanceof LispObject.IntVector) {
+            int[] x = ((LispObject.IntVector) a).getValue();
+            int[] y = ((LispObject.IntVector) b).getValue();
+            int res = 0;
+
+            for (int i = 0; i < x.length; ++i)
+                res += x[i] * y[i];
+
+            return LispObject.Integer.valueOf(res);
+        }
+
+        double[] x = doubles(a);
+        double[] y = doubles(b);
+        double res = 0;
+
+        for (int i = 0; i < x.length; ++i)
+            res += x[i] * y[i];
+
+        return new LispObject.Double(res);
+    }
+
+    static LispObject sum(LispObject vector) {
+        if (vector instanceof LispObject.IntVector) {
+            int res = 0;
+            for (int value : ((LispObject.IntVector) vector).getValue())
+                res += value;
+
+            return LispObject.Integer.valueOf(res);
+        }
+
+        double res = 0;
+        for (double value : ((LispObject.DoubleVector) vector).getValue())
+            res += value;
+
+        return new LispObject.Double(res);
+    }
+
+    static LispObject min(LispObject vector) throws LispException {
+        checkNotEmpty(vector, "vector-min");
+
+        if (vector instanceof LispObject.IntVector) {
+            int[] values = ((LispObject.IntVector) vector).getValue();
+            int res = values[0];
+            for (int i = 1; i < values.length; ++i)
+                res = Math.min(res, values[i]);
+
+            return LispObject.Integer.valueOf(res);
+        }
+
+        double[] values = ((LispObject.DoubleVector) vector).getValue();
+        double res = values[0];
+        for (int i = 1; i < values.length; ++i)
+            res = Math.min(res, values[i]);
+
+        return new LispObject.Double(res);
+    }
+
+    static LispObject max(LispObject vector) throws LispException {
+        checkNotEmpty(vector, "vector-max");
+
+        if (vector instanceof LispObject.IntVector) {
+            int[] values = ((LispObject.IntVector) vector).getValue();
+            int res = values[0];
+            for (int i = 1; i < values.length; ++i)
+                res = Math.max(res, values[i]);
+
+            return LispObject.Integer.valueOf(res);
+        }
+
+        double[] values = ((LispObject.DoubleVector) vector).getValue();
+        double res = values[0];
+        for (int i = 1; i < values.length; ++i)
+            res = Math.max(res, values[i]);
+
+        return new LispObject.Double(res);
+    }
+
+    private static int checkIndex(LispObject.Vector vector, LispObject index) throws LispException {
+        int i = ((LispObject.Integer) index).intValue();
+
+        if (i < 0 || i >= vector.length())
+            throw new LispException("Index out of range: " + i + " for a vector of length " + vector.length());
+
+        return i;
+    }
+
+    private static void checkNotEmpty(LispObject vector, String name) throws LispException {
+        if (((LispObject.Vector) vector).length() == 0)
+            throw new LispException("Empty vector passed to " + name);
+    }
+
+    private static double[] doubles(LispObject vector) {
+        if (vector instanceof LispObject.DoubleVector)
+            return ((LispObject.DoubleVector) vector).getValue();
+
+        int[] values = ((LispObject.IntVector) vector).getValue();
+        double[] res = new double[values.length];
+
+        for (int i = 0; i < values.length; ++i)
+            res[i] = values[i];
+
+        return res;
+    }
+
+    // One loop per operation, so the JIT sees a simple counted loop it can unroll and vectorize
+
+    private static int[] apply(Op op, int[] x, int[] y, int[] res) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] + y[i];
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] - y[i];
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] * y[i];
+                break;
+            case DIVIDE:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] / y[i];
+                break;
+        }
+
+        return res;
+    }
+
+    private static int[] apply(Op op, int[] x, int y, int[] res) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] + y;
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] - y;
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] * y;
+                break;
+            case DIVIDE:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] / y;
+                break;
+        }
+
+        return res;
+    }
+
+    private static double[] apply(Op op, double[] x, double[] y, double[] res) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] + y[i];
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] - y[i];
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] * y[i];
+                break;
+            case DIVIDE:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] / y[i];
+                break;
+        }
+
+        return res;
+    }
+
+    private static double[] apply(Op op, double[] x, double y, double[] res) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] + y;
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] - y;
+                break;
+            case MULTIPLY:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] * y;
+                break;
+            case DIVIDE:
+                for (int i = 0; i < res.length; ++i)
+                    res[i] = x[i] / y;
+                break;
+        }
+
+        return res;
+    }
+}
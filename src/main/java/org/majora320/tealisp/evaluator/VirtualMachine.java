@@ -0,0 +1,425 @@
+package org.majora320.tealisp.evaluator;
+
+import org.majora320.tealisp.parser.AstNode;
+
+import java.util.Arrays;
+
+import static org.majora320.tealisp.evaluator.Chunk.*;
+
+/**
+ * Runs Chunks, for the BYTECODE execution mode. Frames are kept on one value stack rather than in StackFrames (see
+ * Chunk for the layout), and calls between Lisp functions push a frame in the same dispatch loop instead of recursing
+ * in Java. A call to a Lisp function puts the function and its arguments on the stack, which is already the start of
+ * the callee's frame, so nothing is copied.
+ * <p>
+ * Calls out to Java can come back in through Interpreter.call; that run starts its frames above the caller's.
+ */
+final class VirtualMachine {
+    private static final int MAX_DEPTH = 1 << 20;
+
+    private final Interpreter interpreter;
+    private LispObject[] stack = new LispObject[1024];
+    // The top of the stack while Java code is running; a run that starts there leaves everything below it alone
+    private int sp;
+    // The highest stack index any frame has used, so it can be cleared when the outermost run ends
+    private int used;
+
+    // The caller of each active frame: where to continue, its frame pointer and its chunk
+    private int[] returnPcs = new int[64];
+    private int[] returnFps = new int[64];
+    private Chunk[] returnChunks = new Chunk[64];
+    private int depth;
+
+    VirtualMachine(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    /**
+     * Runs a top-level form.
+     */
+    LispObject run(Chunk chunk) throws LispException {
+        int base = sp;
+        int baseDepth = depth;
+
+        try {
+            reserve(base, chunk);
+            return execute(chunk, base);
+        } finally {
+            exit(base, baseDepth);
+        }
+    }
+
+    /**
+     * Calls a function whose body has been analyzed.
+     */
+    LispObject call(LispObject.Function function, LispObject[] arguments) throws LispException {
+        int base = sp;
+        int baseDepth = depth;
+
+        try {
+            Chunk chunk = chunk(function);
+            checkArity(function, arguments.length);
+
+            reserve(base + 1, chunk);
+            stack[base] = function;
+            System.arraycopy(arguments, 0, stack, base + 1, arguments.length);
+            Arrays.fill(stack, base + 1 + arguments.length, base + 1 + chunk.frameSize, null);
+            return execute(chunk, base + 1);
+        } finally {
+            exit(base, baseDepth);
+        }
+    }
+
+    private void exit(int base, int baseDepth) {
+        sp = base;
+        depth = baseDepth;
+
+        // Don't keep the values of finished calls alive
+        if (base == 0) {
+            Arrays.fill(stack, 0, used, null);
+            used = 0;
+        }
+    }
+
+    /**
+     * Returns the compiled body of `function`, compiling it the first time, or null if it isn't analyzed (e.g. it
+     * was created by a tree-walking Interpreter).
+     */
+    private Chunk chunk(LispObject.Function function) throws LispException {
+        Node.FunctionBody code = interpreter.analyze(function);
+
+        if (code == null)
+            return null;
+        if (code.chunk == null)
+            code.chunk = ChunkCompiler.compile(code);
+
+        return code.chunk;
+    }
+
+    private static void checkArity(LispObject.Function function, int count) throws LispException {
+        if (count != function.paramNames.size())
+            throw new LispException("Expected " + function.paramNames.size() + " arguments, got " + count);
+    }
+
+    /**
+     * Makes room for a frame of `chunk` at `fp`. The stack array may be replaced.
+     */
+    private void reserve(int fp, Chunk chunk) {
+        int end = fp + chunk.frameSize + chunk.maxStack;
+
+        if (end > stack.length)
+            stack = Arrays.copyOf(stack, Math.max(end, stack.length * 2));
+
+        used = Math.max(used, end);
+    }
+
+    /**
+     * The closure of the function running in the frame at `fp`.
+     */
+    private static StackFrame closure(LispObject[] stack, int fp) {
+        return ((LispObject.Function) stack[fp - 1]).closure;
+    }
+
+    /**
+     * Calls anything the machine doesn't run itself, with the `count` arguments on the stack from `from` on. Java
+     * code doesn't get a frame of the caller's, so it is given the global frame.
+     */
+    private LispObject callOut(LispObject function, LispObject[] stack, int from, int count) throws LispException {
+        if (function instanceof LispObject.JavaFunction) {
+            NativeFunction nativeFunction = ((LispObject.JavaFunction) function).nativeFunction;
+
+            if (nativeFunction != null) {
+                switch (count) {
+                    case 0:
+                        return nativeFunction.call0();
+                    case 1:
+                        return nativeFunction.call1(stack[from]);
+                    case 2:
+                        return nativeFunction.call2(stack[from], stack[from + 1]);
+                    case 3:
+                        return nativeFunction.call3(stack[from], stack[from + 1], stack[from + 2]);
+                }
+            }
+        }
+
+        return interpreter.call(function, Arrays.copyOfRange(stack, from, from + count), interpreter.globalFrame);
+    }
+
+    private void pushCall(int pc, int fp, Chunk chunk) throws LispException {
+        if (depth == returnPcs.length) {
+            if (depth == MAX_DEPTH)
+                throw new LispException("Stack overflow");
+
+            returnPcs = Arrays.copyOf(returnPcs, depth * 2);
+            returnFps = Arrays.copyOf(returnFps, depth * 2);
+            returnChunks = Arrays.copyOf(returnChunks, depth * 2);
+        }
+
+        returnPcs[depth] = pc;
+        returnFps[depth] = fp;
+        returnChunks[depth] = chunk;
+        ++depth;
+    }
+
+    /**
+     * The dispatch loop. Runs `entry` in the frame at `fp`, whose arguments are already in place, until that frame
+     * returns.
+     */
+    private LispObject execute(Chunk entry, int fp) throws LispException {
+        int exitDepth = depth;
+        Chunk chunk = entry;
+        int[] code = chunk.code;
+        Object[] constants = chunk.constants;
+        LispObject[] stack = this.stack;
+        int pc = 0;
+        int sp = fp + chunk.frameSize;
+        LispObject result;
+
+        while (true) {
+            switch (code[pc++]) {
+                case CONST:
+                    stack[sp++] = (LispObject) constants[code[pc++]];
+                    continue;
+                case LOAD: {
+                    LispObject value = stack[fp + code[pc++]];
+                    int name = code[pc++];
+
+                    if (value == null)
+                        throw new LispException("Undefined variable: " + constants[name]);
+
+                    stack[sp++] = value;
+                    continue;
+                }
+                case LOAD_BOX: {
+                    LispObject value = ((StackFrame.Box) stack[fp + code[pc++]]).value;
+                    int name = code[pc++];
+
+                    if (value == null)
+                        throw new LispException("Undefined variable: " + constants[name]);
+
+                    stack[sp++] = value;
+                    continue;
+                }
+                case LOAD_RAW:
+                    stack[sp++] = stack[fp + code[pc++]];
+                    continue;
+                case CAPTURED: {
+                    LispObject value = closure(stack, fp).getSlot(code[pc++]);
+                    int name = code[pc++];
+
+                    if (value == null)
+                        throw new LispException("Undefined variable: " + constants[name]);
+
+                    stack[sp++] = value;
+                    continue;
+                }
+                case CAPTURED_BOX: {
+                    LispObject value = ((StackFrame.Box) closure(stack, fp).getSlot(code[pc++])).value;
+                    int name = code[pc++];
+
+                    if (value == null)
+                        throw new LispException("Undefined variable: " + constants[name]);
+
+                    stack[sp++] = value;
+                    continue;
+                }
+                case CAPTURED_RAW:
+                    stack[sp++] = closure(stack, fp).getSlot(code[pc++]);
+                    continue;
+                case GLOBAL: {
+                    String name = (String) constants[code[pc++]];
+                    LispObject value = interpreter.globalFrame.lookupBinding(name);
+
+                    if (value == null)
+                        throw new LispException("Undefined variable: " + name);
+
+                    stack[sp++] = value;
+                    continue;
+                }
+                case FUNCTION:
+                    stack[sp++] = ((Node.CallSite) constants[code[pc++]]).resolve();
+                    continue;
+                case INIT:
+                    stack[fp + code[pc++]] = stack[--sp];
+                    continue;
+                case INIT_BOX:
+                    stack[fp + code[pc++]] = new StackFrame.Box(stack[--sp]);
+                    continue;
+                case CLEAR:
+                    stack[fp + code[pc++]] = null;
+                    continue;
+                case BOX: {
+                    int register = fp + code[pc++];
+                    stack[register] = new StackFrame.Box(stack[register]);
+                    continue;
+                }
+                case DEFINE_LOCAL:
+                    stack[fp + code[pc++]] = stack[sp - 1];
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                case DEFINE_BOX:
+                    ((StackFrame.Box) stack[fp + code[pc++]]).value = stack[sp - 1];
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                case DEFINE_GLOBAL:
+                    interpreter.globalFrame.storeBinding((String) constants[code[pc++]], stack[sp - 1]);
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                case SET_LOCAL: {
+                    int register = fp + code[pc++];
+
+                    if (stack[register] == null)
+                        throw new LispException("Tried to call set! on an nonexistant identifier");
+
+                    stack[register] = stack[sp - 1];
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                }
+                case SET_BOX: {
+                    StackFrame.Box box = (StackFrame.Box) stack[fp + code[pc++]];
+
+                    if (box.value == null)
+                        throw new LispException("Tried to call set! on an nonexistant identifier");
+
+                    box.value = stack[sp - 1];
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                }
+                case SET_CAPTURED: {
+                    StackFrame closure = closure(stack, fp);
+                    int slot = code[pc++];
+
+                    if (closure.getSlot(slot) == null)
+                        throw new LispException("Tried to call set! on an nonexistant identifier");
+
+                    closure.setSlot(slot, stack[sp - 1]);
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                }
+                case SET_CAPTURED_BOX: {
+                    StackFrame.Box box = (StackFrame.Box) closure(stack, fp).getSlot(code[pc++]);
+
+                    if (box.value == null)
+                        throw new LispException("Tried to call set! on an nonexistant identifier");
+
+                    box.value = stack[sp - 1];
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                }
+                case SET_GLOBAL:
+                    interpreter.globalFrame.modifyBinding((String) constants[code[pc++]], stack[sp - 1]);
+                    stack[sp - 1] = LispObject.VOID;
+                    continue;
+                case POP:
+                    --sp;
+                    continue;
+                case DUP:
+                    stack[sp] = stack[sp - 1];
+                    ++sp;
+                    continue;
+                case JUMP:
+                    pc = code[pc];
+                    continue;
+                case JUMP_IF_FALSE:
+                    if (Node.isFalse(stack[--sp]))
+                        pc = code[pc];
+                    else
+                        ++pc;
+                    continue;
+                case JUMP_IF_TRUE:
+                    if (!Node.isFalse(stack[--sp]))
+                        pc = code[pc];
+                    else
+                        ++pc;
+                    continue;
+                case GUARD:
+                    if (((Node.Folded) constants[code[pc]]).isValid())
+                        pc += 2;
+                    else
+                        pc = code[pc + 1];
+                    continue;
+                case CALL:
+                case TAIL_CALL: {
+                    boolean tail = code[pc - 1] == TAIL_CALL;
+                    int count = code[pc++];
+                    int function = sp - count - 1;
+                    LispObject value = stack[function];
+                    Chunk callee = value instanceof LispObject.Function ? chunk((LispObject.Function) value) : null;
+
+                    if (callee == null) {
+                        // Java functions, and Lisp functions the machine can't run
+                        this.sp = sp;
+                        result = callOut(value, stack, function + 1, count);
+                        stack = this.stack;
+
+                        if (tail)
+                            break;
+
+                        sp = function;
+                        stack[sp++] = result;
+                        continue;
+                    }
+
+                    checkArity((LispObject.Function) value, count);
+
+                    if (tail) {
+                        // Reuse the running frame: move the function and arguments down to its start
+                        System.arraycopy(stack, function, stack, fp - 1, count + 1);
+                    } else {
+                        pushCall(pc, fp, chunk);
+                        fp = function + 1;
+                    }
+
+                    chunk = callee;
+                    code = chunk.code;
+                    constants = chunk.constants;
+                    pc = 0;
+
+                    reserve(fp, chunk);
+                    stack = this.stack;
+                    sp = fp + chunk.frameSize;
+                    Arrays.fill(stack, fp + count, sp, null);
+                    continue;
+                }
+                case RETURN:
+                    result = stack[--sp];
+                    break;
+                case CLOSURE: {
+                    Node.Lambda lambda = (Node.Lambda) constants[code[pc++]];
+                    int count = code[pc++];
+                    StackFrame closure = interpreter.globalFrame;
+
+                    if (count != 0) {
+                        closure = new StackFrame(interpreter.globalFrame, lambda.captureNames);
+
+                        for (int i = 0; i < count; ++i)
+                            closure.setSlot(i, stack[sp - count + i]);
+                    }
+
+                    sp -= count;
+                    stack[sp++] = lambda.function(closure);
+                    continue;
+                }
+                case QUOTE:
+                    stack[sp++] = interpreter.processQuotedObj((AstNode) constants[code[pc++]]);
+                    continue;
+                default:
+                    throw new IllegalStateException("Bad opcode " + code[pc - 1] + " at " + (pc - 1));
+            }
+
+            // Only RETURN and tail calls to Java get here
+            if (depth == exitDepth)
+                return result;
+
+            --depth;
+            sp = fp - 1;
+            pc = returnPcs[depth];
+            fp = returnFps[depth];
+            chunk = returnChunks[depth];
+            returnChunks[depth] = null;
+            code = chunk.code;
+            constants = chunk.constants;
+            stack[sp++] = result;
+        }
+    }
+}
@@ -3,6 +3,13 @@ package org.majora320.tealisp.lexer;
 import java.util.Objects;
 
 public class Token {
+    // Tokens without a value are shared, since they are all equal anyway
+    public static final LeftParen LEFT_PAREN = new LeftParen();
+    public static final RightParen RIGHT_PAREN = new RightParen();
+    public static final Quote QUOTE = new Quote();
+    public static final QuasiQuote QUASI_QUOTE = new QuasiQuote();
+    public static final UnQuote UNQUOTE = new UnQuote();
+
     @Override
     public boolean equals(Object obj) {
         return obj != null && this.getClass().equals(obj.getClass());
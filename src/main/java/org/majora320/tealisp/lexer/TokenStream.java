@@ -3,31 +3,89 @@ package org.majora320.tealisp.lexer;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.io.PushbackReader;
 import java.io.Reader;
-import java.util.HashSet;
-import java.util.Set;
-
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Splits its input into Tokens. The input is read in blocks into a char[] window, and tokens are scanned straight out
+ * of the window; characters are classified with a lookup table.
+ */
 public class TokenStream implements Closeable {
-    // Weird syntax to add stuff to a container inline
-    // The first { creates an anonymous class subclassing from HashSet
-    // And the second { creates a static initialization block within that class
-    private Set<Character> allowedNamePunctuation = new HashSet<Character>() {{
-        add('-');
-        add('+');
-        add('*');
-        add('/');
-        add('=');
-        add('>');
-        add('<');
-        add('?');
-        add('!');
-    }};
-
-    private PushbackReader input;
+    private static final int BUFFER_SIZE = 8192;
+
+    // Character classes, for the ASCII characters in `classes`
+    private static final byte WHITESPACE = 1;
+    private static final byte NAME = 1 << 1;
+    private static final byte DIGIT = 1 << 2;
+    private static final byte[] classes = new byte[128];
+
+    private static final String NAME_PUNCTUATION = "-+*/=><?!";
+
+    static {
+        for (char c = 0; c < classes.length; ++c) {
+            if (Character.isWhitespace(c))
+                classes[c] |= WHITESPACE;
+            if (Character.isLetterOrDigit(c) || NAME_PUNCTUATION.indexOf(c) != -1)
+                classes[c] |= NAME;
+            if (c >= '0' && c <= '9')
+                classes[c] |= DIGIT;
+        }
+    }
+
+    // Recently seen names, so a name that was already lexed doesn't need a new String or a trip through intern()
+    private static final int NAME_CACHE_SIZE = 256;
+    private final String[] nameCache = new String[NAME_CACHE_SIZE];
+
+    private Reader input;
+    // For UTF-8 input, e.g. a mapped file
+    private ByteBuffer bytes;
+    private CharsetDecoder decoder;
+    private char[] buffer;
+    private int position;
+    private int limit;
+    // If not -1, the start of the token being scanned, which must be kept in the buffer when it is refilled
+    private int mark = -1;
 
     public TokenStream(Reader input) {
-        this.input = new PushbackReader(input);
+        this.input = input;
+        this.buffer = new char[BUFFER_SIZE];
+    }
+
+    /**
+     * Lexes UTF-8 encoded `input`, from its position to its limit. Characters are decoded as they are needed, into a
+     * small window, so a large (e.g. memory-mapped) buffer is never copied as a whole. A byte order mark at the start
+     * is skipped.
+     */
+    public TokenStream(ByteBuffer input) {
+        this.bytes = input;
+        this.decoder = StandardCharsets.UTF_8.newDecoder();
+        this.buffer = new char[BUFFER_SIZE];
+
+        int p = input.position();
+        if (input.remaining() >= 3 && input.get(p) == (byte) 0xEF && input.get(p + 1) == (byte) 0xBB
+                && input.get(p + 2) == (byte) 0xBF)
+            input.position(p + 3);
+    }
+
+    /**
+     * Lexes the first `length` characters of `input`, without copying them. `input` must not be changed while the
+     * TokenStream is in use.
+     */
+    public TokenStream(char[] input, int length) {
+        this(input, 0, length);
+    }
+
+    /**
+     * Lexes the `length` characters of `input` starting at `offset`, without copying them.
+     */
+    public TokenStream(char[] input, int offset, int length) {
+        this.buffer = input;
+        this.position = offset;
+        this.limit = offset + length;
     }
 
     /**
@@ -38,39 +96,44 @@ public class TokenStream implements Closeable {
      * @return A token when there are tokens left, otherwise null.
      */
     public Token nextToken() throws IOException, LexException {
-        int in = input.read();
+        int in;
 
-        while (in != -1 && Character.isWhitespace(in))
-            in = input.read();
+        // Skip whitespace and comments
+        while (true) {
+            in = read();
+
+            while (in != -1 && isWhitespace(in))
+                in = read();
+
+            if (in != ';')
+                break;
+
+            while (in != -1 && in != '\n')
+                in = read();
+        }
 
         if (in == -1)
             return null;
 
-
         switch ((char) in) {
-            case ';':
-                while (in != -1 && in != '\n')
-                    in = input.read();
-
-                return nextToken();
             case '(':
             case '[':
             case '{':
-                return new Token.LeftParen();
+                return Token.LEFT_PAREN;
             case ')':
             case ']':
             case '}':
-                return new Token.RightParen();
+                return Token.RIGHT_PAREN;
             case '\'':
-                return new Token.Quote();
+                return Token.QUOTE;
             case '`':
-                return new Token.QuasiQuote();
+                return Token.QUASI_QUOTE;
             case ',':
-                return new Token.UnQuote();
+                return Token.UNQUOTE;
             case '"':
                 return parseString();
             case '#':
-                int next = input.read();
+                int next = read();
 
                 if (next == 't')
                     return new Token.Boolean(true);
@@ -78,102 +141,139 @@ public class TokenStream implements Closeable {
                     return new Token.Boolean(false);
                 else
                     throw new LexException("Only legal boolean values are #t and #f.");
-
         }
 
-        if (Character.isDigit(in) || in == '-' || in == '.') {
-            int nextIn = input.read();
-
-            if (!(in == '-' && nextIn == ' ')) {
-                if (nextIn != -1)
-                    input.unread(nextIn);
+        if (isDigit(in) || in == '.')
+            return parseNumber();
 
-                return parseNumber(in == '-' ? (char) input.read() : (char) in, in == '-');
-            }
+        // A - followed by a space is the name -, otherwise it starts a negative number
+        if (in == '-' && peek() != ' ')
+            return parseNumber();
 
-            input.unread(nextIn);
-        }
-
-        return parseName((char) in);
+        return parseName(in);
     }
 
-    private Token parseNumber(char firstChar, boolean negative) throws IOException, LexException {
-        boolean hasReadActualNumber = false;
+    /**
+     * Parses a number whose first character (a digit, '-' or '.') was just read.
+     */
+    private Token parseNumber() throws IOException, LexException {
+        mark = position - 1;
+
+        int in = buffer[mark];
+        boolean negative = in == '-';
         boolean integer = true;
-        int res = 0;
-        double doubleRes = 0;
+        boolean tooLarge = false;
+        boolean hasReadActualNumber = false;
+        long res = 0;
 
-        int in = firstChar;
+        if (negative)
+            in = read();
+
+        while (in != -1 && isDigit(in)) {
+            if (!tooLarge) {
+                res = res * 10 + (in - '0');
+                tooLarge = res > (long) Integer.MAX_VALUE + 1;
+            }
 
-        while (in != -1 && Character.isDigit(in)) {
-            res *= 10;
-            res += Character.getNumericValue(in);
-            in = input.read();
             hasReadActualNumber = true;
+            in = read();
         }
 
         if (in == '.') {
             integer = false;
-            doubleRes = res;
-            double mul = 0.1;
-            in = input.read();
-
-            while (in != -1 && Character.isDigit(in)) {
-                doubleRes += mul * Character.getNumericValue(in);
-                mul *= 0.1;
-                in = input.read();
+            in = read();
+
+            while (in != -1 && isDigit(in)) {
                 hasReadActualNumber = true;
+                in = read();
             }
         }
 
-        if (Character.isLetterOrDigit(in) || allowedNamePunctuation.contains((char) in)) {
+        if (in != -1 && isName(in))
             throw new LexException("Expected space between integer and name.");
-        }
 
         if (in != -1)
-            input.unread(in);
+            --position;
 
-        if (negative) {
-            res *= -1;
-            doubleRes *= -1;
-        }
+        int start = mark;
+        mark = -1;
 
         if (!hasReadActualNumber)
             throw new LexException("A dot is not an integer");
 
-        if (integer)
-            return new Token.Integer(res);
-        else
-            return new Token.Double(doubleRes);
+        if (integer) {
+            if (negative)
+                res = -res;
+            if (tooLarge || res > Integer.MAX_VALUE)
+                throw new LexException("Integer too large: " + new String(buffer, start, position - start));
+
+            return new Token.Integer((int) res);
+        }
+
+        // Leave the digits to Double.parseDouble, which rounds correctly
+        return new Token.Double(Double.parseDouble(new String(buffer, start, position - start)));
     }
 
-    private Token parseName(char firstChar) throws IOException, LexException {
-        StringBuilder res = new StringBuilder();
+    private Token parseName(int firstChar) throws IOException, LexException {
+        mark = position - 1;
 
         int in = firstChar;
-        while (in != -1 && (Character.isLetterOrDigit(in) || allowedNamePunctuation.contains((char) in))) {
-            res.append((char) in);
-            in = input.read();
-        }
+        while (in != -1 && isName(in))
+            in = read();
 
         if (in != -1)
-            input.unread(in);
+            --position;
+
+        int start = mark;
+        mark = -1;
 
-        if (res.length() == 0)
-            throw new LexException("Illegal character: " + firstChar);
-        return new Token.Name(res.toString());
+        if (position == start)
+            throw new LexException("Illegal character: " + (char) firstChar);
+
+        return new Token.Name(name(start, position - start));
+    }
+
+    /**
+     * Returns the interned String for the name in buffer[start, start + length).
+     */
+    private String name(int start, int length) {
+        int hash = 0;
+        for (int i = start; i < start + length; ++i)
+            hash = 31 * hash + buffer[i];
+
+        int slot = (hash ^ (hash >>> 16)) & (NAME_CACHE_SIZE - 1);
+        String cached = nameCache[slot];
+
+        if (cached != null && cached.length() == length) {
+            boolean same = true;
+
+            for (int i = 0; i < length; ++i) {
+                if (cached.charAt(i) != buffer[start + i]) {
+                    same = false;
+                    break;
+                }
+            }
+
+            if (same)
+                return cached;
+        }
+
+        // Interned so that every occurrence of a name, and the symbol with that name, share one String
+        String res = new String(buffer, start, length).intern();
+        nameCache[slot] = res;
+        return res;
     }
 
     private Token parseString() throws IOException, LexException {
-        int in = input.read();
+        int in = read();
         StringBuilder res = new StringBuilder();
 
         while (in != '"') {
             validateCharInString(in);
 
             if (in == '\\') {
-                int next = input.read();
-                validateCharInString(in);
+                int next = read();
+                validateCharInString(next);
 
                 switch (next) {
                     case '\\':
@@ -187,6 +287,7 @@ public class TokenStream implements Closeable {
                         break;
                     case '"':
                         res.append('"');
+                        break;
                     default:
                         throw new LexException("Invalid character '" + (char) next + "' after escape.");
                 }
@@ -194,7 +295,7 @@ public class TokenStream implements Closeable {
                 res.append((char) in);
             }
 
-            in = input.read();
+            in = read();
         }
 
         return new Token.String(res.toString());
@@ -208,8 +309,126 @@ public class TokenStream implements Closeable {
             throw new LexException("Newlines in strings are not supported except by \\n");
     }
 
+    private static boolean isWhitespace(int c) {
+        return c < 128 ? (classes[c] & WHITESPACE) != 0 : Character.isWhitespace(c);
+    }
+
+    private static boolean isName(int c) {
+        return c < 128 ? (classes[c] & NAME) != 0 : Character.isLetterOrDigit(c);
+    }
+
+    private static boolean isDigit(int c) {
+        return c < 128 && (classes[c] & DIGIT) != 0;
+    }
+
+    /**
+     * Returns the next character, or -1 at the end of the input. Once a character has been read, --position unreads
+     * it, since it is still in the buffer.
+     */
+    private int read() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill())
+            return -1;
+
+        return buffer[position];
+    }
+
+    /**
+     * Reads more input into the buffer, keeping everything from `mark` on, and the last character read so it can
+     * still be unread. Returns false at the end of the input.
+     */
+    private boolean fill() throws IOException {
+        if (input == null && bytes == null)
+            return false;
+
+        int keep = mark != -1 ? mark : Math.max(position - 1, 0);
+        int kept = limit - keep;
+
+        // Always leave room for at least a surrogate pair
+        if (kept > buffer.length - 2) {
+            // One token fills the whole buffer
+            char[] bigger = new char[buffer.length * 2];
+            System.arraycopy(buffer, keep, bigger, 0, kept);
+            buffer = bigger;
+        } else {
+            System.arraycopy(buffer, keep, buffer, 0, kept);
+        }
+
+        position -= keep;
+        limit = kept;
+        if (mark != -1)
+            mark = 0;
+
+        if (bytes != null)
+            return decode();
+
+        int n;
+        do {
+            n = input.read(buffer, limit, buffer.length - limit);
+        } while (n == 0);
+
+        if (n == -1)
+            return false;
+
+        limit += n;
+        return true;
+    }
+
+    /**
+     * Decodes UTF-8 from `bytes` into the free part of the buffer. Runs of ASCII are copied a byte at a time; anything
+     * else goes through the CharsetDecoder, a small chunk at a time so the next ASCII run gets the fast path again.
+     */
+    private boolean decode() throws IOException {
+        int start = limit;
+        int end = bytes.limit();
+
+        while (limit < buffer.length && bytes.hasRemaining()) {
+            int p = bytes.position();
+
+            while (p < end && limit < buffer.length) {
+                byte b = bytes.get(p);
+
+                if (b < 0)
+                    break;
+
+                buffer[limit++] = (char) b;
+                ++p;
+            }
+
+            bytes.position(p);
+
+            if (p == end || limit == buffer.length)
+                break;
+
+            int chunkEnd = Math.min(end, p + 64);
+            CharBuffer out = CharBuffer.wrap(buffer, limit, buffer.length - limit);
+
+            bytes.limit(chunkEnd);
+            CoderResult result = decoder.decode(bytes, out, chunkEnd == end);
+            bytes.limit(end);
+
+            if (result.isError())
+                result.throwException();
+
+            // Only happens when a surrogate pair doesn't fit in the last free char; the next fill makes room
+            if (out.position() == limit)
+                break;
+
+            limit = out.position();
+        }
+
+        return limit > start;
+    }
+
     @Override
     public void close() throws IOException {
-        input.close();
+        if (input != null)
+            input.close();
     }
 }
@@ -1,7 +1,17 @@
 package org.majora320.tealisp.parser;
 
+import java.lang.ref.WeakReference;
+import java.util.AbstractList;
 import java.util.List;
-
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.WeakHashMap;
+
+/**
+ * A parsed expression. Apart from RootNode, nodes are immutable, so identical leaves can be shared: Name.of,
+ * Integer.of and Boolean.of return canonical instances. Parser.parse shares equal String literals across its whole
+ * input, and a FormReader shares them within each form.
+ */
 public class AstNode {
     private static java.lang.String astNodesToString(List<AstNode> children) {
         StringBuilder res = new StringBuilder("[");
@@ -34,10 +44,20 @@ public class AstNode {
     }
 
     public static class Sexp extends AstNode {
-        public List<AstNode> contents;
+        /**
+         * Read-only, and backed by an array of exactly the right size.
+         */
+        public final List<AstNode> contents;
 
         public Sexp(List<AstNode> contents) {
-            this.contents = contents;
+            this(contents.toArray(new AstNode[0]));
+        }
+
+        /**
+         * Takes ownership of `contents`, which must not be changed afterwards.
+         */
+        Sexp(AstNode[] contents) {
+            this.contents = new Contents(contents);
         }
 
         @Override
@@ -46,13 +66,57 @@ public class AstNode {
         }
     }
 
+    /**
+     * The contents of a Sexp: a read-only List over an array, without ArrayList's spare capacity and bookkeeping.
+     */
+    private static final class Contents extends AbstractList<AstNode> implements RandomAccess {
+        private final AstNode[] nodes;
+
+        Contents(AstNode[] nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public AstNode get(int index) {
+            return nodes[index];
+        }
+
+        @Override
+        public int size() {
+            return nodes.length;
+        }
+    }
+
     public static class Name extends AstNode {
-        public java.lang.String value;
+        // Keyed by each Name's own value, so an entry lasts exactly as long as its Name is used somewhere
+        private static final Map<java.lang.String, WeakReference<Name>> table = new WeakHashMap<>();
+
+        public final java.lang.String value;
 
         public Name(java.lang.String value) {
             this.value = value;
         }
 
+        /**
+         * Returns the canonical Name node for `value`, whose value is the interned String. The table only holds names
+         * weakly, so one that is no longer used anywhere can be freed, and is made again if it comes back.
+         */
+        public static Name of(java.lang.String value) {
+            synchronized (table) {
+                WeakReference<Name> ref = table.get(value);
+                Name name = ref == null ? null : ref.get();
+
+                if (name == null) {
+                    name = new Name(value.intern());
+                    // The stale entry's key may not be the String the new Name holds on to
+                    table.remove(value);
+                    table.put(name.value, new WeakReference<>(name));
+                }
+
+                return name;
+            }
+        }
+
         @Override
         public java.lang.String toString() {
             return "Name[" + value + "]";
@@ -60,12 +124,31 @@ public class AstNode {
     }
 
     public static class Integer extends AstNode {
-        public int value;
+        private static final int CACHE_LOW = -128;
+        private static final int CACHE_HIGH = 1024;
+        private static final Integer[] cache = new Integer[CACHE_HIGH - CACHE_LOW + 1];
+
+        static {
+            for (int i = 0; i < cache.length; ++i)
+                cache[i] = new Integer(i + CACHE_LOW);
+        }
+
+        public final int value;
 
         public Integer(int value) {
             this.value = value;
         }
 
+        /**
+         * Like LispObject.Integer.valueOf, returns a shared node for small values.
+         */
+        public static Integer of(int value) {
+            if (value >= CACHE_LOW && value <= CACHE_HIGH)
+                return cache[value - CACHE_LOW];
+
+            return new Integer(value);
+        }
+
         @Override
         public java.lang.String toString() {
             return "Integer[" + value + "]";
@@ -73,7 +156,7 @@ public class AstNode {
     }
 
     public static class Double extends AstNode {
-        public double value;
+        public final double value;
 
         public Double(double value) {
             this.value = value;
@@ -87,7 +170,7 @@ public class AstNode {
 
 
     public static class String extends AstNode {
-        public java.lang.String value;
+        public final java.lang.String value;
 
         public String(java.lang.String value) {
             this.value = value;
@@ -100,12 +183,19 @@ public class AstNode {
     }
 
     public static class Boolean extends AstNode {
-        public boolean value;
+        public static final Boolean TRUE = new Boolean(true);
+        public static final Boolean FALSE = new Boolean(false);
+
+        public final boolean value;
 
         public Boolean(boolean value) {
             this.value = value;
         }
 
+        public static Boolean of(boolean value) {
+            return value ? TRUE : FALSE;
+        }
+
         @Override
         public java.lang.String toString() {
             return "Boolean[" + value + "]";
@@ -0,0 +1,261 @@
+package org.majora320.tealisp.parser;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary format for parsed programs, used by ProgramCache.
+ *
+ * The format is the magic number "TLAC" and a version byte, then a table of every name and string in the program,
+ * then the top-level forms. Counts, lengths and string table indices are unsigned LEB128 varints, and integers are
+ * zigzag varints, so small values take one byte. Each node starts with a tag byte:
+ *
+ *   SEXP count node*    NAME index    STRING index    INTEGER zigzag    DOUBLE 8 bytes    TRUE    FALSE
+ */
+public class AstSerializer {
+    private static final byte[] MAGIC = {'T', 'L', 'A', 'C'};
+    static final int VERSION = 1;
+
+    private static final int SEXP = 0;
+    private static final int NAME = 1;
+    private static final int STRING = 2;
+    private static final int INTEGER = 3;
+    private static final int DOUBLE = 4;
+    private static final int TRUE = 5;
+    private static final int FALSE = 6;
+
+    private AstSerializer() {
+
+    }
+
+    public static byte[] serialize(AstNode.RootNode program) {
+        Output body = new Output();
+        Map<java.lang.String, java.lang.Integer> indices = new HashMap<>();
+        List<java.lang.String> strings = new ArrayList<>();
+
+        body.writeVarint(program.children.size());
+        for (AstNode child : program.children)
+            writeNode(child, body, indices, strings);
+
+        Output res = new Output();
+        for (byte b : MAGIC)
+            res.write(b);
+        res.write(VERSION);
+
+        res.writeVarint(strings.size());
+        for (java.lang.String string : strings) {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            res.writeVarint(bytes.length);
+            res.write(bytes, bytes.length);
+        }
+
+        res.write(body.bytes, body.length);
+        return Arrays.copyOf(res.bytes, res.length);
+    }
+
+    private static void writeNode(AstNode node, Output out, Map<java.lang.String, java.lang.Integer> indices,
+                                  List<java.lang.String> strings) {
+        if (node instanceof AstNode.Sexp) {
+            List<AstNode> contents = ((AstNode.Sexp) node).contents;
+            out.write(SEXP);
+            out.writeVarint(contents.size());
+
+            for (AstNode child : contents)
+                writeNode(child, out, indices, strings);
+        } else if (node instanceof AstNode.Name) {
+            out.write(NAME);
+            out.writeVarint(index(((AstNode.Name) node).value, indices, strings));
+        } else if (node instanceof AstNode.String) {
+            out.write(STRING);
+            out.writeVarint(index(((AstNode.String) node).value, indices, strings));
+        } else if (node instanceof AstNode.Integer) {
+            int value = ((AstNode.Integer) node).value;
+            out.write(INTEGER);
+            out.writeVarint((value << 1) ^ (value >> 31));
+        } else if (node instanceof AstNode.Double) {
+            long bits = Double.doubleToRawLongBits(((AstNode.Double) node).value);
+            out.write(DOUBLE);
+
+            for (int shift = 56; shift >= 0; shift -= 8)
+                out.write((int) (bits >>> shift));
+        } else if (node instanceof AstNode.Boolean) {
+            out.write(((AstNode.Boolean) node).value ? TRUE : FALSE);
+        } else {
+            throw new IllegalArgumentException("Cannot serialize " + node);
+        }
+    }
+
+    private static int index(java.lang.String string, Map<java.lang.String, java.lang.Integer> indices,
+                             List<java.lang.String> strings) {
+        java.lang.Integer index = indices.get(string);
+
+        if (index == null) {
+            index = strings.size();
+            indices.put(string, index);
+            strings.add(string);
+        }
+
+        return index;
+    }
+
+    /**
+     * Rebuilds a program from the bytes between the position and the limit of `input`.
+     *
+     * @throws IOException If the input is not in this format, is from another version, or is truncated.
+     */
+    public static AstNode.RootNode deserialize(ByteBuffer input) throws IOException {
+        ByteBuffer in = input.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+        try {
+            for (byte b : MAGIC) {
+                if (in.get() != b)
+                    throw new IOException("Not a serialized program");
+            }
+
+            int version = in.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported serialized program version: " + version);
+
+            java.lang.String[] strings = new java.lang.String[readLength(in)];
+            byte[] scratch = new byte[64];
+
+            for (int i = 0; i < strings.length; ++i) {
+                int length = readLength(in);
+
+                if (scratch.length < length)
+                    scratch = new byte[Math.max(length, scratch.length * 2)];
+
+                in.get(scratch, 0, length);
+                strings[i] = new java.lang.String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+
+            int count = readLength(in);
+            AstNode.RootNode res = new AstNode.RootNode(new ArrayList<>(count));
+
+            AstNode[] names = new AstNode[strings.length];
+            AstNode[] literals = new AstNode[strings.length];
+
+            for (int i = 0; i < count; ++i)
+                res.children.add(readNode(in, strings, names, literals));
+
+            if (in.hasRemaining())
+                throw new IOException("Trailing bytes after serialized program");
+
+            return res;
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated or corrupt serialized program", e);
+        }
+    }
+
+    /**
+     * Reads a node and its children. Like the parser, each name or string literal in the table becomes one shared
+     * node, made the first time it is used.
+     */
+    private static AstNode readNode(ByteBuffer in, java.lang.String[] strings, AstNode[] names, AstNode[] literals)
+            throws IOException {
+        int tag = in.get();
+
+        switch (tag) {
+            case SEXP:
+                int count = readLength(in);
+                AstNode[] contents = new AstNode[count];
+
+                for (int i = 0; i < count; ++i)
+                    contents[i] = readNode(in, strings, names, literals);
+
+                return new AstNode.Sexp(contents);
+            case NAME:
+                int name = readVarint(in);
+
+                if (names[name] == null)
+                    names[name] = AstNode.Name.of(strings[name]);
+
+                return names[name];
+            case STRING:
+                int literal = readVarint(in);
+
+                if (literals[literal] == null)
+                    literals[literal] = new AstNode.String(strings[literal]);
+
+                return literals[literal];
+            case INTEGER:
+                int value = readVarint(in);
+                return AstNode.Integer.of((value >>> 1) ^ -(value & 1));
+            case DOUBLE:
+                return new AstNode.Double(Double.longBitsToDouble(in.getLong()));
+            case TRUE:
+                return AstNode.Boolean.TRUE;
+            case FALSE:
+                return AstNode.Boolean.FALSE;
+            default:
+                throw new IOException("Unknown node tag in serialized program: " + tag);
+        }
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int res = 0;
+
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            res |= (b & 0x7F) << shift;
+
+            if (b >= 0)
+                return res;
+        }
+
+        throw new IOException("Malformed varint in serialized program");
+    }
+
+    /**
+     * Reads a count or length, which must also fit in what is left of the input, so a corrupt one can't make us
+     * allocate a huge array.
+     */
+    private static int readLength(ByteBuffer in) throws IOException {
+        int length = readVarint(in);
+
+        if (length < 0 || length > in.remaining())
+            throw new IOException("Truncated or corrupt serialized program");
+
+        return length;
+    }
+
+    /**
+     * A growable byte array, like ByteArrayOutputStream without the locking.
+     */
+    private static class Output {
+        byte[] bytes = new byte[256];
+        int length;
+
+        void write(int b) {
+            if (length == bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+
+            bytes[length++] = (byte) b;
+        }
+
+        void write(byte[] b, int count) {
+            if (length + count > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(length + count, bytes.length * 2));
+
+            System.arraycopy(b, 0, bytes, length, count);
+            length += count;
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+
+            write(value);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package org.majora320.tealisp.parser;
+
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.lexer.Token;
+import org.majora320.tealisp.lexer.TokenStream;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses a TokenStream one top-level form at a time, instead of building the whole RootNode up front. Only the form
+ * being parsed is held in memory, so a caller that evaluates and drops each form can run input of any size.
+ */
+public class FormReader implements Closeable {
+    private final TokenStream tokens;
+    // The children of the Sexps being parsed, innermost last, so each Sexp gets an exact-size array at the end
+    private AstNode[] stack = new AstNode[64];
+    private int stackSize;
+    // Equal string literals in the same form share a node, or in the whole input if it is all being kept
+    private final Map<String, AstNode.String> strings = new HashMap<>();
+    // The Names used so far, with the same lifetime, so Name.of is called once for each
+    private final Map<String, AstNode.Name> names = new HashMap<>();
+    private final boolean keepsForms;
+
+    public FormReader(TokenStream tokens) {
+        this(tokens, false);
+    }
+
+    /**
+     * @param keepsForms Whether the caller keeps every form, like Parser.parse does, so string literals and names can be
+     *                   shared across forms without holding on to anything the caller wouldn't.
+     */
+    FormReader(TokenStream tokens, boolean keepsForms) {
+        this.tokens = tokens;
+        this.keepsForms = keepsForms;
+    }
+
+    /**
+     * Parses the next top-level form. Errors are the same as those of Parser.parse, but are only thrown once the
+     * forms before them have been read.
+     *
+     * @return The next form, or null if there are no forms left.
+     */
+    public AstNode next() throws IOException, LexException, ParseException {
+        Token token = tokens.nextToken();
+
+        if (token == null)
+            return null;
+
+        stackSize = 0;
+        if (!keepsForms) {
+            strings.clear();
+            names.clear();
+        }
+
+        return parseNode(token);
+    }
+
+    private AstNode parseNode(Token token) throws ParseException, IOException, LexException {
+        if (token instanceof Token.LeftParen) {
+            return parseSexp();
+        } else if (token instanceof Token.RightParen) {
+            throw new ParseException("Extra right parenthesis.");
+        } else if (token instanceof Token.Integer) {
+            return AstNode.Integer.of(((Token.Integer) token).value);
+        } else if (token instanceof Token.Double) {
+            return new AstNode.Double(((Token.Double) token).value);
+        } else if (token instanceof Token.Name) {
+            return names.computeIfAbsent(((Token.Name) token).value, AstNode.Name::of);
+        } else if (token instanceof Token.String) {
+            return strings.computeIfAbsent(((Token.String) token).value, AstNode.String::new);
+        } else if (token instanceof Token.Boolean) {
+            return AstNode.Boolean.of(((Token.Boolean) token).value);
+        } else if (token instanceof Token.Quote
+                || token instanceof Token.UnQuote
+                || token instanceof Token.QuasiQuote) {
+            Token nextToken = tokens.nextToken();
+            if (nextToken == null)
+                throw new ParseException("Expected something after '");
+
+            AstNode nextNode = parseNode(nextToken);
+            AstNode.Name name;
+
+            if (token instanceof Token.Quote)
+                name = AstNode.Name.of("quote");
+            else if (token instanceof Token.UnQuote)
+                name = AstNode.Name.of("unquote");
+            else
+                name = AstNode.Name.of("quasiquote");
+
+            return new AstNode.Sexp(new AstNode[]{name, nextNode});
+        } else if (token == null) {
+            throw new ParseException("Expected something, got nothing (probably caused by a missing right parenthesis)");
+        }
+
+        throw new ParseException("This should never happen. If it does, contact Majora320 immediately with error code 451");
+    }
+
+    private AstNode.Sexp parseSexp() throws IOException, LexException, ParseException {
+        int base = stackSize;
+        Token token = tokens.nextToken();
+
+        while (!(token instanceof Token.RightParen)) {
+            AstNode node = parseNode(token);
+
+            if (stackSize == stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+
+            stack[stackSize++] = node;
+            token = tokens.nextToken();
+        }
+
+        AstNode[] contents = Arrays.copyOfRange(stack, base, stackSize);
+        Arrays.fill(stack, base, stackSize, null);
+        stackSize = base;
+
+        return new AstNode.Sexp(contents);
+    }
+
+    @Override
+    public void close() throws IOException {
+        tokens.close();
+    }
+}
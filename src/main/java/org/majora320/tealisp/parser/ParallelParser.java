@@ -0,0 +1,211 @@
+package org.majora320.tealisp.parser;
+
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.lexer.TokenStream;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Parses large inputs on a ForkJoinPool. A prescan splits the input into chunks of whole top-level forms, and each
+ * chunk is lexed and parsed on its own. Only newlines at paren depth 0, outside strings and comments and not right
+ * after a quote, are used as split points: the lexer never carries anything across one, so each chunk yields exactly
+ * the forms Parser.parse would have read from that part of the input, and the first error in input order is the one
+ * Parser.parse would have thrown.
+ */
+class ParallelParser {
+    // Smaller inputs aren't worth splitting
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+
+    @FunctionalInterface
+    private interface Chunk {
+        AstNode.RootNode parse() throws IOException, LexException, ParseException;
+    }
+
+    static AstNode.RootNode parse(Reader input, ForkJoinPool pool) throws IOException, LexException, ParseException {
+        char[] chars = new char[8192];
+        int length = 0;
+
+        try (Reader in = input) {
+            int n;
+            while ((n = in.read(chars, length, chars.length - length)) != -1) {
+                length += n;
+
+                if (length == chars.length)
+                    chars = Arrays.copyOf(chars, chars.length * 2);
+            }
+        }
+
+        if (pool.getParallelism() == 1)
+            return Parser.parse(new TokenStream(chars, length));
+
+        final char[] source = chars;
+        int[] splits = prescan(i -> source[i], length, chunkSize(length, pool));
+        List<Chunk> chunks = new ArrayList<>();
+
+        for (int i = 0; i + 1 < splits.length; ++i) {
+            int start = splits[i];
+            int end = splits[i + 1];
+            chunks.add(() -> Parser.parse(new TokenStream(source, start, end - start)));
+        }
+
+        return parseAll(chunks, pool);
+    }
+
+    /**
+     * Parses UTF-8 `input`. UTF-8 never uses ASCII byte values inside a multi-byte character, so the prescan can work
+     * on the raw bytes, and each chunk is decoded by its own TokenStream.
+     */
+    static AstNode.RootNode parse(ByteBuffer input, ForkJoinPool pool) throws IOException, LexException, ParseException {
+        if (pool.getParallelism() == 1)
+            return Parser.parse(new TokenStream(input));
+
+        int base = input.position();
+        int[] splits = prescan(i -> input.get(base + i), input.remaining(), chunkSize(input.remaining(), pool));
+        List<Chunk> chunks = new ArrayList<>();
+
+        for (int i = 0; i + 1 < splits.length; ++i) {
+            ByteBuffer slice = input.duplicate();
+            slice.limit(base + splits[i + 1]).position(base + splits[i]);
+            chunks.add(() -> Parser.parse(new TokenStream(slice.slice())));
+        }
+
+        return parseAll(chunks, pool);
+    }
+
+    private static int chunkSize(int length, ForkJoinPool pool) {
+        // A few chunks per thread, so an uneven split still keeps every thread busy
+        return Math.max(MIN_CHUNK_SIZE, length / (pool.getParallelism() * 4));
+    }
+
+    /**
+     * Returns the chunk boundaries in the `length` characters given by `at`, starting with 0 and ending with
+     * `length`. A chunk is cut at the first split point after it reaches `chunkSize`.
+     */
+    static int[] prescan(IntUnaryOperator at, int length, int chunkSize) {
+        List<Integer> splits = new ArrayList<>();
+        splits.add(0);
+
+        int depth = 0;
+        boolean inString = false;
+        boolean inComment = false;
+        // Set after a quote at depth 0, until the quoted form starts
+        boolean quoted = false;
+        int chunkStart = 0;
+
+        for (int i = 0; i < length; ++i) {
+            int c = at.applyAsInt(i);
+
+            if (inComment) {
+                if (c != '\n')
+                    continue;
+
+                inComment = false;
+            } else if (inString) {
+                if (c == '\\') {
+                    ++i;
+                } else if (c == '"') {
+                    inString = false;
+                } else if (c == '\n') {
+                    // An error in the lexer; leave the rest of the input in one chunk so it is found in the same place
+                    break;
+                }
+
+                continue;
+            }
+
+            switch (c) {
+                case '\n':
+                    if (depth == 0 && !quoted && i + 1 - chunkStart >= chunkSize && i + 1 < length) {
+                        chunkStart = i + 1;
+                        splits.add(chunkStart);
+                    }
+                    continue;
+                case ' ':
+                case '\t':
+                case '\r':
+                    continue;
+                case ';':
+                    inComment = true;
+                    continue;
+                case '"':
+                    inString = true;
+                    break;
+                case '(':
+                case '[':
+                case '{':
+                    ++depth;
+                    break;
+                case ')':
+                case ']':
+                case '}':
+                    // An extra right paren is an error in the parser, which the chunk holding it reports
+                    depth = Math.max(depth - 1, 0);
+                    break;
+                case '\'':
+                case '`':
+                case ',':
+                    if (depth == 0)
+                        quoted = true;
+                    continue;
+            }
+
+            if (depth == 0 || c == '(' || c == '[' || c == '{')
+                quoted = false;
+        }
+
+        splits.add(length);
+
+        int[] res = new int[splits.size()];
+        for (int i = 0; i < res.length; ++i)
+            res[i] = splits.get(i);
+
+        return res;
+    }
+
+    private static AstNode.RootNode parseAll(List<Chunk> chunks, ForkJoinPool pool)
+            throws IOException, LexException, ParseException {
+        List<ForkJoinTask<Object>> tasks = new ArrayList<>(chunks.size());
+
+        // The pool would wrap checked exceptions in RuntimeExceptions, so each task returns its exception instead
+        for (Chunk chunk : chunks) {
+            tasks.add(pool.submit(() -> {
+                try {
+                    return chunk.parse();
+                } catch (IOException | LexException | ParseException e) {
+                    return e;
+                }
+            }));
+        }
+
+        AstNode.RootNode res = new AstNode.RootNode(new ArrayList<>());
+
+        // Joined in order, so the first error in the input is the one that is thrown
+        for (int i = 0; i < tasks.size(); ++i) {
+            Object result = tasks.get(i).join();
+
+            if (result instanceof Exception) {
+                for (int j = i + 1; j < tasks.size(); ++j)
+                    tasks.get(j).cancel(false);
+
+                if (result instanceof LexException)
+                    throw (LexException) result;
+                if (result instanceof ParseException)
+                    throw (ParseException) result;
+
+                throw (IOException) result;
+            }
+
+            res.children.addAll(((AstNode.RootNode) result).children);
+        }
+
+        return res;
+    }
+}
@@ -1,85 +1,91 @@
 package org.majora320.tealisp.parser;
 
 import org.majora320.tealisp.lexer.LexException;
-import org.majora320.tealisp.lexer.Token;
 import org.majora320.tealisp.lexer.TokenStream;
 
 import java.io.IOException;
 import java.io.Reader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Parser {
     public static AstNode.RootNode parse(Reader input) throws IOException, LexException, ParseException {
         return parse(new TokenStream(input));
     }
 
+    /**
+     * Parses the UTF-8 file at `path`. The file is memory-mapped and lexed straight from the mapped bytes, instead of
+     * being read through a Reader.
+     */
+    public static AstNode.RootNode parse(Path path) throws IOException, LexException, ParseException {
+        return parse(new TokenStream(map(path)));
+    }
+
     public static AstNode.RootNode parse(TokenStream tokens) throws IOException, LexException, ParseException {
         AstNode.RootNode res = new AstNode.RootNode(new ArrayList<>());
 
-        Token token = tokens.nextToken();
-
-        while (token != null) {
-            res.children.add(parseNode(token, tokens));
-
-            token = tokens.nextToken();
+        try (FormReader forms = new FormReader(tokens, true)) {
+            for (AstNode form = forms.next(); form != null; form = forms.next())
+                res.children.add(form);
         }
 
-        tokens.close();
         return res;
     }
 
-    private static AstNode parseNode(Token token, TokenStream tokens) throws ParseException, IOException, LexException {
-        if (token instanceof Token.LeftParen) {
-            return parseSexp(tokens);
-        } else if (token instanceof Token.RightParen) {
-            throw new ParseException("Extra right parenthesis.");
-        } else if (token instanceof Token.Integer) {
-            return new AstNode.Integer(((Token.Integer) token).value);
-        } else if (token instanceof Token.Double) {
-            return new AstNode.Double(((Token.Double) token).value);
-        } else if (token instanceof Token.Name) {
-            return new AstNode.Name(((Token.Name) token).value);
-        } else if (token instanceof Token.String) {
-            return new AstNode.String(((Token.String) token).value);
-        } else if (token instanceof Token.Boolean) {
-            return new AstNode.Boolean(((Token.Boolean) token).value);
-        } else if (token instanceof Token.Quote
-                || token instanceof Token.UnQuote
-                || token instanceof Token.QuasiQuote) {
-            Token nextToken = tokens.nextToken();
-            if (nextToken == null)
-                throw new ParseException("Expected something after '");
-
-            AstNode nextNode = parseNode(nextToken, tokens);
-
-            List<AstNode> sexpContents = new ArrayList<>();
-
-            if (token instanceof Token.Quote)
-                sexpContents.add(new AstNode.Name("quote"));
-            else if (token instanceof Token.UnQuote)
-                sexpContents.add(new AstNode.Name("unquote"));
-            else if (token instanceof Token.QuasiQuote)
-                sexpContents.add(new AstNode.Name("quasiquote"));
-
-            sexpContents.add(nextNode);
-            return new AstNode.Sexp(sexpContents);
-        } else if (token == null) {
-            throw new ParseException("Expected something, got nothing (probably caused by a missing right parenthesis)");
-        }
+    /**
+     * Parses `input` like parse(Reader), but splits it by top-level form and parses the pieces in parallel on the
+     * common ForkJoinPool. The result and any error are the same as those of parse(Reader). Worth it for large
+     * inputs; small ones are parsed as one piece.
+     */
+    public static AstNode.RootNode parseParallel(Reader input) throws IOException, LexException, ParseException {
+        return parseParallel(input, ForkJoinPool.commonPool());
+    }
 
-        throw new ParseException("This should never happen. If it does, contact Majora320 immediately with error code 451");
+    public static AstNode.RootNode parseParallel(Reader input, ForkJoinPool pool)
+            throws IOException, LexException, ParseException {
+        return ParallelParser.parse(input, pool);
     }
 
-    private static AstNode.Sexp parseSexp(TokenStream tokens) throws IOException, LexException, ParseException {
-        AstNode.Sexp res = new AstNode.Sexp(new ArrayList<>());
-        Token token = tokens.nextToken();
+    /**
+     * Parses the UTF-8 file at `path` like parse(Path), in parallel like parseParallel(Reader).
+     */
+    public static AstNode.RootNode parseParallel(Path path) throws IOException, LexException, ParseException {
+        return parseParallel(path, ForkJoinPool.commonPool());
+    }
 
-        while (!(token instanceof Token.RightParen)) {
-            res.contents.add(parseNode(token, tokens));
-            token = tokens.nextToken();
-        }
+    public static AstNode.RootNode parseParallel(Path path, ForkJoinPool pool)
+            throws IOException, LexException, ParseException {
+        return ParallelParser.parse(map(path), pool);
+    }
 
-        return res;
+    /**
+     * Returns a FormReader over `input`, which parses one top-level form at a time.
+     */
+    public static FormReader forms(Reader input) {
+        return new FormReader(new TokenStream(input));
+    }
+
+    /**
+     * Returns a FormReader over the UTF-8 file at `path`, which is memory-mapped like with parse(Path).
+     */
+    public static FormReader forms(Path path) throws IOException {
+        return new FormReader(new TokenStream(map(path)));
+    }
+
+    static MappedByteBuffer map(Path path) throws IOException {
+        // The mapping stays valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("File too large to map: " + path);
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
     }
 }
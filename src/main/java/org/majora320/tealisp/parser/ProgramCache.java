@@ -0,0 +1,113 @@
+package org.majora320.tealisp.parser;
+
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.lexer.TokenStream;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.stream.Stream;
+
+/**
+ * An on-disk cache of parsed programs, so a script that hasn't changed since the last run doesn't need to be lexed and
+ * parsed again. Entries are files in AstSerializer's format, named after a SHA-256 hash of the source's content, so
+ * an edited source simply misses and old entries are never wrong. Hits are memory-mapped and rebuilt directly.
+ *
+ * The cache is only an optimization: a corrupt or unreadable entry is replaced by parsing the source again, and a
+ * cache directory that can't be written to just means every load parses.
+ */
+public class ProgramCache {
+    private static final String SUFFIX = ".tlac";
+
+    private final Path directory;
+
+    public ProgramCache(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the program in the UTF-8 file at `source`, from the cache if it has an entry for the file's current
+     * content, or else by parsing it and adding an entry.
+     */
+    public AstNode.RootNode load(Path source) throws IOException, LexException, ParseException {
+        ByteBuffer text = Parser.map(source);
+        Path entry = directory.resolve(key(text.duplicate()) + SUFFIX);
+
+        if (Files.isRegularFile(entry)) {
+            try {
+                return AstSerializer.deserialize(Parser.map(entry));
+            } catch (IOException e) {
+                // Corrupt, or from another version; parse again and replace it
+            }
+        }
+
+        AstNode.RootNode program = Parser.parse(new TokenStream(text));
+
+        try {
+            store(entry, AstSerializer.serialize(program));
+        } catch (IOException e) {
+            // Still have the program, just not a cache entry for next time
+        }
+
+        return program;
+    }
+
+    /**
+     * Removes every entry from the cache.
+     */
+    public void clear() throws IOException {
+        if (!Files.isDirectory(directory))
+            return;
+
+        try (Stream<Path> entries = Files.list(directory)) {
+            for (Path entry : (Iterable<Path>) entries::iterator) {
+                if (entry.getFileName().toString().endsWith(SUFFIX))
+                    Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    private static String key(ByteBuffer text) {
+        MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform has SHA-256
+            throw new IllegalStateException(e);
+        }
+
+        digest.update((byte) AstSerializer.VERSION);
+        digest.update(text);
+
+        StringBuilder res = new StringBuilder();
+        for (byte b : digest.digest())
+            res.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+
+        return res.toString();
+    }
+
+    private void store(Path entry, byte[] bytes) throws IOException {
+        Files.createDirectories(directory);
+
+        // Written to a temporary file and moved into place, so a concurrent load never sees half an entry
+        Path temp = Files.createTempFile(directory, "entry", ".tmp");
+
+        try {
+            Files.write(temp, bytes);
+
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
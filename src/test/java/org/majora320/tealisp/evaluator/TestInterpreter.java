@@ -0,0 +1,481 @@
+package org.majora320.tealisp.evaluator;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.majora320.tealisp.lexer.LexException;
+import org.majora320.tealisp.parser.AstNode;
+import org.majora320.tealisp.parser.ParseException;
+import org.majora320.tealisp.parser.Parser;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+class TestInterpreter {
+    @Test
+    void testBasic() throws IOException, LexException, ParseException, LispException {
+        assertRunEquals("(+ 1 2)", "3");
+        assertRunEquals("(- 10 1.5)", "8.5");
+        assertRunEquals("'(1 \"two\" three)", "'(1 \"two\" three)");
+        assertRunEquals("(if (< 1 2) 'yes 'no)", "'yes");
+        assertRunEquals("(cond ((= 1 2) 1) ((= 1 1) 2) (else 3))", "2");
+        assertRunEquals("(and 1 #f 2)", "#f");
+        assertRunEquals("(or #f 2)", "2");
+        assertRunEquals("(when #f 1)", "");
+        assertRunEquals("(unless #f 1 2)", "2");
+    }
+
+    @Test
+    void testArithmetic() throws IOException, LexException, ParseException, LispException {
+        assertRunEquals("(+)", "0");
+        assertRunEquals("(*)", "1");
+        assertRunEquals("(- 5)", "5");
+        assertRunEquals("(+ 1 2 3 4)", "10");
+        assertRunEquals("(* 2 3.5)", "7.0");
+        assertRunEquals("(+ 1 2 0.5 1)", "4.5");
+        assertRunEquals("(/ 7 2)", "3");
+        assertRunEquals("(/ 7.0 2)", "3.5");
+        assertRunEquals("(- 1.5 1 0.5)", "0.0");
+        assertRunEquals("(= 1 1.0)", "#t");
+        assertRunEquals("(< 1 2 3)", "#t");
+        assertRunEquals("(< 1 3 2)", "#f");
+        assertRunEquals("(>= 2.5 2)", "#t");
+        assertRunEquals("(!= 1 2)", "#t");
+    }
+
+    @Test
+    void testSharedValues() throws IOException, LexException, ParseException, LispException {
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            Interpreter interpreter = new Interpreter(new JavaRegistry(), mode);
+            Assertions.assertSame(LispObject.TRUE, interpreter.run(new StringReader("(< 1 2)")));
+            Assertions.assertSame(LispObject.FALSE, interpreter.run(new StringReader("#f")));
+            Assertions.assertSame(LispObject.VOID, interpreter.run(new StringReader("(void)")));
+            Assertions.assertSame(LispObject.Integer.valueOf(3), interpreter.run(new StringReader("(+ 1 2)")));
+            Assertions.assertEquals("100000", interpreter.run(new StringReader("(* 1000 100)")).toString());
+        }
+
+        // Booleans made from Java with the constructor still work
+        JavaRegistry registry = new JavaRegistry();
+        registry.registerInterface(new JavaInterface() {
+            @Override
+            public boolean isSupportedFunction(String function) {
+                return function.equals("false");
+            }
+
+            @Override
+            public LispObject runFunction(String name, LispObject[] params, StackFrame frame) {
+                return new LispObject.Boolean(false);
+            }
+        });
+
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            Interpreter interpreter = new Interpreter(registry, mode);
+            Assertions.assertEquals("2", interpreter.run(new StringReader("(if (false) 1 2)")).toString());
+            Assertions.assertEquals("#t", interpreter.run(new StringReader("(not (false))")).toString());
+        }
+    }
+
+    @Test
+    void testFunctions() throws IOException, LexException, ParseException, LispException {
+        assertRunEquals("(define (fact n) (if (= n 0) 1 (* n (fact (- n 1))))) (fact 10)", "3628800");
+        assertRunEquals("((lambda (x y) (cons x y)) 1 '(2))", "'(1 2)");
+        assertRunEquals("(let ((x 1) (y 2)) (+ x y))", "3");
+        assertRunEquals("(let* ((x 1) (y (+ x 1))) (* x y))", "2");
+        assertRunEquals("(define x 1) (set! x 5) x", "5");
+    }
+
+    @Test
+    void testLists() throws IOException, LexException, ParseException, LispException, ClassNotFoundException {
+        assertRunEquals("(cons 1 (cons 2 (list 3 4)))", "'(1 2 3 4)");
+        assertRunEquals("(cdr (cdr (cons 1 (cons 2 '(3 4)))))", "'(3 4)");
+        assertRunEquals("(car (cdr (cdr (list 1 2 3))))", "3");
+        assertRunEquals("(empty? (cdr (cons 1 '())))", "#t");
+        assertRunEquals("(define (build n acc) (if (= n 0) acc (build (- n 1) (cons n acc))))"
+                + " (define (sum l acc) (if (empty? l) acc (sum (cdr l) (+ acc (car l)))))"
+                + " (sum (build 100000 '()) 0)", "705082704");
+        assertRunThrows("(car '())");
+        assertRunThrows("(cdr (list))");
+
+        LispObject.List list = ((LispObject.List) LispObject.fromJavaObject(java.util.Arrays.asList(1, 2))).cons(LispObject.Integer.valueOf(0));
+        Assertions.assertEquals(3, list.size());
+        Assertions.assertEquals("[0, 1, 2]", list.getValue().toString());
+        Assertions.assertEquals("2", list.getValue().get(2).toString());
+    }
+
+    @Test
+    void testVectors() throws IOException, LexException, ParseException, LispException, ClassNotFoundException {
+        assertRunEquals("(int-vector 1 2 3)", "#s32(1 2 3)");
+        assertRunEquals("(make-double-vector 2 1)", "#f64(1.0 1.0)");
+        assertRunEquals("(define v (make-int-vector 3)) (vector-set! v 1 5) (vector-ref v 1)", "5");
+        assertRunEquals("(vector-length (vector-slice (int-vector 1 2 3 4) 1 3))", "2");
+        assertRunEquals("(vector+ (int-vector 1 2) (int-vector 10 20))", "#s32(11 22)");
+        assertRunEquals("(vector* (int-vector 1 2) 0.5)", "#f64(0.5 1.0)");
+        assertRunEquals("(vector- (double-vector 1 2) (int-vector 1 1))", "#f64(0.0 1.0)");
+        assertRunEquals("(vector-dot (int-vector 1 2 3) (int-vector 4 5 6))", "32");
+        assertRunEquals("(vector-sum (double-vector 1 2.5))", "3.5");
+        assertRunEquals("(vector-min (int-vector 3 -1 2))", "-1");
+        assertRunEquals("(vector-max (double-vector 3 -1 2))", "3.0");
+        assertRunEquals("(vector->list (int-vector 1 2))", "'(1 2)");
+        assertRunThrows("(vector-ref (int-vector 1) 1)");
+        assertRunThrows("(vector-set! (int-vector 1) 0 1.5)");
+        assertRunThrows("(vector+ (int-vector 1) (int-vector 1 2))");
+        assertRunThrows("(vector-max (double-vector))");
+
+        double[] samples = {1.0, 2.0};
+        LispObject vector = LispObject.fromJavaObject(samples);
+        Assertions.assertSame(samples, vector.getValue());
+    }
+
+    @Test
+    void testScopes() throws IOException, LexException, ParseException, LispException {
+        assertRunEquals("(define (f x) (define y (* x 2)) (+ x y)) (f 3)", "9");
+        assertRunEquals("(let* ((x 1) (x (+ x 1))) x)", "2");
+        assertRunEquals("(let ((x 1)) (let ((x 2) (y x)) y))", "1");
+        assertRunEquals("(let ((x 1)) (let ((y 2)) (set! x (+ x y)) x))", "3");
+        assertRunEquals("(define (f x) (let ((g (lambda (y) (+ x y)))) (g 1))) (f 2)", "3");
+
+        // Like in the tree walker, a define inside an if, when, cond, and or or only binds within that sub-form
+        assertRunEquals("(if #t (list (define z 2) z) 0)", "'( 2)");
+        assertRunEquals("(define z 1) (when #t (define z 2)) z", "1");
+        assertRunEquals("(define (f x) (define z 1) (and (define z x) z) z) (f 4)", "1");
+        assertRunEquals("(define (loop n) (if (= n 0) (list (define r 'done) r) (loop (- n 1)))) (loop 10)", "'( done)");
+        assertRunThrows("(when #t (define z 1)) z");
+        assertRunThrows("(define (f x) (if #t (define z x) 0) z) (f 4)");
+        assertRunThrows("(define (f x) (cond (#t (define q x))) q) (f 6)");
+        assertRunThrows("(define (f x) (or (define q x)) q) (f 6)");
+    }
+
+    @Test
+    void testClosures() throws IOException, LexException, ParseException, LispException {
+        assertRunEquals("(define x 1) (define (get) x) (define (f x) (get)) (f 2)", "1");
+        assertRunEquals("(define (adder x) (lambda (y) (lambda (z) (+ x y z)))) (((adder 1) 2) 3)", "6");
+        assertRunEquals("(define (make-counter) (let ((n 0)) (lambda () (set! n (+ n 1)) n)))"
+                + " (define c (make-counter)) (c) (c) (c)", "3");
+        assertRunEquals("(define (cell) (let ((v 0)) (list (lambda () v) (lambda (n) (set! v n)))))"
+                + " (define p (cell)) ((car (cdr p)) 5) ((car p))", "5");
+        assertRunEquals("(define (f) (define (even? n) (if (= n 0) #t (odd? (- n 1))))"
+                + " (define (odd? n) (if (= n 0) #f (even? (- n 1)))) (even? 10)) (f)", "#t");
+    }
+
+    @Test
+    void testTailCalls() throws IOException, LexException, ParseException, LispException {
+        assertRunEquals("(define (loop n acc) (if (= n 0) acc (loop (- n 1) (+ acc 1)))) (loop 1000000 0)", "1000000");
+        assertRunEquals("(define (even? n) (if (= n 0) #t (odd? (- n 1))))"
+                + " (define (odd? n) (if (= n 0) #f (even? (- n 1)))) (even? 1000000)", "#t");
+        assertRunEquals("(define (count n) (cond ((= n 0) 'done) (else (let ((m (- n 1))) (and #t (count m))))))"
+                + " (count 1000000)", "'done");
+    }
+
+    @Test
+    void testTiered() throws IOException, LexException, ParseException, LispException {
+        Interpreter interpreter = new Interpreter(new JavaRegistry(), Interpreter.ExecutionMode.TIERED);
+        interpreter.setCompileThreshold(10);
+        interpreter.run(new StringReader("(define (fib n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2)))))"
+                + " (define (f x) (* x 2))"));
+
+        // Runs on the Node tree, then compiles fib partway through
+        Assertions.assertEquals("6765", interpreter.run(new StringReader("(fib 20)")).toString());
+        Assertions.assertEquals("6765", interpreter.run(new StringReader("(fib 20)")).toString());
+
+        // Compiled code sees redefinitions of what it calls
+        interpreter.run(new StringReader("(define (g n) (if (= n 0) 0 (f n))) (g 1) (g 1) (g 1)"));
+        Assertions.assertEquals("2", interpreter.run(new StringReader("(g 1)")).toString());
+        interpreter.run(new StringReader("(define (f x) (* x 3))"));
+        Assertions.assertEquals("3", interpreter.run(new StringReader("(g 1)")).toString());
+
+        assertRunEquals("(define (sum v i acc) (if (= i (vector-length v)) acc (sum v (+ i 1) (+ acc (vector-ref v i)))))"
+                + " (sum (int-vector 1 2 3 4 5 6) 0 0)", "21");
+        assertRunEquals("(define (f a b c d e) (list e d c b a)) (define (g) (f 1 2 3 4 5)) (g)", "'(5 4 3 2 1)");
+        assertRunEquals("(define (f n) (let* ((a n) (b a)) (define (g) (+ a b)) (set! a (+ a 1)) (g))) (f 1)", "3");
+        assertRunEquals("(define (f n) (cond ((= n 0)) ((= n 1) 'one))) (list (f 0) (f 1) (f 2))", "'(#t one )");
+        assertRunThrows("(define (f n) (+ n undefined-variable)) (f 1)");
+        assertRunThrows("(define (f n) (car n)) (f 1)");
+    }
+
+    @Test
+    void testBytecode() throws IOException, LexException, ParseException, LispException {
+        Interpreter interpreter = new Interpreter(new JavaRegistry(), Interpreter.ExecutionMode.BYTECODE);
+        interpreter.run(new StringReader("(define (depth n) (if (= n 0) 0 (+ 1 (depth (- n 1)))))"));
+
+        // Calls between Lisp functions don't use the Java stack
+        Assertions.assertEquals("100000", interpreter.run(new StringReader("(depth 100000)")).toString());
+
+        // The machine is usable again after an error partway through a call
+        Assertions.assertThrows(LispException.class, () -> interpreter.run(new StringReader("(depth 'x)")));
+        Assertions.assertEquals("10", interpreter.getRuntime().callFunction("depth", new LispObject.Integer(10)).toString());
+
+        // Lets share registers, so define slots must start out empty each time
+        assertRunEquals("(define (f) (let ((a 1)) a) (let ((b 2)) (define q b) q)) (f)", "2");
+        assertRunThrows("(define (f) (let ((a 1)) (define q 3) a) (let ((b 2)) (+ b q) (define q b) q)) (f)");
+        assertRunEquals("(define (f x) (let ((x (+ x 1)) (y x)) (list x y))) (f 1)", "'(2 1)");
+    }
+
+    @Test
+    void testCallSites() throws IOException, LexException, ParseException, LispException {
+        // Call sites cache what a name resolved to, but must notice when it is redefined
+        assertRunEquals("(define (f) 1) (define (g) (f)) (define a (g)) (define (f) 2) (list a (g))", "'(1 2)");
+        assertRunEquals("(define (f) 1) (define (g) (f)) (define a (g)) (set! f (lambda () 2)) (list a (g))", "'(1 2)");
+        assertRunEquals("(define (g) (car '(1 2))) (define a (g)) (define (car x) (cdr x)) (list a (g))", "'(1 (2))");
+        assertRunThrows("(define (g) (+ 1 2)) (g) (define + 5) (g)");
+        assertRunEquals("(define n 0) (define (loop) (when (< n 100) (set! n (+ n 1)) (loop))) (loop) n", "100");
+    }
+
+    @Test
+    void testConstantFolding() throws IOException, LexException, ParseException, LispException {
+        Analyzer analyzer = new Analyzer(new Interpreter());
+        Node folded = analyzer.analyze(Parser.parse(new StringReader("(* 2 (/ 3.0 (+ 100 80)))")).children.get(0));
+        Assertions.assertTrue(folded instanceof Node.Folded);
+        Assertions.assertTrue(((Node.Folded) folded).folded instanceof Node.Literal);
+
+        assertRunEquals("(* 2 (/ 3.0 (+ 100 80)))", Double.toString(2 * (3.0 / 180)));
+        assertRunEquals("(list (< 1 2) (not #t) (car (cdr (list 1 2))))", "'(#t #f 2)");
+        assertRunEquals("(if (< 2 1) 'yes (+ 1 2))", "3");
+        assertRunEquals("(cond ((> 1 2) 'a) ((= 1 1) 'b) (else 'c))", "'b");
+        assertRunEquals("(cond ((> 1 2) 'a) ((+ 1 1)) (else 'c))", "2");
+        assertRunEquals("(cond ((> 1 2) 'a))", "");
+
+        // Folded code must notice when the functions it assumed are redefined, wherever it is
+        assertRunEquals("(define (f) (+ 1 2)) (define a (f)) (define (+ x y) (* x y)) (list a (f))", "'(3 2)");
+        assertRunEquals("(define (f) (list (- 5 (* 1 2)))) (define a (f)) (define (* x y) 0) (list a (f))", "'((3) (5))");
+        assertRunEquals("(define (f) (if (< 1 2) 'yes 'no)) (define a (f)) (define (< x y) #f) (list a (f))", "'(yes no)");
+        assertRunEquals("(define (f) (cond ((> 1 2) 'a) ((= 1 1) 'b) (else 'c))) (define a (f))"
+                + " (define (= x y) #f) (list a (f))", "'(b c)");
+        assertRunThrows("(define (f) (+ 1 2)) (f) (define + 5) (f)");
+        assertRunEquals("(define (f +) (+ 1 2)) (f (lambda (x y) (- x y)))", "-1");
+        assertRunEquals("(define (f) (define (+ x y) 0) (+ 1 2)) (f)", "0");
+
+        // Errors still happen when the code runs, not when it is analyzed
+        assertRunEquals("(define (f) (car (list))) 1", "1");
+        assertRunThrows("(define (f) (car (list))) (f)");
+    }
+
+    @Test
+    void testInlining() throws IOException, LexException, ParseException, LispException {
+        Interpreter interpreter = run("(define (sq x) (* x x))", Interpreter.ExecutionMode.COMPILED);
+        AstNode call = Parser.parse(new StringReader("(sq 3)")).children.get(0);
+        Node inlined = new Analyzer(interpreter).analyze(call);
+        Assertions.assertTrue(inlined instanceof Node.Folded);
+        Assertions.assertTrue(((Node.Folded) inlined).folded instanceof Node.Let);
+
+        interpreter.setInlineBudget(3);
+        Assertions.assertTrue(new Analyzer(interpreter).analyze(call) instanceof Node.NamedCall);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> interpreter.setInlineBudget(-1));
+
+        assertRunEquals("(define (sq x) (* x x)) (define (f y) (+ (sq y) 1)) (f 3)", "10");
+        assertRunEquals("(define y 10) (define (g x) (+ x y)) (define (f y) (g y)) (f 1)", "11");
+        assertRunEquals("(define (h x) (define y (* x 2)) (set! x (+ x y)) x) (define (f) (h 1)) (f)", "3");
+        assertRunEquals("(define (adder x) (lambda (y) (+ x y))) (define (f) ((adder 1) 2)) (f)", "3");
+        assertRunEquals("(define (fact n) (if (= n 0) 1 (* n (fact (- n 1))))) (define (f) (fact 5)) (f)", "120");
+        assertRunThrows("(define (sq x) (* x x)) (define (f) (sq 1 2)) (f)");
+
+        // Tail calls in an inlined body are still tail calls
+        assertRunEquals("(define (step n acc) (loop (- n 1) (+ acc 1)))"
+                + " (define (loop n acc) (if (= n 0) acc (step n acc))) (loop 1000000 0)", "1000000");
+
+        // Inlined bodies must notice when the function is redefined
+        assertRunEquals("(define (sq x) (* x x)) (define (f y) (sq y)) (define a (f 3))"
+                + " (define (sq x) (+ x x)) (list a (f 3))", "'(9 6)");
+        assertRunEquals("(define (sq x) (* x x)) (define (f y) (sq y)) (define a (f 3))"
+                + " (set! sq (lambda (x) 0)) (list a (f 3))", "'(9 0)");
+    }
+
+    @Test
+    void testQuotedConstants() throws IOException, LexException, ParseException, LispException {
+        // Outside the tree-walker, a quote makes its LispObject once, when it is analyzed
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            if (mode == Interpreter.ExecutionMode.TREE_WALKER)
+                continue;
+
+            Interpreter interpreter = run("(define (table) '((a 1) (b \"two\") (c #t)))", mode);
+            LispObject first = interpreter.getRuntime().callFunction("table");
+            Assertions.assertSame(first, interpreter.getRuntime().callFunction("table"), "Mode: " + mode);
+            Assertions.assertEquals("'((a 1) (b \"two\") (c #t))", first.toString(), "Mode: " + mode);
+        }
+
+        assertRunEquals("(define (f) (car (cdr '(1 (2 3))))) (f)", "'(2 3)");
+        assertRunEquals("(define (f) (cons 0 '(1 2))) (f) (f)", "'(0 1 2)");
+        assertRunEquals("(define (f) 'x) (symbol=? (f) 'x)", "#t");
+        assertRunEquals("(define (f) '(1.5)) 1", "1");
+        assertRunThrows("(define (f) '(1.5)) (f)");
+    }
+
+    @Test
+    void testSpecialization() throws IOException, LexException, ParseException, LispException {
+        // Calls specialize to the types they see first, and fall back when they see others. The functions here call
+        // themselves so that they aren't inlined, which would give each call its own copy of the specialized call.
+        assertRunEquals("(define (g l) (if (empty? l) l (cons (+ (car l) 1) (g (cdr l))))) (g (list 1 2 0.5 3))",
+                "'(2 3 1.5 4)");
+        assertRunEquals("(define (g l) (if (empty? l) l (cons (- (car l) 0.5) (g (cdr l))))) (g (list 1.5 2 1))",
+                "'(1.0 1.5 0.5)");
+        assertRunEquals("(define (g l) (if (empty? l) l (cons (< (car l) 2) (g (cdr l))))) (g (list 1.5 2.5 1 2 2.0))",
+                "'(#t #f #t #f #f)");
+        assertRunEquals("(define (g l) (if (empty? l) l (cons (= (car l) 1) (g (cdr l))))) (g (list 1.0 2.0 1 2))",
+                "'(#t #f #t #f)");
+        assertRunEquals("(define (sum l acc) (if (empty? l) acc (sum (cdr l) (+ acc (car l))))) (sum (list 1 2 3 0.5 1) 0)",
+                "7.5");
+        assertRunEquals("(define (g l) (if (empty? l) l (cons (car (car l)) (g (cdr l))))) (g '((1) (2 3)))", "'(1 2)");
+        assertRunThrows("(define (g l) (if (empty? l) l (cons (car (car l)) (g (cdr l))))) (g '((1) 2))");
+        assertRunThrows("(define (g l) (if (empty? l) l (cons (+ (car l) 1) (g (cdr l))))) (g '(1 x))");
+
+        // ...and when the name they were specialized to is redefined
+        assertRunEquals("(define (g n) (if (= n 0) 0 (+ n (g (- n 1))))) (define x (g 3))"
+                + " (define (+ a b) (* a b)) (list x (g 3))", "'(6 0)");
+        assertRunEquals("(define (f x) (g x)) (define (g x) (* x 2)) (define a (f 1))"
+                + " (define (g x) (* x 3)) (list a (f 1))", "'(2 3)");
+        assertRunThrows("(define (f) (g 1 2)) (define (g x) x) (f)");
+    }
+
+    @Test
+    void testJavaInterfaces() throws IOException, LexException, ParseException, LispException {
+        JavaInterface iface = new JavaInterface() {
+            @Override
+            public boolean isSupportedFunction(String function) {
+                return function.equals("answer");
+            }
+
+            @Override
+            public LispObject runFunction(String name, LispObject[] params, StackFrame frame) {
+                return new LispObject.Integer(42);
+            }
+        };
+
+        JavaRegistry registry = new JavaRegistry();
+        Interpreter interpreter = new Interpreter(registry);
+
+        Assertions.assertThrows(LispException.class, () -> interpreter.getRuntime().callFunction("answer"));
+        registry.registerInterface(iface);
+        Assertions.assertEquals("42", interpreter.getRuntime().callFunction("answer").toString());
+        registry.deregisterInterface(iface);
+        Assertions.assertThrows(LispException.class, () -> interpreter.getRuntime().callFunction("answer"));
+
+        // Registry changes also reach call sites in Lisp code that already called the function
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            JavaRegistry modeRegistry = new JavaRegistry();
+            modeRegistry.registerInterface(iface);
+            Interpreter modeInterpreter = new Interpreter(modeRegistry, mode);
+            modeInterpreter.setCompileThreshold(0);
+            modeInterpreter.run(new StringReader("(define (ask) (answer))"));
+
+            Assertions.assertEquals("42", modeInterpreter.getRuntime().callFunction("ask").toString(), "Mode: " + mode);
+            modeRegistry.deregisterInterface(iface);
+            Assertions.assertThrows(LispException.class, () -> modeInterpreter.getRuntime().callFunction("ask"), "Mode: " + mode);
+        }
+    }
+
+    @Test
+    void testNativeFunctions() throws IOException, LexException, ParseException, LispException {
+        NativeFunction twice = NativeFunction.of("twice", TypeTag.INTEGER,
+                a -> new LispObject.Integer(((LispObject.Integer) a).getValue() * 2));
+        JavaInterface iface = new JavaInterface() {
+            @Override
+            public boolean isSupportedFunction(String function) {
+                return function.equals("twice");
+            }
+
+            @Override
+            public NativeFunction getNativeFunction(String name) {
+                return twice;
+            }
+
+            @Override
+            public LispObject runFunction(String name, LispObject[] params, StackFrame frame) {
+                throw new IllegalStateException("runFunction should not be called for native functions");
+            }
+        };
+
+        JavaRegistry registry = new JavaRegistry();
+        registry.registerInterface(iface);
+
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            Interpreter interpreter = new Interpreter(registry, mode);
+            Assertions.assertEquals("42", interpreter.run(new StringReader("(twice 21)")).toString());
+            Assertions.assertEquals("8", interpreter.run(new StringReader("(define (f x) (twice x)) (f (twice 2))")).toString());
+            Assertions.assertThrows(LispException.class, () -> interpreter.run(new StringReader("(twice 1 2)")));
+            Assertions.assertThrows(LispException.class, () -> interpreter.run(new StringReader("(twice \"a\")")));
+        }
+
+        assertRunThrows("(+ 1 'a)");
+        assertRunThrows("(car '(1) '(2))");
+        assertRunThrows("(- )");
+    }
+
+    @Test
+    void testFiles() throws IOException, LexException, ParseException, LispException {
+        Path file = Files.createTempFile("tealisp", ".lisp");
+
+        try {
+            for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+                Files.write(file, ("(define (greet name) (list \"h\u00e9llo\" name))\n"
+                        + "(greet \"w\u00f6rld \u2603 \ud83d\ude00\")").getBytes(StandardCharsets.UTF_8));
+
+                Interpreter interpreter = new Interpreter(file, new JavaRegistry(), mode);
+                Assertions.assertEquals("'(\"h\u00e9llo\" \"w\u00f6rld \u2603 \ud83d\ude00\")", interpreter.getGlobalResult().toString());
+
+                Files.write(file, "(greet 'again)".getBytes(StandardCharsets.UTF_8));
+                Assertions.assertEquals("'(\"h\u00e9llo\" again)", interpreter.run(file).toString());
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testIncremental() throws IOException, LexException, ParseException, LispException {
+        StringBuilder program = new StringBuilder();
+        for (int i = 0; i < 5000; ++i)
+            program.append("(define x").append(i).append(" '(").append(i).append(" \"entry\"))\n");
+        program.append("(car x4999)");
+
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            Interpreter interpreter = new Interpreter(new JavaRegistry(), mode);
+            Assertions.assertEquals("4999", interpreter.runIncrementally(new StringReader(program.toString())).toString());
+            Assertions.assertEquals("4999", interpreter.getGlobalResult().toString());
+
+            // The forms before a syntax error have already run
+            Interpreter partial = new Interpreter(new JavaRegistry(), mode);
+            Assertions.assertThrows(ParseException.class,
+                    () -> partial.runIncrementally(new StringReader("(define a 1) (define b 2) ) (define c 3)")));
+            Assertions.assertEquals("1", partial.getGlobalFrame().lookupBinding("a").toString());
+            Assertions.assertNull(partial.getGlobalFrame().lookupBinding("c"));
+
+            Assertions.assertEquals(LispObject.VOID, new Interpreter(new JavaRegistry(), mode)
+                    .runIncrementally(new StringReader("; nothing")));
+        }
+    }
+
+    @Test
+    void testErrors() {
+        assertRunThrows("(undefined-function 1)");
+        assertRunThrows("(+ 1 undefined-variable)");
+        assertRunThrows("(if #t 1)");
+        assertRunThrows("(let (x 1) x)");
+        assertRunThrows("()");
+        assertRunThrows("(define)");
+        assertRunThrows("((lambda (x) x))");
+    }
+
+    /**
+     * In TIERED mode, functions are compiled on their first call, so every test also runs the bytecode compiler.
+     */
+    private Interpreter run(String program, Interpreter.ExecutionMode mode) throws IOException, LexException, ParseException, LispException {
+        Interpreter interpreter = new Interpreter(new JavaRegistry(), mode);
+        interpreter.setCompileThreshold(0);
+        interpreter.run(new StringReader(program));
+        return interpreter;
+    }
+
+    private void assertRunEquals(String program, String expected) throws IOException, LexException, ParseException, LispException {
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            Interpreter interpreter = run(program, mode);
+            Assertions.assertEquals(expected, interpreter.getGlobalResult().toString(), "Mode: " + mode + ", input: " + program);
+        }
+    }
+
+    private void assertRunThrows(String program) {
+        for (Interpreter.ExecutionMode mode : Interpreter.ExecutionMode.values()) {
+            Assertions.assertThrows(LispException.class, () -> run(program, mode), "Mode: " + mode + ", input: " + program);
+        }
+    }
+}
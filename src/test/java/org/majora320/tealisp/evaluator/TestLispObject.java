@@ -0,0 +1,71 @@
+package org.majora320.tealisp.evaluator;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.majora320.tealisp.lexer.Token;
+import org.majora320.tealisp.lexer.TokenStream;
+
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+class TestLispObject {
+    @Test
+    void testEquality() throws LispException, ClassNotFoundException {
+        Assertions.assertEquals(new LispObject.Integer(5000), new LispObject.Integer(5000));
+        Assertions.assertNotEquals(LispObject.Integer.valueOf(1), new LispObject.Double(1.0));
+        Assertions.assertEquals(new LispObject.Symbol("a"), new LispObject.Symbol("a"));
+        Assertions.assertNotEquals(new LispObject.Symbol("a"), new LispObject.String("a"));
+        Assertions.assertEquals(LispObject.FALSE, new LispObject.Boolean(false));
+
+        // The same elements, stored as cons cells and as an array
+        LispObject.List consed = LispObject.List.EMPTY.cons(LispObject.Integer.valueOf(2)).cons(LispObject.Integer.valueOf(1));
+        LispObject.List flat = (LispObject.List) LispObject.fromJavaObject(Arrays.asList(1, 2));
+        Assertions.assertEquals(consed, flat);
+        Assertions.assertEquals(consed.hashCode(), flat.hashCode());
+        Assertions.assertEquals(consed.getValue().hashCode(), consed.hashCode());
+        Assertions.assertNotEquals(consed, flat.cdr());
+    }
+
+    @Test
+    void testSymbols() throws Exception {
+        Assertions.assertSame(LispObject.Symbol.intern("abc"), LispObject.Symbol.intern(new String("abc")));
+        Assertions.assertSame("abc", LispObject.Symbol.intern(new String("abc")).getValue());
+
+        Interpreter interpreter = new Interpreter(new JavaRegistry());
+        LispObject first = interpreter.run(new StringReader("'abc"));
+        Assertions.assertSame(first, interpreter.run(new StringReader("(car '(abc))")));
+        Assertions.assertSame(first, LispObject.Symbol.intern("abc"));
+
+        Token.Name name = (Token.Name) new TokenStream(new StringReader("xyz")).nextToken();
+        Assertions.assertSame("xyz", name.value);
+    }
+
+    @Test
+    void testHashTable() {
+        LispObject.HashTable table = new LispObject.HashTable();
+        Map<LispObject, LispObject> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 100000; ++i) {
+            LispObject key = random.nextBoolean()
+                    ? LispObject.Integer.valueOf(random.nextInt(2000))
+                    : new LispObject.Symbol("s" + random.nextInt(2000));
+
+            if (random.nextInt(3) == 0) {
+                Assertions.assertEquals(expected.remove(key), table.remove(key));
+            } else {
+                LispObject value = LispObject.Integer.valueOf(i);
+                Assertions.assertEquals(expected.put(key, value), table.put(key, value));
+            }
+
+            Assertions.assertEquals(expected.size(), table.size());
+        }
+
+        for (Map.Entry<LispObject, LispObject> entry : expected.entrySet())
+            Assertions.assertEquals(entry.getValue(), table.get(entry.getKey()));
+        Assertions.assertEquals(expected, table.getValue());
+    }
+}
@@ -5,6 +5,12 @@ import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
 import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 class TestLexer {
     @Test
@@ -57,6 +63,48 @@ class TestLexer {
         assertLexEquals("- .5 - .5", new Token[]{new Token.Name("-"), new Token.Double(.5), new Token.Name("-"), new Token.Double(.5)});
     }
 
+    @Test
+    void testCommentsAndStrings() throws IOException, LexException {
+        StringBuilder comments = new StringBuilder();
+        for (int i = 0; i < 100000; ++i)
+            comments.append("; comment\n");
+
+        assertLexEquals(comments + "1", new Token[]{new Token.Integer(1)});
+        assertLexEquals("\"a\\\"b\\n\"", new Token[]{new Token.String("a\"b\n")});
+        assertLexEquals("2147483647 -2147483648 0.1", new Token[]{
+                new Token.Integer(2147483647),
+                new Token.Integer(-2147483648),
+                new Token.Double(0.1)
+        });
+        Assertions.assertThrows(LexException.class, () -> assertLexEquals("2147483648", new Token[]{}));
+    }
+
+    @Test
+    void testUtf8() throws IOException, LexException {
+        // Multi-byte and surrogate pair characters on both sides of the buffer boundaries
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; input.length() < 40000; ++i) {
+            input.append("(abc ").append(i).append(" \"\u00e9\u20ac").append(new String(Character.toChars(0x1F600)))
+                    .append("\" \u540d\u524d").append(i % 7 == 0 ? "" : "x").append(") ");
+            for (int j = 0; j < i % 13; ++j)
+                input.append(' ');
+        }
+
+        String str = input.toString();
+        Assertions.assertEquals(lexAll(new TokenStream(new StringReader(str))),
+                lexAll(new TokenStream(ByteBuffer.wrap(str.getBytes(StandardCharsets.UTF_8)))));
+
+        // A byte order mark is skipped
+        byte[] bom = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF, '4', '2'};
+        Assertions.assertEquals(Collections.singletonList(new Token.Integer(42)), lexAll(new TokenStream(ByteBuffer.wrap(bom))));
+
+        byte[] malformed = {'(', 'a', ' ', (byte) 0xC3, ')'};
+        Assertions.assertThrows(CharacterCodingException.class, () -> lexAll(new TokenStream(ByteBuffer.wrap(malformed))));
+
+        byte[] truncated = {'"', (byte) 0xE2, (byte) 0x82};
+        Assertions.assertThrows(CharacterCodingException.class, () -> lexAll(new TokenStream(ByteBuffer.wrap(truncated))));
+    }
+
     @Test
     void testInvalidParsings() {
         Assertions.assertThrows(LexException.class, () -> assertLexEquals("\\", new Token[]{}));
@@ -80,4 +128,13 @@ class TestLexer {
         if (i != expectedOutput.length)
             Assertions.fail("Not enough tokens returned: " + input);
     }
-}
\ No newline at end of file
+
+    private List<Token> lexAll(TokenStream stream) throws IOException, LexException {
+        List<Token> res = new ArrayList<>();
+
+        for (Token tok = stream.nextToken(); tok != null; tok = stream.nextToken())
+            res.add(tok);
+
+        return res;
+    }
+}
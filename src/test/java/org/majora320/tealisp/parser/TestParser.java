@@ -0,0 +1,210 @@
+package org.majora320.tealisp.parser;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.majora320.tealisp.lexer.LexException;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+class TestParser {
+    private static final String FORMS = "(define (f x) ; a comment with ( and \" in it\n"
+            + "  (list x \"a string with ) and ; and \\\" in it\" 'quoted))\n"
+            + "'\n"
+            + "(quoted on the next line)\n"
+            + "`(a ,b) [c {d}] #t -1 2.5 - \u00e9t\u00e9 \"\u2603\"\n"
+            + "; just a comment\n"
+            + "name\n";
+
+    @Test
+    void testSharedNodes() throws IOException, LexException, ParseException {
+        AstNode.RootNode program = Parser.parse(new StringReader("(f 1 #t \"s\") (f 1 #t \"s\" 100000 100000 'f)"));
+        List<AstNode> first = ((AstNode.Sexp) program.children.get(0)).contents;
+        List<AstNode> second = ((AstNode.Sexp) program.children.get(1)).contents;
+
+        for (int i = 0; i < first.size(); ++i)
+            Assertions.assertSame(first.get(i), second.get(i));
+
+        Assertions.assertSame(AstNode.Name.of("f"), first.get(0));
+        Assertions.assertSame(AstNode.Name.of("quote"), ((AstNode.Sexp) second.get(6)).contents.get(0));
+        Assertions.assertNotSame(second.get(4), second.get(5));
+        Assertions.assertEquals("Sexp[Name[f], Integer[1], Boolean[true], String[s]]", program.children.get(0).toString());
+
+        // Sexps are read-only
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> first.add(AstNode.Boolean.TRUE));
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> first.set(0, AstNode.Boolean.TRUE));
+
+        List<AstNode> contents = new ArrayList<>(first);
+        AstNode.Sexp copy = new AstNode.Sexp(contents);
+        contents.clear();
+        Assertions.assertEquals(program.children.get(0).toString(), copy.toString());
+    }
+
+    @Test
+    void testStreamedStrings() throws IOException, LexException, ParseException {
+        // A FormReader only shares string literals within a form, so it doesn't keep earlier forms' literals alive
+        try (FormReader forms = Parser.forms(new StringReader("(f \"s\" \"s\") (f \"s\")"))) {
+            List<AstNode> first = ((AstNode.Sexp) forms.next()).contents;
+            List<AstNode> second = ((AstNode.Sexp) forms.next()).contents;
+
+            Assertions.assertSame(first.get(1), first.get(2));
+            Assertions.assertNotSame(first.get(1), second.get(1));
+            Assertions.assertEquals(first.get(1).toString(), second.get(1).toString());
+            Assertions.assertSame(first.get(0), second.get(0));
+        }
+    }
+
+    @Test
+    void testNamesFreed() throws IOException, LexException, ParseException, InterruptedException {
+        // Names are canonical while they are in use, but the table doesn't keep them once they aren't
+        WeakReference<AstNode> name = streamName("a-name-only-this-test-uses");
+
+        for (int i = 0; i < 50 && name.get() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        Assertions.assertNull(name.get());
+    }
+
+    private static WeakReference<AstNode> streamName(String value) throws IOException, LexException, ParseException {
+        try (FormReader forms = Parser.forms(new StringReader("(" + value + " 1)"))) {
+            AstNode node = ((AstNode.Sexp) forms.next()).contents.get(0);
+            Assertions.assertSame(AstNode.Name.of(value), node);
+            return new WeakReference<>(node);
+        }
+    }
+
+    @Test
+    void testPrescan() {
+        String input = FORMS + FORMS;
+        int[] splits = ParallelParser.prescan(input::charAt, input.length(), 1);
+
+        Assertions.assertEquals(0, splits[0]);
+        Assertions.assertEquals(input.length(), splits[splits.length - 1]);
+
+        // Every piece holds whole forms
+        String[] pieces = {"(define", "'\n", "`(a", "; just", "name", "(define", "'\n", "`(a", "; just", "name"};
+        Assertions.assertEquals(pieces.length + 1, splits.length);
+        for (int i = 0; i < pieces.length; ++i)
+            Assertions.assertTrue(input.startsWith(pieces[i], splits[i]), "Piece " + i);
+    }
+
+    @Test
+    void testParallel() throws IOException, LexException, ParseException {
+        StringBuilder program = new StringBuilder();
+        while (program.length() < 1 << 20)
+            program.append(FORMS);
+
+        String input = program.toString();
+        String expected = Parser.parse(new StringReader(input)).toString();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        Path file = Files.createTempFile("tealisp", ".lisp");
+
+        try {
+            Assertions.assertEquals(expected, Parser.parseParallel(new StringReader(input), pool).toString());
+
+            Files.write(file, input.getBytes(StandardCharsets.UTF_8));
+            Assertions.assertEquals(expected, Parser.parseParallel(file, pool).toString());
+
+            // The first error in the input is reported, even with more errors in later pieces
+            int third = input.length() / 3 / FORMS.length() * FORMS.length();
+            String[] errors = {")", "(", "\"", "#x", "1a", "."};
+            for (String first : errors) {
+                for (String second : errors) {
+                    if (first.equals("(") && second.equals(")"))
+                        continue;
+
+                    String broken = input.substring(0, third) + first + "\n"
+                            + input.substring(third, third * 2) + second + "\n" + input.substring(third * 2);
+
+                    Exception sequential = Assertions.assertThrows(Exception.class,
+                            () -> Parser.parse(new StringReader(broken)));
+                    Exception parallel = Assertions.assertThrows(Exception.class,
+                            () -> Parser.parseParallel(new StringReader(broken), pool));
+
+                    Assertions.assertEquals(sequential.getClass(), parallel.getClass());
+                    Assertions.assertEquals(sequential.getMessage(), parallel.getMessage());
+                }
+            }
+        } finally {
+            pool.shutdown();
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testSerializer() throws IOException, LexException, ParseException {
+        String input = FORMS + "2147483647 -2147483648 0 -0.0 12345678.125 \"\" (((a)))";
+        AstNode.RootNode program = Parser.parse(new StringReader(input));
+        byte[] bytes = AstSerializer.serialize(program);
+
+        Assertions.assertEquals(program.toString(), AstSerializer.deserialize(ByteBuffer.wrap(bytes)).toString());
+        Assertions.assertEquals("RootNode[]",
+                AstSerializer.deserialize(ByteBuffer.wrap(AstSerializer.serialize(Parser.parse(new StringReader(""))))).toString());
+
+        // Truncated, extended or otherwise damaged input is rejected rather than misread
+        for (int length = 0; length < bytes.length; ++length) {
+            byte[] truncated = Arrays.copyOf(bytes, length);
+            Assertions.assertThrows(IOException.class, () -> AstSerializer.deserialize(ByteBuffer.wrap(truncated)));
+        }
+
+        Assertions.assertThrows(IOException.class,
+                () -> AstSerializer.deserialize(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length + 1))));
+
+        byte[] version = bytes.clone();
+        version[4] = 99;
+        Assertions.assertThrows(IOException.class, () -> AstSerializer.deserialize(ByteBuffer.wrap(version)));
+    }
+
+    @Test
+    void testProgramCache() throws IOException, LexException, ParseException {
+        Path directory = Files.createTempDirectory("tealisp-cache");
+        Path source = directory.resolve("program.lisp");
+        ProgramCache cache = new ProgramCache(directory.resolve("cache"));
+
+        try {
+            Files.write(source, FORMS.getBytes(StandardCharsets.UTF_8));
+            String expected = Parser.parse(source).toString();
+
+            Assertions.assertEquals(expected, cache.load(source).toString());
+            Assertions.assertEquals(1, entries(directory.resolve("cache")).length);
+            Assertions.assertEquals(expected, cache.load(source).toString());
+
+            // A corrupt entry is replaced
+            Path entry = entries(directory.resolve("cache"))[0];
+            Files.write(entry, new byte[]{1, 2, 3});
+            Assertions.assertEquals(expected, cache.load(source).toString());
+            Assertions.assertEquals(expected, AstSerializer.deserialize(ByteBuffer.wrap(Files.readAllBytes(entry))).toString());
+
+            // Changing the source changes the key
+            Files.write(source, "(changed)".getBytes(StandardCharsets.UTF_8));
+            Assertions.assertEquals("RootNode[Sexp[Name[changed]]]", cache.load(source).toString());
+            Assertions.assertEquals(2, entries(directory.resolve("cache")).length);
+
+            cache.clear();
+            Assertions.assertEquals(0, entries(directory.resolve("cache")).length);
+        } finally {
+            cache.clear();
+            Files.deleteIfExists(directory.resolve("cache"));
+            Files.delete(source);
+            Files.delete(directory);
+        }
+    }
+
+    private static Path[] entries(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.toArray(Path[]::new);
+        }
+    }
+}